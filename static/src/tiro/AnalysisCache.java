@@ -0,0 +1,69 @@
+package tiro;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+// Locations of the on-disk caches of analysis results ("--cache-dir").  Results that only
+// depend on the APK (and not e.g. on the target methods) are cached in files named after a
+// key derived from:
+//   - the content of the APK,
+//   - the TIRO version and the version of the cache file's format,
+//   - the content of AndroidCallbacks.txt,
+//   - the call graph algorithm used for callback discovery ("--callback-cg").
+
+public class AnalysisCache {
+    // Hash of AndroidCallbacks.txt (which is also only re-read when it is edited)
+    private static final FileCache<String> _androidCallbacksHash =
+            new FileCache<String>(f -> Hashes.sha256(f.toString()));
+
+    // Hash of the APK of the current configuration (APKs can be large)
+    private static TIROStaticAnalysis.Configuration _apkHashConfig = null;
+    private static String _apkHash = null;
+
+    public static boolean isEnabled() {
+        return TIROStaticAnalysis.Config.CacheDirectory != null;
+    }
+
+    // Returns <cache dir>/<name>-<key><extension> for the APK of the current configuration.
+    public static Path getCacheFile(String name, int formatVersion, String extension)
+            throws IOException {
+        String key = getApkHash()
+                + "|" + TIROStaticAnalysis.Configuration.Version
+                + "|" + name + "." + formatVersion
+                + "|" + getAndroidCallbacksHash()
+                + "|" + TIROStaticAnalysis.Config.CallbackCallGraph.name();
+        return Paths.get(TIROStaticAnalysis.Config.CacheDirectory, name + "-"
+                + Hashes.sha256(key.getBytes(StandardCharsets.UTF_8)) + extension);
+    }
+
+    // Cache files are written into a temporary file (in the cache directory) that then
+    // replaces the cache file, so that concurrent analyses of the same APK (e.g. in separate
+    // processes) never read a partial file.
+    public static Path createTempFile(Path cacheFile) throws IOException {
+        Files.createDirectories(cacheFile.getParent());
+        return Files.createTempFile(cacheFile.getParent(),
+                cacheFile.getFileName().toString(), ".tmp");
+    }
+
+    public static void replace(Path tempFile, Path cacheFile) throws IOException {
+        Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static synchronized String getApkHash() throws IOException {
+        if (_apkHashConfig != TIROStaticAnalysis.Config) {
+            _apkHash = Hashes.sha256(TIROStaticAnalysis.Config.ApkFile);
+            _apkHashConfig = TIROStaticAnalysis.Config;
+        }
+
+        return _apkHash;
+    }
+
+    private static String getAndroidCallbacksHash() throws IOException {
+        return _androidCallbacksHash.get("./AndroidCallbacks.txt");
+    }
+}
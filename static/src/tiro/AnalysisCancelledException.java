@@ -0,0 +1,7 @@
+package tiro;
+
+public class AnalysisCancelledException extends RuntimeException {
+    public AnalysisCancelledException() {
+        super("Analysis cancelled");
+    }
+}
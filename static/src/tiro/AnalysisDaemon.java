@@ -0,0 +1,387 @@
+package tiro;
+
+import tiro.TIROStaticAnalysis.Configuration;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Resident analysis service ("--daemon <port>"), which keeps the JVM, the JIT-compiled code
+// and the parsed target/callback lists warm across analyses.  APKs are submitted as jobs
+// through a JSON API on the loopback interface:
+//
+//   POST   /jobs              {"ApkFile": "app.apk", "Options": ["-d", "2"],
+//                             "TimeLimitMinutes": 30, "MemoryLimitMB": 4096}
+//                             -> 202 {"Id": 1, "Status": "QUEUED", ...}
+//   GET    /jobs              status of all jobs
+//   GET    /jobs/<id>         status of a job (including the phase and path progress
+//                             while it is running)
+//   GET    /jobs/<id>/results appInfo.json of a completed job
+//   DELETE /jobs/<id>         cancel a job
+//
+// Each job is analyzed with its own configuration (the job's options, then the daemon's
+// command line options) and output directory (<output>/job-<id>), like in batch mode.
+//
+// Jobs run one at a time (the Soot scene is global to the JVM; use "-j" for parallelism
+// within a job), and at most MAX_QUEUED_JOBS jobs can wait.  The time and memory limits
+// are checked every second and cancel the job when exceeded.  Cancellation is cooperative:
+// it takes effect at the next phase, call graph path or targeted path (the call graph
+// construction itself cannot be interrupted).  The memory used by a job is measured as the
+// heap occupied after the last garbage collection.
+
+public class AnalysisDaemon {
+    private static final int MAX_QUEUED_JOBS = 64;
+    private static final long WATCHDOG_PERIOD = 1000; // 1 second
+
+    public enum JobStatus {
+        QUEUED,
+        RUNNING,
+        COMPLETED,
+        FAILED,
+        CANCELLED
+    }
+
+    private static class Job {
+        public final int Id;
+        public final String ApkFile;
+        public final Configuration Config;
+        public final long TimeLimit;
+        public final long MemoryLimit;
+        public final long SubmitTime = System.currentTimeMillis();
+
+        // Updated by the job thread, read by the HTTP and watchdog threads.
+        public volatile JobStatus Status = JobStatus.QUEUED;
+        public volatile String Error = null;
+        public volatile long StartTime = -1;
+        public volatile long EndTime = -1;
+
+        public Job(int id, String apkFile, Configuration config, long timeLimit,
+                   long memoryLimit) {
+            Id = id;
+            ApkFile = apkFile;
+            Config = config;
+            TimeLimit = timeLimit;
+            MemoryLimit = memoryLimit;
+        }
+    }
+
+    private final int _port;
+    private final String _outputDirectory;
+    private final String[] _commonArgs;
+
+    private final AtomicInteger _nextJobId = new AtomicInteger(1);
+    private final Map<Integer, Job> _jobs = new ConcurrentSkipListMap<Integer, Job>();
+    private final BlockingQueue<Job> _queue = new LinkedBlockingQueue<Job>(MAX_QUEUED_JOBS);
+    private volatile Job _runningJob = null;
+    private volatile Thread _jobThread = null;
+
+    public AnalysisDaemon(int port, String outputDirectory, String[] commonArgs) {
+        _port = port;
+        _outputDirectory = outputDirectory;
+        _commonArgs = commonArgs;
+    }
+
+    // Serves the API and runs the submitted jobs (does not return).
+    public void run() throws IOException {
+        new File(_outputDirectory).mkdirs();
+        _jobThread = Thread.currentThread();
+
+        HttpServer httpServer = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), _port), 0);
+        httpServer.createContext("/jobs", this::handleRequest);
+        httpServer.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "DaemonHttpThread");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        httpServer.start();
+
+        Timer watchdogTimer = new Timer("DaemonWatchdogThread", true);
+        watchdogTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                checkLimits();
+            }
+        }, WATCHDOG_PERIOD, WATCHDOG_PERIOD);
+
+        Output.progress("Accepting analysis jobs at http://localhost:" + _port + "/jobs");
+
+        while (true) {
+            Job job;
+            try {
+                job = _queue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            synchronized (this) {
+                if (job.Status != JobStatus.QUEUED) {
+                    continue;
+                }
+
+                job.StartTime = System.currentTimeMillis();
+                job.Status = JobStatus.RUNNING;
+                _runningJob = job;
+            }
+
+            runJob(job);
+        }
+    }
+
+    private void runJob(Job job) {
+        Output.progress("Starting job " + job.Id + " (" + job.ApkFile + ")");
+
+        try {
+            TIROStaticAnalysis.runAnalysis(job.Config);
+            job.Status = JobStatus.COMPLETED;
+        } catch (AnalysisCancelledException e) {
+            job.Status = JobStatus.CANCELLED;
+        } catch (Exception | OutOfMemoryError | StackOverflowError e) {
+            if (job.Error == null) {
+                job.Error = e.toString();
+            }
+            job.Status = job.Config.Cancelled ? JobStatus.CANCELLED : JobStatus.FAILED;
+            Output.error("Job " + job.Id + " failed: " + e.toString());
+            e.printStackTrace();
+        } finally {
+            synchronized (this) {
+                _runningJob = null;
+            }
+            job.EndTime = System.currentTimeMillis();
+
+            // Clear a pending interruption from a cancellation of this job.
+            Thread.interrupted();
+        }
+
+        Output.progress("Job " + job.Id + " " + job.Status.name().toLowerCase());
+    }
+
+    private synchronized void cancelJob(Job job, String reason) {
+        if (job.Status == JobStatus.QUEUED) {
+            job.Error = reason;
+            job.Status = JobStatus.CANCELLED;
+            job.EndTime = System.currentTimeMillis();
+            _queue.remove(job);
+        } else if (job.Status == JobStatus.RUNNING && !job.Config.Cancelled) {
+            Output.warn("Cancelling job " + job.Id + ": " + reason);
+            job.Error = reason;
+            job.Config.Cancelled = true;
+            if (_runningJob == job) {
+                _jobThread.interrupt();
+            }
+        }
+    }
+
+    private void checkLimits() {
+        Job job = _runningJob;
+        if (job == null || job.Config.Cancelled) {
+            return;
+        }
+
+        if (job.TimeLimit > 0 && System.currentTimeMillis() - job.StartTime > job.TimeLimit) {
+            cancelJob(job, "Time limit exceeded");
+        } else if (job.MemoryLimit > 0 && getHeapUsedAfterGc() > job.MemoryLimit) {
+            cancelJob(job, "Memory limit exceeded");
+        }
+    }
+
+    private static long getHeapUsedAfterGc() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                MemoryUsage usage = pool.getCollectionUsage();
+                used += (usage != null) ? usage.getUsed() : pool.getUsage().getUsed();
+            }
+        }
+        return used;
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        try {
+            // Path: /jobs, /jobs/<id> or /jobs/<id>/results
+            String[] path = exchange.getRequestURI().getPath().replaceAll("/+$", "")
+                    .split("/");
+            String method = exchange.getRequestMethod();
+
+            if (path.length == 2 && method.equals("POST")) {
+                submitJob(exchange);
+                return;
+            } else if (path.length == 2 && method.equals("GET")) {
+                JsonArray jobsJson = new JsonArray();
+                _jobs.values().forEach(job -> { jobsJson.add(toJson(job)); });
+                sendJson(exchange, 200, jobsJson);
+                return;
+            }
+
+            Job job = null;
+            try {
+                job = (path.length >= 3) ? _jobs.get(Integer.parseInt(path[2])) : null;
+            } catch (NumberFormatException e) {
+                job = null;
+            }
+
+            if (job == null) {
+                sendError(exchange, 404, "Unknown job");
+            } else if (path.length == 3 && method.equals("GET")) {
+                sendJson(exchange, 200, toJson(job));
+            } else if (path.length == 3 && method.equals("DELETE")) {
+                cancelJob(job, "Cancelled by request");
+                sendJson(exchange, 200, toJson(job));
+            } else if (path.length == 4 && path[3].equals("results")
+                    && method.equals("GET")) {
+                sendResults(exchange, job);
+            } else {
+                sendError(exchange, 405, "Unsupported request");
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            sendError(exchange, 500, e.toString());
+        }
+    }
+
+    private void submitJob(HttpExchange exchange) throws IOException {
+        JsonObject requestJson;
+        try {
+            String request = IOUtils.toString(exchange.getRequestBody(),
+                                              StandardCharsets.UTF_8);
+            requestJson = new JsonParser().parse(request).getAsJsonObject();
+        } catch (Exception e) {
+            sendError(exchange, 400, "Invalid JSON request: " + e.toString());
+            return;
+        }
+
+        if (!requestJson.has("ApkFile")) {
+            sendError(exchange, 400, "Missing ApkFile");
+            return;
+        }
+
+        String apkFile = requestJson.get("ApkFile").getAsString();
+        int id = _nextJobId.getAndIncrement();
+
+        // Options are parsed in order and the first value of an option is used, so the
+        // output directory and the job's options take precedence over the common ones.
+        List<String> args = new ArrayList<String>();
+        args.add("--output");
+        args.add(_outputDirectory + "/job-" + id);
+        if (requestJson.has("Options")) {
+            requestJson.getAsJsonArray("Options").forEach(o -> { args.add(o.getAsString()); });
+        }
+        args.addAll(Arrays.asList(_commonArgs));
+        args.add(apkFile);
+
+        Job job;
+        try {
+            Configuration config = TIROStaticAnalysis.parseConfiguration(
+                    args.toArray(new String[args.size()]));
+            long timeLimit = requestJson.has("TimeLimitMinutes")
+                    ? 60000 * requestJson.get("TimeLimitMinutes").getAsLong() : -1;
+            long memoryLimit = requestJson.has("MemoryLimitMB")
+                    ? 1048576 * requestJson.get("MemoryLimitMB").getAsLong() : -1;
+            job = new Job(id, apkFile, config, timeLimit, memoryLimit);
+        } catch (Exception e) {
+            sendError(exchange, 400, "Invalid job options: " + e.getMessage());
+            return;
+        }
+
+        _jobs.put(id, job);
+        if (!_queue.offer(job)) {
+            _jobs.remove(id);
+            sendError(exchange, 503, "Too many queued jobs");
+            return;
+        }
+
+        Output.log("Queued job " + id + " (" + apkFile + ")");
+        sendJson(exchange, 202, toJson(job));
+    }
+
+    private void sendResults(HttpExchange exchange, Job job) throws IOException {
+        File appInfoFile = new File(job.Config.OutputDirectory, "appInfo.json");
+        if (job.Status != JobStatus.COMPLETED || !appInfoFile.exists()) {
+            sendError(exchange, 404, "No results (job is " + job.Status.name() + ")");
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(200, appInfoFile.length());
+        try (OutputStream body = exchange.getResponseBody()) {
+            Files.copy(appInfoFile.toPath(), body);
+        }
+    }
+
+    private JsonObject toJson(Job job) {
+        JsonObject jobJson = new JsonObject();
+        jobJson.addProperty("Id", job.Id);
+        jobJson.addProperty("ApkFile", job.ApkFile);
+        jobJson.addProperty("OutputDirectory", job.Config.OutputDirectory);
+        jobJson.addProperty("Status", job.Status.name());
+        if (job.Error != null) {
+            jobJson.addProperty("Error", job.Error);
+        }
+
+        jobJson.addProperty("SubmitTime", job.SubmitTime);
+        if (job.StartTime >= 0) {
+            jobJson.addProperty("StartTime", job.StartTime);
+        }
+        if (job.EndTime >= 0) {
+            jobJson.addProperty("EndTime", job.EndTime);
+        }
+
+        if (_runningJob == job) {
+            AnalysisStatus status = AnalysisStatus.v();
+            jobJson.addProperty("Phase", status.getCurrentPhase());
+            jobJson.addProperty("PathsTotal", status.getPathsTotal());
+            jobJson.addProperty("PathsDone", status.getPathsDone());
+        }
+
+        return jobJson;
+    }
+
+    private static void sendJson(HttpExchange exchange, int code, JsonElement json)
+            throws IOException {
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        byte[] response = gson.toJson(json).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(code, response.length);
+        try (OutputStream body = exchange.getResponseBody()) {
+            body.write(response);
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int code, String error)
+            throws IOException {
+        JsonObject errorJson = new JsonObject();
+        errorJson.addProperty("Error", error);
+        sendJson(exchange, code, errorJson);
+    }
+}
@@ -0,0 +1,257 @@
+package tiro;
+
+import tiro.target.constraint.Z3Solver;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.ObjectName;
+
+// Exposes the progress and health of the running analysis, so that long runs can be
+// monitored (e.g. to detect stuck or thrashing analyses).  The status is always registered
+// as a JMX MXBean; with "--monitor-port", it is also served in the Prometheus text format
+// at http://localhost:<port>/metrics.
+//
+// Most values are read from Metrics; the path counters are updated by the targeted paths
+// analysis through the static methods.
+
+public class AnalysisStatus implements AnalysisStatusMXBean {
+    private static final AnalysisStatus _instance = new AnalysisStatus();
+
+    private final AtomicLong _pathsTotal = new AtomicLong();
+    private final AtomicLong _pathsRunning = new AtomicLong();
+    private final AtomicLong _pathsDone = new AtomicLong();
+    private final AtomicLong _lastPathDoneTime = new AtomicLong(System.currentTimeMillis());
+    private volatile int _threadPoolSize = 1;
+
+    private HttpServer _httpServer = null;
+
+    public static AnalysisStatus v() {
+        return _instance;
+    }
+
+    // Resets the path counters (for the next APK in batch mode).
+    public static void reset() {
+        _instance._pathsTotal.set(0);
+        _instance._pathsRunning.set(0);
+        _instance._pathsDone.set(0);
+        _instance._lastPathDoneTime.set(System.currentTimeMillis());
+    }
+
+    public static void setPathsTotal(long pathsTotal, int threadPoolSize) {
+        _instance._pathsTotal.set(pathsTotal);
+        _instance._threadPoolSize = threadPoolSize;
+    }
+
+    public static void pathStarted() {
+        _instance._pathsRunning.incrementAndGet();
+    }
+
+    public static void pathDone() {
+        _instance._pathsRunning.decrementAndGet();
+        _instance._pathsDone.incrementAndGet();
+        _instance._lastPathDoneTime.set(System.currentTimeMillis());
+    }
+
+    // Registers the MXBean, and starts the HTTP endpoint if a port is given (> 0).
+    public static void start(int port) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(_instance,
+                    new ObjectName("tiro:type=AnalysisStatus"));
+        } catch (Exception e) {
+            Output.warn("Cannot register AnalysisStatus MXBean: " + e);
+        }
+
+        if (port > 0) {
+            try {
+                _instance.startHttpServer(port);
+                Output.log("Serving analysis status at http://localhost:" + port + "/metrics");
+            } catch (IOException e) {
+                Output.warn("Cannot start monitoring endpoint on port " + port + ": " + e);
+            }
+        }
+    }
+
+    public static void stop() {
+        if (_instance._httpServer != null) {
+            _instance._httpServer.stop(0);
+            _instance._httpServer = null;
+        }
+    }
+
+    @Override
+    public String getApkFile() {
+        return TIROStaticAnalysis.Config.ApkFile;
+    }
+
+    @Override
+    public String getCurrentPhase() {
+        String phase = Metrics.getCurrentPhase();
+        return (phase != null) ? phase : "None";
+    }
+
+    @Override
+    public long getUptimeMs() {
+        return System.currentTimeMillis() - TIROStaticAnalysis.Config.StartTime;
+    }
+
+    @Override
+    public long getPathsTotal() {
+        return _pathsTotal.get();
+    }
+
+    @Override
+    public long getPathsQueued() {
+        return Math.max(0, _pathsTotal.get() - _pathsRunning.get() - _pathsDone.get());
+    }
+
+    @Override
+    public long getPathsRunning() {
+        return _pathsRunning.get();
+    }
+
+    @Override
+    public long getPathsDone() {
+        return _pathsDone.get();
+    }
+
+    @Override
+    public long getPathsTimedOut() {
+        return Metrics.getCounter("paths.timedOut");
+    }
+
+    @Override
+    public long getMsSinceLastPathDone() {
+        return System.currentTimeMillis() - _lastPathDoneTime.get();
+    }
+
+    @Override
+    public int getThreadPoolSize() {
+        return _threadPoolSize;
+    }
+
+    @Override
+    public double getThreadPoolUtilization() {
+        return (double)_pathsRunning.get() / Math.max(1, _threadPoolSize);
+    }
+
+    @Override
+    public double getDependencyGraphHitRate() {
+        return getHitRate(Metrics.getCounter("dependencyGraph.reusedNodes"),
+                          Metrics.getCounter("dependencyGraph.resolvedNodes"));
+    }
+
+    @Override
+    public double getHeapWriteCacheHitRate() {
+        return getHitRate(Metrics.getCounter("heapWrites.cacheHits"),
+                          Metrics.getCounter("heapWrites.resolved"));
+    }
+
+    @Override
+    public int getLiveZ3Contexts() {
+        return Z3Solver.getLiveContextCount();
+    }
+
+    @Override
+    public long getHeapUsedBytes() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    @Override
+    public long getHeapMaxBytes() {
+        return Runtime.getRuntime().maxMemory();
+    }
+
+    @Override
+    public double getHeapHeadroom() {
+        return 1.0 - (double)getHeapUsedBytes() / getHeapMaxBytes();
+    }
+
+    private static double getHitRate(long hits, long misses) {
+        return (hits + misses > 0) ? (double)hits / (hits + misses) : 0.0;
+    }
+
+    private void startHttpServer(int port) throws IOException {
+        _httpServer = HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        _httpServer.createContext("/metrics", exchange -> {
+            byte[] response = toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type",
+                                              "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream body = exchange.getResponseBody()) {
+                body.write(response);
+            }
+        });
+
+        // Serve requests on a daemon thread, so the endpoint never keeps the JVM alive.
+        _httpServer.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "MonitorHttpThread");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        _httpServer.start();
+    }
+
+    private String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+
+        appendMetric(text, "tiro_phase_info", "Current analysis phase",
+                "{phase=\"" + getCurrentPhase() + "\"}", 1);
+        appendMetric(text, "tiro_uptime_seconds", "Time since the analysis started",
+                null, getUptimeMs() / 1000.0);
+
+        text.append("# HELP tiro_paths Targeted paths by state\n");
+        text.append("# TYPE tiro_paths gauge\n");
+        text.append("tiro_paths{state=\"total\"} ").append(getPathsTotal()).append("\n");
+        text.append("tiro_paths{state=\"queued\"} ").append(getPathsQueued()).append("\n");
+        text.append("tiro_paths{state=\"running\"} ").append(getPathsRunning()).append("\n");
+        text.append("tiro_paths{state=\"done\"} ").append(getPathsDone()).append("\n");
+        text.append("tiro_paths{state=\"timed_out\"} ").append(getPathsTimedOut())
+                .append("\n");
+
+        appendMetric(text, "tiro_seconds_since_last_path_done",
+                "Time since a targeted path last finished", null,
+                getMsSinceLastPathDone() / 1000.0);
+        appendMetric(text, "tiro_thread_pool_size", "Number of path analysis threads",
+                null, getThreadPoolSize());
+        appendMetric(text, "tiro_thread_pool_utilization",
+                "Fraction of path analysis threads that are busy", null,
+                getThreadPoolUtilization());
+        appendMetric(text, "tiro_dependency_graph_hit_rate",
+                "Fraction of supporting event lookups that re-used a resolved node", null,
+                getDependencyGraphHitRate());
+        appendMetric(text, "tiro_heap_write_cache_hit_rate",
+                "Fraction of heap write lookups that re-used a resolution", null,
+                getHeapWriteCacheHitRate());
+        appendMetric(text, "tiro_z3_live_contexts", "Z3 contexts that are not closed",
+                null, getLiveZ3Contexts());
+        appendMetric(text, "tiro_heap_used_bytes", "Used JVM heap", null,
+                getHeapUsedBytes());
+        appendMetric(text, "tiro_heap_max_bytes", "Maximum JVM heap", null,
+                getHeapMaxBytes());
+        appendMetric(text, "tiro_heap_headroom", "Fraction of the maximum heap not in use",
+                null, getHeapHeadroom());
+
+        return text.toString();
+    }
+
+    private static void appendMetric(StringBuilder text, String name, String help,
+                                     String labels, double value) {
+        text.append("# HELP ").append(name).append(" ").append(help).append("\n");
+        text.append("# TYPE ").append(name).append(" gauge\n");
+        text.append(name);
+        if (labels != null) {
+            text.append(labels);
+        }
+        text.append(" ").append(value).append("\n");
+    }
+}
@@ -0,0 +1,28 @@
+package tiro;
+
+// Live status of a running analysis, registered as "tiro:type=AnalysisStatus".
+
+public interface AnalysisStatusMXBean {
+    public String getApkFile();
+    public String getCurrentPhase();
+    public long getUptimeMs();
+
+    public long getPathsTotal();
+    public long getPathsQueued();
+    public long getPathsRunning();
+    public long getPathsDone();
+    public long getPathsTimedOut();
+    public long getMsSinceLastPathDone();
+
+    public int getThreadPoolSize();
+    public double getThreadPoolUtilization();
+
+    public double getDependencyGraphHitRate();
+    public double getHeapWriteCacheHitRate();
+
+    public int getLiveZ3Contexts();
+
+    public long getHeapUsedBytes();
+    public long getHeapMaxBytes();
+    public double getHeapHeadroom();
+}
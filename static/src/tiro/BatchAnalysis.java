@@ -0,0 +1,171 @@
+package tiro;
+
+import tiro.TIROStaticAnalysis.Configuration;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// Analyzes multiple APKs one after another in the same JVM ("--batch"), so that the JVM
+// start-up and warm-up, and the reading of the target method and Android callback lists,
+// are not repeated for each APK.
+//
+// The batch is either a directory (all *.apk files in it) or a file listing one APK per
+// line, optionally followed by options for that APK, e.g.:
+//     apps/a.apk
+//     apps/b.apk -d 2 -k 30
+// Each APK is analyzed with its own configuration (the APK's options, then the common
+// command line options) and output directory (<output>/<APK name>).  All configurations are
+// parsed before the first APK is analyzed, so invalid options are reported immediately.
+// The Soot scene is reset between APKs (and scene-dependent state is re-created, see
+// SceneLocal), and a failed analysis does not stop the batch.  The result of each APK is
+// written into <output>/batch.json.
+//
+// APKs are analyzed sequentially: the Soot scene and the configuration are global to the
+// JVM.  Use "-j" to analyze the paths of each APK in parallel.
+
+public class BatchAnalysis {
+    private static class Entry {
+        public final String ApkFile;
+        public final Configuration Config;
+
+        public Entry(String apkFile, Configuration config) {
+            ApkFile = apkFile;
+            Config = config;
+        }
+    }
+
+    private final String _outputDirectory;
+    private final List<Entry> _entries = new ArrayList<Entry>();
+
+    public BatchAnalysis(String batchFile, String outputDirectory, String[] commonArgs)
+            throws Exception {
+        _outputDirectory = outputDirectory;
+
+        Set<String> outputNames = new HashSet<String>();
+        for (List<String> apkArgs : readBatchFile(batchFile)) {
+            String apkFile = apkArgs.get(0);
+
+            // Output directory named after the APK (made unique if APKs have the same name)
+            String name = new File(apkFile).getName().replaceFirst("\\.apk$", "");
+            String outputName = name;
+            for (int i = 2; !outputNames.add(outputName); i++) {
+                outputName = name + "-" + i;
+            }
+
+            // Options are parsed in order and the first value of an option is used, so the
+            // output directory and the APK's options take precedence over the common ones.
+            List<String> args = new ArrayList<String>();
+            args.add("--output");
+            args.add(outputDirectory + "/" + outputName);
+            args.addAll(apkArgs.subList(1, apkArgs.size()));
+            args.addAll(Arrays.asList(commonArgs));
+            args.add(apkFile);
+
+            try {
+                Configuration config = TIROStaticAnalysis.parseConfiguration(
+                        args.toArray(new String[args.size()]));
+                _entries.add(new Entry(apkFile, config));
+            } catch (ParseException | org.apache.commons.cli.ParseException e) {
+                throw new ParseException(apkFile + ": " + e.getMessage(), 0);
+            }
+        }
+
+        if (_entries.isEmpty()) {
+            throw new ParseException("No APK files in batch: " + batchFile, 0);
+        }
+    }
+
+    public void run() {
+        new File(_outputDirectory).mkdirs();
+
+        JsonArray resultsJson = new JsonArray();
+        int failedCount = 0;
+
+        for (int i = 0; i < _entries.size(); i++) {
+            Entry entry = _entries.get(i);
+            Output.progress("Batch: analyzing APK " + (i + 1) + "/" + _entries.size()
+                    + " (" + entry.ApkFile + ")");
+
+            long startTime = System.currentTimeMillis();
+            boolean completed = false;
+            try {
+                TIROStaticAnalysis.runAnalysis(entry.Config);
+                completed = true;
+            } catch (Exception | OutOfMemoryError | StackOverflowError e) {
+                failedCount++;
+                Output.error("Analysis of " + entry.ApkFile + " failed: " + e.toString());
+                e.printStackTrace();
+            }
+
+            JsonObject resultJson = new JsonObject();
+            resultJson.addProperty("ApkFile", entry.ApkFile);
+            resultJson.addProperty("OutputDirectory", entry.Config.OutputDirectory);
+            resultJson.addProperty("Completed", completed);
+            resultJson.addProperty("WallTimeMs", System.currentTimeMillis() - startTime);
+            resultsJson.add(resultJson);
+
+            // Re-written after each APK, so that the progress of the batch can be followed.
+            writeResultsFile(resultsJson);
+        }
+
+        Output.progress("Batch analysis completed: " + _entries.size() + " APKs, "
+                + failedCount + " failed");
+    }
+
+    private void writeResultsFile(JsonArray resultsJson) {
+        JsonObject batchJson = new JsonObject();
+        batchJson.addProperty("Version", Configuration.Version);
+        batchJson.add("Results", resultsJson);
+
+        try {
+            Gson gson = new GsonBuilder().setPrettyPrinting().create();
+            PrintWriter writer = new PrintWriter(_outputDirectory + "/batch.json", "UTF-8");
+            writer.print(gson.toJson(batchJson));
+            writer.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Returns the APK file and options of each APK in the batch.
+    private static List<List<String>> readBatchFile(String batchFile) throws Exception {
+        List<List<String>> batch = new ArrayList<List<String>>();
+
+        File file = new File(batchFile);
+        if (file.isDirectory()) {
+            File[] apkFiles = file.listFiles((dir, name) -> name.endsWith(".apk"));
+            if (apkFiles != null) {
+                Arrays.sort(apkFiles);
+                for (File apkFile : apkFiles) {
+                    batch.add(Collections.singletonList(apkFile.getPath()));
+                }
+            }
+            return batch;
+        }
+
+        for (String line : Files.readAllLines(Paths.get(batchFile))) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            batch.add(Arrays.asList(line.split("\\s+")));
+        }
+
+        return batch;
+    }
+}
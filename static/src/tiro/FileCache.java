@@ -0,0 +1,57 @@
+package tiro;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+// Values derived from input files (e.g. parsed target method lists, or content hashes),
+// read on first use and re-read when a file has been modified since (by its modification
+// time and size), so that a long-running process (e.g. "--daemon") picks up edited files
+// instead of using the contents it read for an earlier analysis.
+
+public class FileCache<T> {
+    public static interface Reader<T> {
+        public T read(Path file) throws IOException;
+    }
+
+    private static class Entry<T> {
+        public final long LastModified;
+        public final long Size;
+        public final T Value;
+
+        public Entry(BasicFileAttributes attributes, T value) {
+            LastModified = attributes.lastModifiedTime().toMillis();
+            Size = attributes.size();
+            Value = value;
+        }
+
+        public boolean isCurrent(BasicFileAttributes attributes) {
+            return LastModified == attributes.lastModifiedTime().toMillis()
+                    && Size == attributes.size();
+        }
+    }
+
+    private final Reader<T> _reader;
+    private final Map<Path, Entry<T>> _entries = new HashMap<Path, Entry<T>>();
+
+    public FileCache(Reader<T> reader) {
+        _reader = reader;
+    }
+
+    public synchronized T get(String file) throws IOException {
+        Path path = Paths.get(file).toAbsolutePath().normalize();
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+
+        Entry<T> entry = _entries.get(path);
+        if (entry == null || !entry.isCurrent(attributes)) {
+            entry = new Entry<T>(attributes, _reader.read(path));
+            _entries.put(path, entry);
+        }
+
+        return entry.Value;
+    }
+}
@@ -0,0 +1,257 @@
+package tiro;
+
+import tiro.target.constraint.Predicate;
+import tiro.target.event.CallPath;
+
+import soot.jimple.Stmt;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Java Flight Recorder events for TIRO's units of work (phases, targeted paths, method
+// analyses and Z3 checks), so that a recording of a slow run shows them on the same timeline
+// as allocations and GC, e.g.:
+//     java -XX:StartFlightRecording=filename=tiro.jfr ... tiro.TIROStaticAnalysis ...
+//
+// The JFR API is only available on JDK 8u262+ (and JDK 11+), so it is accessed reflectively
+// (the event types are created with jdk.jfr.EventFactory), and TIRO still builds and runs on
+// older JDKs.  Whether each event type is enabled is cached, and updated by a recorder
+// listener when recordings start or stop, so events only cost a volatile read when no
+// recording is active.  Callers pass the opaque Object returned by the begin methods to the
+// matching end method (null if the event is not recorded).
+
+public class FlightRecorder {
+    private static class EventType {
+        public final Object Factory;    // jdk.jfr.EventFactory
+        public final Object Type;       // jdk.jfr.EventType
+        public volatile boolean Enabled = false;
+
+        public EventType(Object factory, Object type) {
+            Factory = factory;
+            Type = type;
+        }
+    }
+
+    // jdk.jfr.Event methods, and the event types (null if JFR is unavailable)
+    private static Method _begin = null;
+    private static Method _end = null;
+    private static Method _shouldCommit = null;
+    private static Method _set = null;
+    private static Method _commit = null;
+    private static Method _newEvent = null;
+    private static Method _isEnabled = null;
+
+    private static EventType _phaseEvents = null;
+    private static EventType _pathEvents = null;
+    private static EventType _methodAnalysisEvents = null;
+    private static EventType _solverCheckEvents = null;
+
+    static {
+        try {
+            Class<?> eventClass = Class.forName("jdk.jfr.Event");
+            _begin = eventClass.getMethod("begin");
+            _end = eventClass.getMethod("end");
+            _shouldCommit = eventClass.getMethod("shouldCommit");
+            _set = eventClass.getMethod("set", int.class, Object.class);
+            _commit = eventClass.getMethod("commit");
+            _newEvent = Class.forName("jdk.jfr.EventFactory").getMethod("newEvent");
+            _isEnabled = Class.forName("jdk.jfr.EventType").getMethod("isEnabled");
+
+            _phaseEvents = createEventType("tiro.Phase", "Phase",
+                    "Sequential phase of the analysis",
+                    String.class, "phase", "Phase");
+            _pathEvents = createEventType("tiro.TargetedPath", "Targeted Path",
+                    "Analysis of a targeted path, including its dependencies",
+                    String.class, "entryMethod", "Entry Method",
+                    String.class, "target", "Target",
+                    int.class, "methodCount", "Method Count",
+                    String.class, "status", "Status");
+            _methodAnalysisEvents = createEventType("tiro.MethodAnalysis", "Method Analysis",
+                    "Intraprocedural constraint analysis of a method",
+                    String.class, "method", "Method",
+                    int.class, "unitCount", "Unit Count",
+                    // 0 for methods on the call path, > 0 for auxiliary (callee) methods
+                    int.class, "auxDepth", "Auxiliary Depth");
+            _solverCheckEvents = createEventType("tiro.SolverCheck", "Z3 Check",
+                    "Z3 satisfiability check of a constraint",
+                    int.class, "predicateNodes", "Predicate Nodes",
+                    String.class, "result", "Result");
+
+            addRecorderListener();
+            updateEnabledEventTypes();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // JFR is not available on this JDK.
+            _phaseEvents = null;
+            _pathEvents = null;
+            _methodAnalysisEvents = null;
+            _solverCheckEvents = null;
+        }
+    }
+
+    public static Object beginPhase() {
+        return begin(_phaseEvents);
+    }
+
+    public static void endPhase(Object event, String phase) {
+        if (end(event)) {
+            commit(event, phase);
+        }
+    }
+
+    public static Object beginPath() {
+        return begin(_pathEvents);
+    }
+
+    public static void endPath(Object event, CallPath path, String status) {
+        if (end(event)) {
+            Stmt targetStmt = (Stmt)path.getTargetUnit();
+            commit(event, path.getEntryMethod().getSignature(),
+                    targetStmt.containsInvokeExpr()
+                        ? targetStmt.getInvokeExpr().getMethodRef().getSignature()
+                        : targetStmt.toString(),
+                    path.getNodes().size(), status);
+        }
+    }
+
+    public static Object beginMethodAnalysis() {
+        return begin(_methodAnalysisEvents);
+    }
+
+    public static void endMethodAnalysis(Object event, soot.Body body, int auxDepth) {
+        if (end(event)) {
+            commit(event, body.getMethod().getSignature(), body.getUnits().size(), auxDepth);
+        }
+    }
+
+    public static Object beginSolverCheck() {
+        return begin(_solverCheckEvents);
+    }
+
+    public static void endSolverCheck(Object event, Predicate constraint, String result) {
+        if (end(event)) {
+            commit(event, (constraint != null) ? constraint.getNodeCount() : 0, result);
+        }
+    }
+
+    private static Object begin(EventType eventType) {
+        if (eventType == null || !eventType.Enabled) {
+            return null;
+        }
+
+        try {
+            Object event = _newEvent.invoke(eventType.Factory);
+            _begin.invoke(event);
+            return event;
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    // Ends the event, and returns whether it should be committed.
+    private static boolean end(Object event) {
+        if (event == null) {
+            return false;
+        }
+
+        try {
+            _end.invoke(event);
+            return (Boolean)_shouldCommit.invoke(event);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    private static void commit(Object event, Object... values) {
+        try {
+            for (int i = 0; i < values.length; i++) {
+                _set.invoke(event, i, values[i]);
+            }
+            _commit.invoke(event);
+        } catch (ReflectiveOperationException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Calls updateEnabledEventTypes() when the recorder is initialized and whenever a
+    // recording changes state (jdk.jfr.FlightRecorderListener).
+    private static void addRecorderListener() throws ReflectiveOperationException {
+        Class<?> listenerClass = Class.forName("jdk.jfr.FlightRecorderListener");
+        Object listener = Proxy.newProxyInstance(FlightRecorder.class.getClassLoader(),
+                new Class<?>[] { listenerClass }, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return "TIRO flight recorder listener";
+                    default:
+                        updateEnabledEventTypes();
+                        return null;
+                    }
+                });
+
+        Class.forName("jdk.jfr.FlightRecorder").getMethod("addListener", listenerClass)
+                .invoke(null, listener);
+    }
+
+    private static void updateEnabledEventTypes() {
+        for (EventType eventType : new EventType[] { _phaseEvents, _pathEvents,
+                _methodAnalysisEvents, _solverCheckEvents }) {
+            if (eventType == null) {
+                continue;
+            }
+
+            try {
+                eventType.Enabled = (Boolean)_isEnabled.invoke(eventType.Type);
+            } catch (ReflectiveOperationException e) {
+                eventType.Enabled = false;
+            }
+        }
+    }
+
+    // Creates an event type in the "TIRO" category, whose fields are given as (type, name,
+    // label) triples.
+    private static EventType createEventType(String name, String label, String description,
+                                          Object... fields)
+            throws ReflectiveOperationException {
+        Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+        Constructor<?> annotationElement =
+                annotationElementClass.getConstructor(Class.class, Object.class);
+        Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+        Constructor<?> valueDescriptor =
+                valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+
+        List<Object> annotations = new ArrayList<Object>();
+        annotations.add(annotationElement.newInstance(getAnnotation("Name"), name));
+        annotations.add(annotationElement.newInstance(getAnnotation("Label"), label));
+        annotations.add(annotationElement.newInstance(getAnnotation("Category"),
+                new String[] { "TIRO" }));
+        annotations.add(annotationElement.newInstance(getAnnotation("Description"),
+                description));
+
+        List<Object> values = new ArrayList<Object>();
+        for (int i = 0; i < fields.length; i += 3) {
+            Object fieldLabel = annotationElement.newInstance(getAnnotation("Label"),
+                    fields[i + 2]);
+            values.add(valueDescriptor.newInstance(fields[i], fields[i + 1],
+                    Arrays.asList(fieldLabel)));
+        }
+
+        Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory");
+        Object factory = eventFactoryClass.getMethod("create", List.class, List.class)
+                .invoke(null, annotations, values);
+        return new EventType(factory,
+                eventFactoryClass.getMethod("getEventType").invoke(factory));
+    }
+
+    private static Class<? extends Annotation> getAnnotation(String name)
+            throws ClassNotFoundException {
+        return Class.forName("jdk.jfr." + name).asSubclass(Annotation.class);
+    }
+}
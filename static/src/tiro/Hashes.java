@@ -0,0 +1,46 @@
+package tiro;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// Content hashes of the input files, used as keys of the analysis result caches.
+
+public class Hashes {
+    public static String sha256(String file) throws IOException {
+        MessageDigest digest = newDigest();
+        try (InputStream stream = Files.newInputStream(Paths.get(file))) {
+            byte[] buffer = new byte[1 << 16];
+            int length;
+            while ((length = stream.read(buffer)) > 0) {
+                digest.update(buffer, 0, length);
+            }
+        }
+
+        return toHexString(digest.digest());
+    }
+
+    public static String sha256(byte[] data) {
+        return toHexString(newDigest().digest(data));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHexString(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+}
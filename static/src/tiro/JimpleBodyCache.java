@@ -0,0 +1,304 @@
+package tiro;
+
+import soot.Body;
+import soot.MethodSource;
+import soot.Modifier;
+import soot.Printer;
+import soot.Scene;
+import soot.SootClass;
+import soot.SootField;
+import soot.SootMethod;
+import soot.jimple.parser.JimpleAST;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// On-disk cache of the Jimple bodies of the application classes ("--cache-dir"), so that
+// the bodies are not re-created from the dex code by dexpler when an APK is analyzed again.
+// Creating the bodies is the most expensive part of loading the scene.
+//
+// Dex code has no self-contained per-class bytes: classes refer to the string, type and
+// method tables of their dex file.  So a class is identified by the content hash of its dex
+// file and its name.  Classes of unchanged dex files (e.g. of another version of a multi-dex
+// APK) are found in the cache too.
+//
+// Each class is stored as gzip'd Jimple text in <cache dir>/jimple/<key>.jimple.gz.  The
+// file is written the first time one of the class's bodies is needed (all bodies of the
+// class are then created, and kept until Soot retrieves them), and parsed the first time one
+// of its bodies is needed in a later run.  Bodies that cannot be read from the cache are
+// created by dexpler.
+//
+// Bodies are only ever installed by Soot (which retrieves the bodies of a class on several
+// threads); the cache never sets the active body of a method itself.
+
+public class JimpleBodyCache {
+    private static final int FORMAT_VERSION = 1;
+
+    // Class name -> cache key, for the APK of the current configuration
+    private static TIROStaticAnalysis.Configuration _classKeysConfig = null;
+    private static Map<String, String> _classKeys = null;
+
+    private static class ClassEntry {
+        private final SootClass _class;
+        private final Path _cacheFile;
+        private final Map<SootMethod, MethodSource> _originalSources =
+                new HashMap<SootMethod, MethodSource>();
+
+        private boolean _loaded = false;
+        private JimpleAST _jimpleAst = null;
+
+        // Bodies created for the cache file, until they are retrieved
+        private final Map<SootMethod, Body> _createdBodies = new HashMap<SootMethod, Body>();
+
+        public ClassEntry(SootClass klass, Path cacheFile) {
+            _class = klass;
+            _cacheFile = cacheFile;
+        }
+
+        public synchronized Body getBody(SootMethod method, String phaseName) {
+            if (!_loaded) {
+                _loaded = true;
+                if (Files.exists(_cacheFile)) {
+                    try (InputStream input = new GZIPInputStream(
+                            Files.newInputStream(_cacheFile))) {
+                        _jimpleAst = new JimpleAST(input);
+                    } catch (Exception e) {
+                        Output.warn("Cannot read Jimple cache file " + _cacheFile + ": "
+                                + e.toString());
+                    }
+                } else {
+                    createAndStoreBodies(phaseName);
+                }
+            }
+
+            Body createdBody = _createdBodies.remove(method);
+            if (createdBody != null) {
+                return createdBody;
+            }
+
+            if (_jimpleAst != null) {
+                try {
+                    Body body = _jimpleAst.getBody(method);
+                    if (body != null) {
+                        Metrics.increment("jimpleCache.hits");
+                        return body;
+                    }
+                } catch (RuntimeException e) {
+                    Output.debug("Cannot parse cached body of " + method + ": " + e);
+                }
+            }
+
+            Metrics.increment("jimpleCache.misses");
+            return _originalSources.get(method).getBody(method, phaseName);
+        }
+
+        // Creates all bodies of the class (with the original sources, i.e. dexpler), and
+        // writes the class into the cache.
+        private void createAndStoreBodies(String phaseName) {
+            for (Map.Entry<SootMethod, MethodSource> entry : _originalSources.entrySet()) {
+                _createdBodies.put(entry.getKey(),
+                        entry.getValue().getBody(entry.getKey(), phaseName));
+            }
+            Metrics.add("jimpleCache.misses", _createdBodies.size());
+
+            try {
+                ByteArrayOutputStream jimple = new ByteArrayOutputStream();
+                try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                        new GZIPOutputStream(jimple), StandardCharsets.UTF_8))) {
+                    printClass(writer);
+                }
+
+                Path tempFile = AnalysisCache.createTempFile(_cacheFile);
+                Files.write(tempFile, jimple.toByteArray());
+                AnalysisCache.replace(tempFile, _cacheFile);
+                Metrics.increment("jimpleCache.classesStored");
+            } catch (Exception e) {
+                Output.warn("Cannot write Jimple cache file " + _cacheFile + ": "
+                        + e.toString());
+            }
+        }
+
+        // Prints the class in the same form as Printer.printTo(SootClass), with the created
+        // bodies (which are not the methods' active bodies).  Methods whose bodies were not
+        // created are left out, and are not found in the cache.
+        private void printClass(PrintWriter writer) {
+            String classPrefix = Modifier.toString(_class.getModifiers());
+            if (!_class.isInterface()) {
+                classPrefix = (classPrefix + " class").trim();
+            }
+            writer.print(classPrefix + " " + Scene.v().quotedNameOf(_class.getName()));
+            if (_class.hasSuperclass()) {
+                writer.print(" extends "
+                        + Scene.v().quotedNameOf(_class.getSuperclass().getName()));
+            }
+            Iterator<SootClass> interfaces = _class.getInterfaces().iterator();
+            if (interfaces.hasNext()) {
+                writer.print(" implements "
+                        + Scene.v().quotedNameOf(interfaces.next().getName()));
+                while (interfaces.hasNext()) {
+                    writer.print(", " + Scene.v().quotedNameOf(interfaces.next().getName()));
+                }
+            }
+            writer.println();
+            writer.println("{");
+
+            for (SootField field : _class.getFields()) {
+                if (!field.isPhantom()) {
+                    writer.println("    " + field.getDeclaration() + ";");
+                }
+            }
+
+            for (SootMethod method : _class.getMethods()) {
+                Body body = _createdBodies.get(method);
+                if (body != null) {
+                    writer.println();
+                    Printer.v().printTo(body, writer);
+                } else if (method.isAbstract() || method.isNative()) {
+                    writer.println();
+                    writer.println("    " + method.getDeclaration() + ";");
+                }
+            }
+
+            writer.println("}");
+        }
+    }
+
+    private static class CachedMethodSource implements MethodSource {
+        private final ClassEntry _entry;
+
+        public CachedMethodSource(ClassEntry entry) {
+            _entry = entry;
+        }
+
+        @Override
+        public Body getBody(SootMethod method, String phaseName) {
+            return _entry.getBody(method, phaseName);
+        }
+    }
+
+    // Makes the application classes of the scene retrieve their bodies through the cache
+    // (must be called after the classes are loaded, and before any body is retrieved).
+    public static void install() {
+        Map<String, String> classKeys;
+        try {
+            classKeys = getClassKeys();
+        } catch (Exception e) {
+            Output.warn("Cannot read the dex files of " + TIROStaticAnalysis.Config.ApkFile
+                    + " for the Jimple cache: " + e.toString());
+            return;
+        }
+
+        Path cacheDirectory = Paths.get(TIROStaticAnalysis.Config.CacheDirectory, "jimple");
+        for (SootClass klass : Scene.v().getApplicationClasses()) {
+            String key = classKeys.get(klass.getName());
+            if (key == null) {
+                continue;
+            }
+
+            ClassEntry entry = new ClassEntry(klass,
+                    cacheDirectory.resolve(key + ".jimple.gz"));
+            for (SootMethod method : klass.getMethods()) {
+                if (method.isConcrete() && !method.hasActiveBody()
+                        && method.getSource() != null) {
+                    entry._originalSources.put(method, method.getSource());
+                    method.setSource(new CachedMethodSource(entry));
+                }
+            }
+        }
+    }
+
+    private static synchronized Map<String, String> getClassKeys() throws IOException {
+        if (_classKeysConfig == TIROStaticAnalysis.Config) {
+            return _classKeys;
+        }
+
+        Map<String, String> classKeys = new HashMap<String, String>();
+        Set<String> duplicateClasses = new HashSet<String>();
+        try (ZipFile apk = new ZipFile(TIROStaticAnalysis.Config.ApkFile)) {
+            for (ZipEntry entry : Collections.list(apk.entries())) {
+                if (!entry.getName().matches("classes\\d*\\.dex")) {
+                    continue;
+                }
+
+                byte[] dex;
+                try (InputStream input = apk.getInputStream(entry)) {
+                    dex = readAllBytes(input);
+                }
+
+                String dexHash = Hashes.sha256(dex);
+                for (String className : readClassNames(dex)) {
+                    String key = dexHash + "|" + className
+                            + "|" + TIROStaticAnalysis.Configuration.Version
+                            + "|" + FORMAT_VERSION;
+                    if (classKeys.put(className,
+                            Hashes.sha256(key.getBytes(StandardCharsets.UTF_8))) != null) {
+                        duplicateClasses.add(className);
+                    }
+                }
+            }
+        }
+
+        // The dex file that Soot loads a duplicate class from is not known.
+        classKeys.keySet().removeAll(duplicateClasses);
+
+        _classKeys = classKeys;
+        _classKeysConfig = TIROStaticAnalysis.Config;
+        return classKeys;
+    }
+
+    // Returns the names of the classes defined in a dex file (from its class_defs table).
+    private static List<String> readClassNames(byte[] dex) {
+        ByteBuffer buffer = ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN);
+        int stringIdsOffset = buffer.getInt(0x3c);
+        int typeIdsOffset = buffer.getInt(0x44);
+        int classDefsSize = buffer.getInt(0x60);
+        int classDefsOffset = buffer.getInt(0x64);
+
+        List<String> classNames = new ArrayList<String>(classDefsSize);
+        for (int i = 0; i < classDefsSize; i++) {
+            int typeIndex = buffer.getInt(classDefsOffset + i * 32);
+            int stringIndex = buffer.getInt(typeIdsOffset + typeIndex * 4);
+            int stringDataOffset = buffer.getInt(stringIdsOffset + stringIndex * 4);
+
+            // Skip the (ULEB128) length, the string is null-terminated (MUTF-8)
+            int start = stringDataOffset;
+            while ((dex[start++] & 0x80) != 0) {
+                // continuation byte
+            }
+            int end = start;
+            while (dex[end] != 0) {
+                end++;
+            }
+
+            // "Lcom/example/Class;" -> "com.example.Class"
+            String descriptor = new String(dex, start, end - start, StandardCharsets.UTF_8);
+            classNames.add(descriptor.substring(1, descriptor.length() - 1).replace('/', '.'));
+        }
+
+        return classNames;
+    }
+
+    private static byte[] readAllBytes(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+        int length;
+        while ((length = input.read(buffer)) > 0) {
+            output.write(buffer, 0, length);
+        }
+        return output.toByteArray();
+    }
+}
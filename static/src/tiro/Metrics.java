@@ -0,0 +1,238 @@
+package tiro;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Performance metrics of the analysis, written to <output>/metrics.json.
+//
+//   Phases    - the sequential phases of the analysis (started on the main thread with
+//               beginPhase()), with wall time, process CPU time, GC time/count and peak
+//               heap usage.
+//   Timers    - time spent in activities that run concurrently on the analysis threads
+//               (e.g. dependency resolution, solving), summed over all threads.
+//   Counters  - domain counters (e.g. paths found, units scanned, cache hits).
+//   Maxima    - largest observed values (e.g. constraint sizes).
+//   Summaries - other run-level reports (e.g. the slowest paths).
+//
+// Counters and timers can be updated concurrently from any thread.
+
+public class Metrics {
+    private static class Phase {
+        public final String Name;
+        public final long StartWallTime = System.nanoTime();
+        public final long StartCpuTime = getProcessCpuTime();
+        public final long StartGcTime = getGcTime();
+        public final long StartGcCount = getGcCount();
+        public final Object FlightRecorderEvent = FlightRecorder.beginPhase();
+
+        public Phase(String name) {
+            Name = name;
+        }
+    }
+
+    private static class Timer {
+        public final LongAdder Count = new LongAdder();
+        public final LongAdder TotalTime = new LongAdder();
+    }
+
+    private static final List<JsonObject> _phasesJson = new ArrayList<JsonObject>();
+    private static Phase _currentPhase = null;
+
+    private static final Map<String, Timer> _timers = new ConcurrentHashMap<String, Timer>();
+    private static final Map<String, LongAdder> _counters =
+            new ConcurrentHashMap<String, LongAdder>();
+    private static final Map<String, AtomicLong> _maxima =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private static final Map<String, JsonElement> _summaries =
+            new ConcurrentHashMap<String, JsonElement>();
+
+    // Clears all metrics (for the next APK in batch mode).
+    public static synchronized void reset() {
+        _currentPhase = null;
+        _phasesJson.clear();
+        _timers.clear();
+        _counters.clear();
+        _maxima.clear();
+        _summaries.clear();
+    }
+
+    // Ends the current phase (if any) and starts a new one.
+    public static synchronized void beginPhase(String name) {
+        endPhase();
+
+        resetPeakHeapUsage();
+        _currentPhase = new Phase(name);
+    }
+
+    public static synchronized void endPhase() {
+        if (_currentPhase == null) {
+            return;
+        }
+
+        Phase phase = _currentPhase;
+        _currentPhase = null;
+        FlightRecorder.endPhase(phase.FlightRecorderEvent, phase.Name);
+
+        JsonObject phaseJson = new JsonObject();
+        phaseJson.addProperty("Name", phase.Name);
+        phaseJson.addProperty("WallTimeMs",
+                (System.nanoTime() - phase.StartWallTime) / 1000000);
+        if (phase.StartCpuTime >= 0) {
+            phaseJson.addProperty("CpuTimeMs",
+                    (getProcessCpuTime() - phase.StartCpuTime) / 1000000);
+        }
+        phaseJson.addProperty("GcTimeMs", getGcTime() - phase.StartGcTime);
+        phaseJson.addProperty("GcCount", getGcCount() - phase.StartGcCount);
+        phaseJson.addProperty("PeakHeapBytes", getPeakHeapUsage());
+
+        _phasesJson.add(phaseJson);
+    }
+
+    public static synchronized String getCurrentPhase() {
+        return (_currentPhase != null) ? _currentPhase.Name : null;
+    }
+
+    public static long getCounter(String counter) {
+        LongAdder value = _counters.get(counter);
+        return (value != null) ? value.sum() : 0;
+    }
+
+    public static void increment(String counter) {
+        add(counter, 1);
+    }
+
+    public static void add(String counter, long value) {
+        _counters.computeIfAbsent(counter, k -> new LongAdder()).add(value);
+    }
+
+    public static void max(String name, long value) {
+        _maxima.computeIfAbsent(name, k -> new AtomicLong(Long.MIN_VALUE))
+                .accumulateAndGet(value, Math::max);
+    }
+
+    public static void setSummary(String name, JsonElement summary) {
+        _summaries.put(name, summary);
+    }
+
+    // Records time spent in an activity, given its start time (from System.nanoTime()).
+    public static void addTime(String timer, long startTime) {
+        Timer t = _timers.computeIfAbsent(timer, k -> new Timer());
+        t.Count.increment();
+        t.TotalTime.add(System.nanoTime() - startTime);
+    }
+
+    // Writes metrics.json into the output directory (ending the current phase).
+    public static synchronized void writeMetricsFile(boolean completed) {
+        endPhase();
+
+        JsonObject metricsJson = new JsonObject();
+        metricsJson.addProperty("Version", TIROStaticAnalysis.Config.Version);
+        metricsJson.addProperty("ApkFile", TIROStaticAnalysis.Config.ApkFile);
+        metricsJson.addProperty("Completed", completed);
+        metricsJson.addProperty("TotalWallTimeMs",
+                System.currentTimeMillis() - TIROStaticAnalysis.Config.StartTime);
+
+        JsonArray phasesJson = new JsonArray();
+        _phasesJson.forEach(p -> { phasesJson.add(p); });
+        metricsJson.add("Phases", phasesJson);
+
+        JsonObject timersJson = new JsonObject();
+        (new TreeMap<String, Timer>(_timers)).forEach((name, timer) -> {
+            JsonObject timerJson = new JsonObject();
+            timerJson.addProperty("Count", timer.Count.sum());
+            timerJson.addProperty("TotalTimeMs", timer.TotalTime.sum() / 1000000);
+            timersJson.add(name, timerJson);
+        });
+        metricsJson.add("Timers", timersJson);
+
+        JsonObject countersJson = new JsonObject();
+        (new TreeMap<String, LongAdder>(_counters)).forEach((name, value) -> {
+            countersJson.addProperty(name, value.sum());
+        });
+        metricsJson.add("Counters", countersJson);
+
+        JsonObject maximaJson = new JsonObject();
+        (new TreeMap<String, AtomicLong>(_maxima)).forEach((name, value) -> {
+            maximaJson.addProperty(name, value.get());
+        });
+        metricsJson.add("Maxima", maximaJson);
+
+        JsonObject summariesJson = new JsonObject();
+        (new TreeMap<String, JsonElement>(_summaries)).forEach((name, summary) -> {
+            summariesJson.add(name, summary);
+        });
+        metricsJson.add("Summaries", summariesJson);
+
+        try {
+            Gson gson = new GsonBuilder().setPrettyPrinting().create();
+            PrintWriter writer = new PrintWriter(
+                    TIROStaticAnalysis.Config.OutputDirectory + "/metrics.json", "UTF-8");
+            writer.print(gson.toJson(metricsJson));
+            writer.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Returns the CPU time of the whole process in nanoseconds, or -1 if not supported.
+    private static long getProcessCpuTime() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean)os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static long getGcTime() {
+        long gcTime = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcTime += Math.max(0, gc.getCollectionTime());
+        }
+        return gcTime;
+    }
+
+    private static long getGcCount() {
+        long gcCount = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+        }
+        return gcCount;
+    }
+
+    private static void resetPeakHeapUsage() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    // Sum of the peak usage of each heap pool since the last reset (an upper bound of the
+    // actual peak heap usage, since the pools do not peak at the same time).
+    private static long getPeakHeapUsage() {
+        long peakHeapUsage = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) {
+                peakHeapUsage += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peakHeapUsage;
+    }
+}
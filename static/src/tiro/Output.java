@@ -1,39 +1,157 @@
 package tiro;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Console output of the analysis.  Messages below the configured level ("--log-level") are
+// discarded before they are formatted (use the Supplier overloads for messages that are
+// expensive to construct).  Accepted messages are handed to a separate output thread
+// through a bounded queue, so callers rarely block on stdout: if the queue is full, messages
+// below WARN are dropped and counted instead, while warnings and errors wait for space (or
+// are printed directly if the output thread has stopped).  The output thread prints messages
+// to stdout and, if "--trace" is given, also writes them as JSON Lines into the trace file
+// of the analysis that printed them.
+//
+// A thread can buffer its output (startBuffering()/flushBuffer()), in which case its
+// messages are queued together and printed without being interleaved with other threads.
+
 public class Output {
-    private static ThreadLocal<StringBuffer> _buffer = new ThreadLocal<StringBuffer>();
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+
+    private enum Kind {
+        LOG(Level.INFO, ""),
+        PROGRESS(Level.INFO, ""),
+        WARN(Level.WARN, "[Warning] "),
+        ERROR(Level.ERROR, "[Error] "),
+        DEBUG(Level.DEBUG, "[Debug] "),
+        PATH(Level.INFO, "  [Path] "),
+        CONSTRAINT(Level.INFO, "  [Constraint] "),
+        INSTRUMENT(Level.INFO, "  [Instrument] ");
+
+        public final Level MessageLevel;
+        public final String Prefix;
+
+        private Kind(Level level, String prefix) {
+            MessageLevel = level;
+            Prefix = prefix;
+        }
+    }
+
+    private static class Message {
+        public final long Time = System.currentTimeMillis();
+        public final String ThreadName = Thread.currentThread().getName();
+
+        // Of the analysis that printed the message (the configuration may have changed by
+        // the time it is written, e.g. in batch mode)
+        public final long StartTime = TIROStaticAnalysis.Config.StartTime;
+        public final String TraceFile = TIROStaticAnalysis.Config.TraceFile;
+        public final Kind Kind;
+        public final String Text;
+
+        public Message(Kind kind, String text) {
+            Kind = kind;
+            Text = text;
+        }
+    }
+
+    private static final int QUEUE_CAPACITY = 65536;
+
+    // Queue of message batches (a single message, or a thread's buffered output)
+    private static final BlockingQueue<List<Message>> _queue =
+            new ArrayBlockingQueue<List<Message>>(QUEUE_CAPACITY);
+    private static final List<Message> CLOSE = new ArrayList<Message>();
+    private static final AtomicLong _droppedMessages = new AtomicLong();
+
+    private static final ThreadLocal<List<Message>> _buffer =
+            new ThreadLocal<List<Message>>();
+
+    // Accessed only by the output thread while it runs.  Writes to the stdout file descriptor
+    // directly, so output is not lost while System.out is redirected (e.g. during entry-point
+    // analysis).
+    private static final PrintStream _stdout = new PrintStream(new BufferedOutputStream(
+            new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+    private static PrintWriter _traceWriter = null;
+    private static String _traceFile = null;
+    private static final Set<String> _openedTraceFiles = new HashSet<String>();
+
+    private static final Thread _outputThread;
+
+    static {
+        _outputThread = new Thread(Output::run, "OutputThread");
+        _outputThread.setDaemon(true);
+        _outputThread.start();
+
+        // Print the remaining messages when the JVM exits.
+        Runtime.getRuntime().addShutdownHook(new Thread(Output::close));
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(TIROStaticAnalysis.Config.LogLevel) >= 0;
+    }
 
     public static void log(String output) {
-        outputOrBuffer(output);
+        output(Kind.LOG, output);
+    }
+
+    public static void log(Supplier<String> output) {
+        output(Kind.LOG, output);
     }
 
     public static void warn(String output) {
-        outputOrBuffer("[Warning] " + output);
+        output(Kind.WARN, output);
     }
 
     public static void error(String output) {
-        outputOrBuffer("[Error] " + output);
+        output(Kind.ERROR, output);
         //(new Exception()).printStackTrace();
     }
 
     public static void debug(boolean debugFlag, String output) {
         if (debugFlag) {
-            outputOrBuffer("[Debug] " + output);
+            output(Kind.DEBUG, output);
         }
     }
 
     public static void debug(String output) {
-        outputOrBuffer("[Debug] " + output);
+        output(Kind.DEBUG, output);
+    }
+
+    public static void debug(Supplier<String> output) {
+        output(Kind.DEBUG, output);
     }
 
     public static void progress(String output) {
-        double elapsedTime = ((double)System.currentTimeMillis()
-                - TIROStaticAnalysis.Config.StartTime) / 60000;
-        outputOrBuffer(String.format(">>> %s (%.3f min)", output, elapsedTime));
-        System.out.flush();
+        output(Kind.PROGRESS, output);
     }
 
     public static void printSubtitle(String subtitle) {
+        if (!isEnabled(Level.INFO)) {
+            return;
+        }
+
         String titleString = " - - - - - - - - - - - - - - - - - - - - -"
                            + " - - - - - - - - - - - - - - - - - - - - -";
         int startIndex = (84 - 6 - subtitle.length()) / 2;
@@ -41,47 +159,204 @@ public class Output {
                 + " [ " + subtitle + " ] "
                 + titleString.substring(startIndex + subtitle.length() + 6);
 
-        outputOrBuffer(titleString);
+        output(Kind.LOG, titleString);
     }
 
     public static void printEventChainDivider() {
-        outputOrBuffer(" --------------------------------------------"
-                     + "---------------------------------------------");
+        output(Kind.LOG, " --------------------------------------------"
+                       + "---------------------------------------------");
     }
 
     public static void printPath(String output) {
-        outputOrBuffer("  [Path] " + output);
+        output(Kind.PATH, output);
     }
 
     public static void printConstraint(String output) {
-        outputOrBuffer("  [Constraint] " + output);
+        output(Kind.CONSTRAINT, output);
     }
 
     public static void printInstrumentation(String output) {
-        outputOrBuffer("  [Instrument] " + output);
+        output(Kind.INSTRUMENT, output);
     }
 
     public static void startBuffering() {
-        _buffer.set(new StringBuffer());
+        _buffer.set(new ArrayList<Message>());
     }
 
     public static void flushBuffer() {
-        System.out.print(_buffer.get().toString());
+        List<Message> buffer = _buffer.get();
         _buffer.set(null);
+
+        if (buffer != null && !buffer.isEmpty()) {
+            enqueue(buffer);
+        }
     }
 
     public static void clearBuffer() {
-        _buffer.set(new StringBuffer());
+        _buffer.set(new ArrayList<Message>());
+    }
+
+    // Waits (up to a few seconds) until all queued messages have been printed, and stops
+    // the output thread.
+    public static void close() {
+        try {
+            if (_outputThread.isAlive() && _queue.offer(CLOSE, 5, TimeUnit.SECONDS)) {
+                _outputThread.join(5000);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void output(Kind kind, Supplier<String> output) {
+        if (isEnabled(kind.MessageLevel)) {
+            output(kind, output.get());
+        }
     }
 
-    private static void outputOrBuffer(String output) {
-        if (_buffer.get() == null) {
-            System.out.println(output);
+    private static void output(Kind kind, String output) {
+        if (!isEnabled(kind.MessageLevel)) {
+            return;
+        }
+
+        Message message = new Message(kind, output);
+        List<Message> buffer = _buffer.get();
+        if (buffer == null) {
+            enqueue(Collections.singletonList(message));
         } else {
-            StringBuffer currentBuffer = _buffer.get();
-            currentBuffer.append(output);
-            currentBuffer.append(System.lineSeparator());
+            buffer.add(message);
         }
     }
-}
 
+    private static void enqueue(List<Message> messages) {
+        if (_outputThread.isAlive() && _queue.offer(messages)) {
+            return;
+        }
+
+        boolean hasWarnings = false;
+        for (Message message : messages) {
+            hasWarnings |= message.Kind.MessageLevel.compareTo(Level.WARN) >= 0;
+        }
+        if (!hasWarnings) {
+            _droppedMessages.addAndGet(messages.size());
+            return;
+        }
+
+        // Warnings and errors are never dropped.
+        boolean interrupted = false;
+        try {
+            while (_outputThread.isAlive()) {
+                try {
+                    if (_queue.offer(messages, 100, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            // The output thread has stopped (e.g. the JVM is exiting), so no other thread
+            // uses stdout.
+            synchronized (_stdout) {
+                for (Message message : messages) {
+                    _stdout.println(format(message));
+                }
+                _stdout.flush();
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void run() {
+        Gson gson = new Gson();
+
+        while (true) {
+            List<Message> messages;
+            try {
+                messages = _queue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+
+            if (messages == CLOSE) {
+                flush();
+                if (_traceWriter != null) {
+                    _traceWriter.close();
+                }
+                return;
+            }
+
+            long droppedMessages = _droppedMessages.getAndSet(0);
+            if (droppedMessages > 0) {
+                _stdout.println(Kind.WARN.Prefix + droppedMessages
+                        + " messages were dropped (output queue full)");
+            }
+
+            for (Message message : messages) {
+                _stdout.println(format(message));
+                trace(gson, message);
+            }
+
+            // Only flush once the queue has been drained.
+            if (_queue.isEmpty()) {
+                flush();
+            }
+        }
+    }
+
+    private static String format(Message message) {
+        if (message.Kind == Kind.PROGRESS) {
+            double elapsedTime = ((double)message.Time - message.StartTime) / 60000;
+            return String.format(">>> %s (%.3f min)", message.Text, elapsedTime);
+        }
+
+        return message.Kind.Prefix + message.Text;
+    }
+
+    // Writes the message into the trace file of the analysis that printed it ("--trace" is
+    // an option of each APK in batch and daemon mode).  A trace file is truncated when it is
+    // first opened, and appended to when an analysis with the same trace file follows.
+    private static void trace(Gson gson, Message message) {
+        if (message.TraceFile == null) {
+            return;
+        }
+
+        if (!message.TraceFile.equals(_traceFile)) {
+            if (_traceWriter != null) {
+                _traceWriter.close();
+                _traceWriter = null;
+            }
+
+            _traceFile = message.TraceFile;
+            try {
+                _traceWriter = new PrintWriter(new OutputStreamWriter(new FileOutputStream(
+                        _traceFile, !_openedTraceFiles.add(_traceFile)),
+                        StandardCharsets.UTF_8));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        if (_traceWriter == null) {
+            return;
+        }
+
+        JsonObject messageJson = new JsonObject();
+        messageJson.addProperty("Time", message.Time);
+        messageJson.addProperty("Thread", message.ThreadName);
+        messageJson.addProperty("Level", message.Kind.MessageLevel.name());
+        messageJson.addProperty("Kind", message.Kind.name());
+        messageJson.addProperty("Message", message.Text);
+        _traceWriter.println(gson.toJson(messageJson));
+    }
+
+    private static void flush() {
+        _stdout.flush();
+        if (_traceWriter != null) {
+            _traceWriter.flush();
+        }
+    }
+}
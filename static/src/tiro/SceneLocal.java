@@ -0,0 +1,46 @@
+package tiro;
+
+import soot.G;
+
+import java.util.function.Supplier;
+
+// A value derived from the Soot scene (e.g. looked up classes and methods, or constants with
+// Soot types), computed on first use and re-computed the first time it is used after the
+// scene is reset with soot.G.reset().  Static fields that hold Soot objects must use this
+// instead of static initializers, so that they do not refer to the objects of a previous
+// scene when several APKs are analyzed in the same JVM (batch mode).
+
+public class SceneLocal<T> {
+    private static class Entry<T> {
+        public final G Globals;
+        public final T Value;
+
+        public Entry(G globals, T value) {
+            Globals = globals;
+            Value = value;
+        }
+    }
+
+    private final Supplier<T> _initializer;
+    private volatile Entry<T> _entry = null;
+
+    public SceneLocal(Supplier<T> initializer) {
+        _initializer = initializer;
+    }
+
+    public T get() {
+        Entry<T> entry = _entry;
+        G globals = G.v();
+        if (entry == null || entry.Globals != globals) {
+            synchronized (this) {
+                entry = _entry;
+                if (entry == null || entry.Globals != globals) {
+                    entry = new Entry<T>(globals, _initializer.get());
+                    _entry = entry;
+                }
+            }
+        }
+
+        return entry.Value;
+    }
+}
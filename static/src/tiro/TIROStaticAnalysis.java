@@ -7,68 +7,254 @@ import org.apache.commons.io.FileUtils;
 
 import tiro.target.ManifestAnalysis;
 import tiro.target.ResourceAnalysis;
+import tiro.target.ShardMerge;
 import tiro.target.TargetedPathsAnalysis;
 import tiro.target.callgraph.AndroidCallGraphPatching;
+import tiro.target.callgraph.CallGraphSnapshot;
+import tiro.target.constraint.MethodSummaryStore;
 import tiro.target.dependency.DependencyAnalysis;
 import tiro.target.entrypoint.EntryPointAnalysis;
+import tiro.target.event.EventChain;
 import tiro.target.traversal.CallGraphTraversal;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.ParseException;
 import java.util.*;
 import java.util.jar.JarFile;
 
 public class TIROStaticAnalysis {
+    // Settings of the analysis of one APK (a new configuration is created for each APK in
+    // batch mode, see BatchAnalysis).
     public static class Configuration {
         public static final String Version = "0.2.0";
-        public static long StartTime = 0;
+        public long StartTime = 0;
         public static final long TargetedPathTimeout = 300000; // 5 minutes
-        public static long Timeout = -1;
+        public long Timeout = -1;
 
-        public static Set<String> TargetMethods = new HashSet<String>();
+        // Target methods of all groups, and the target methods of each group (by name)
+        public Set<String> TargetMethods = new HashSet<String>();
+        public Map<String, Set<String>> TargetGroups =
+                new LinkedHashMap<String, Set<String>>();
 
-        public static String ApkFile = null;
-        public static List<String> DynamicFiles = new ArrayList<String>();
-        public static String OutputDirectory = null;
+        public String ApkFile = null;
+        public List<String> DynamicFiles = new ArrayList<String>();
+        public String OutputDirectory = null;
 
-        public static boolean MultiThreading = false;
-        public static int NumberOfThreads = 8;
+        // Directory of the analysis result caches (null to disable caching).
+        public String CacheDirectory = null;
 
-        public static boolean PrintSootOutput = false;
-        public static boolean PrintOutput = true;
-        public static boolean PrintConstraints = false;
+        // Output directory of a previous analysis whose results are re-used for the paths
+        // unaffected by the changes to the app (see IncrementalAnalysis).
+        public String PreviousOutputDirectory = null;
+
+        // Maximum number of method summaries kept in the cache directory (see
+        // MethodSummaryStore).
+        public int SummaryStoreSize = 100000;
+
+        public enum CallGraphAlgorithm {
+            SPARK,
+            CHA,
+            RTA
+        }
+
+        // Call graph used to find reachable callback registrations during the entry-point
+        // analysis (the main analysis always uses Spark).
+        public CallGraphAlgorithm CallbackCallGraph = CallGraphAlgorithm.SPARK;
+
+        public int MaxDependencyDepth = 1;
+        public boolean LazyHeapWrites = false;
+
+        public boolean MultiThreading = false;
+        public int NumberOfThreads = 8;
+
+        public boolean PrintSootOutput = false;
+        public boolean PrintOutput = true;
+        public boolean PrintConstraints = false;
+        public Output.Level LogLevel = Output.Level.DEBUG;
+        public String TraceFile = null;
+
+        public enum ConstraintFormat {
+            PYTHON,
+            SMTLIB2
+        }
+
+        public ConstraintFormat OutputConstraintFormat = ConstraintFormat.PYTHON;
+        public boolean PackConstraints = false;
+        public boolean StreamingOutput = false;
+
+        // Resume a killed analysis from the checkpoint in the output directory.
+        public boolean Resume = false;
+
+        // Shard of the targeted paths analyzed by this process ("--shard"), see ShardMerge.
+        public int ShardIndex = 0;
+        public int ShardCount = 1;
+
+        // Set to abort the analysis (e.g. when a daemon job exceeds its limits).
+        public volatile boolean Cancelled = false;
     }
 
-    public static Configuration Config = new Configuration();
+    public static volatile Configuration Config = new Configuration();
+
+    // Target method lists (read once when analyzing multiple APKs, unless they are edited).
+    private static final FileCache<Set<String>> _targetMethodsCache =
+            new FileCache<Set<String>>(TIROStaticAnalysis::readTargetMethods);
 
     public static void main(String[] args) throws Exception {
         Options options = getCommandLineOptions();
+        BatchAnalysis batchAnalysis = null;
+        AnalysisDaemon analysisDaemon = null;
+        ShardMerge shardMerge = null;
+        int monitorPort = -1;
 
         try {
             CommandLineParser commandLineParser = new DefaultParser();
             CommandLine commands = commandLineParser.parse(options, args, true);
-            parseCommandLineOptions(options, commands);
+            if (commands.hasOption("h")) {
+                printHelp(options);
+                System.exit(0);
+            }
+
+            if (commands.hasOption("v")) {
+                System.out.println("TIRO version: " + Configuration.Version);
+                System.exit(0);
+            }
+
+            // The monitoring endpoint serves the whole process (all APKs of a batch or
+            // daemon), so its port is taken from the top-level command line.
+            if (commands.hasOption("monitor-port")) {
+                try {
+                    monitorPort = Integer.parseInt(commands.getOptionValue("monitor-port"));
+                } catch (Exception e) {
+                    throw new ParseException("Cannot parse monitor port parameter: "
+                            + e.toString(), 0);
+                }
+            }
+
+            if (commands.hasOption("batch") || commands.hasOption("daemon")) {
+                if (!commands.getArgList().isEmpty()) {
+                    throw new ParseException(
+                            "APK files cannot be given with --batch or --daemon", 0);
+                }
+            }
+
+            if (commands.hasOption("merge")) {
+                if (commands.getArgList().isEmpty()) {
+                    throw new ParseException("No shard output directories given", 0);
+                }
+                shardMerge = new ShardMerge(commands.getArgList(),
+                        commands.getOptionValue("o", "./tiroOutput"));
+            } else if (commands.hasOption("daemon")) {
+                int port = -1;
+                try {
+                    port = Integer.parseInt(commands.getOptionValue("daemon"));
+                } catch (Exception e) {
+                    throw new ParseException("Cannot parse daemon port parameter: "
+                            + e.toString(), 0);
+                }
+                analysisDaemon = new AnalysisDaemon(port,
+                        commands.getOptionValue("o", "./tiroOutput"), args);
+            } else if (commands.hasOption("batch")) {
+                batchAnalysis = new BatchAnalysis(commands.getOptionValue("batch"),
+                        commands.getOptionValue("o", "./tiroOutput"), args);
+            } else {
+                Config = parseCommandLineOptions(options, commands);
+            }
         } catch (ParseException e) {
             System.err.println(e.toString());
             printHelp(options);
             System.exit(0);
         }
 
+        if (shardMerge != null) {
+            System.exit(shardMerge.run() ? 0 : 1);
+        }
+
+        AnalysisStatus.start(monitorPort);
+        try {
+            if (analysisDaemon != null) {
+                analysisDaemon.run();
+            } else if (batchAnalysis != null) {
+                batchAnalysis.run();
+            } else {
+                runAnalysis();
+            }
+        } finally {
+            AnalysisStatus.stop();
+        }
+    }
+
+    // Parses the command line options of an APK analysis into a new configuration.
+    static Configuration parseConfiguration(String[] args) throws Exception {
+        Options options = getCommandLineOptions();
+        CommandLineParser commandLineParser = new DefaultParser();
+        return parseCommandLineOptions(options, commandLineParser.parse(options, args, true));
+    }
+
+    // Analyzes an APK with the given configuration, and releases its Soot scene afterwards
+    // (used to analyze multiple APKs in the same JVM).
+    static void runAnalysis(Configuration config) throws Exception {
+        Config = config;
+        try {
+            runAnalysis();
+        } finally {
+            soot.G.reset();
+        }
+    }
+
+    // Aborts the analysis if it has been cancelled.
+    public static void checkCancelled() {
+        if (Config.Cancelled) {
+            throw new AnalysisCancelledException();
+        }
+    }
+
+    // Analyzes the APK of the current configuration (Config), and writes the results into
+    // its output directory.
+    static void runAnalysis() throws Exception {
         Config.StartTime = System.currentTimeMillis();
+        if (Config.Resume) {
+            new File(Config.OutputDirectory).mkdirs();
+        } else {
+            cleanOutputDirectory();
+        }
+
         Output.progress("Starting analysis for " + Config.ApkFile + " at "
                 + (new Date()).toString());
+        Metrics.reset();
+        AnalysisStatus.reset();
+        EventChain.resetIds();
+
         TIROStaticAnalysis analysis = new TIROStaticAnalysis();
-        analysis.analyze();
+        boolean completed = false;
+        try {
+            analysis.analyze();
+            completed = true;
+        } finally {
+            // Also written if the analysis fails with an error (e.g. out of memory), in which
+            // case the original error is propagated.
+            try {
+                MethodSummaryStore.save();
+                Metrics.writeMetricsFile(completed);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }
         Output.progress("Analysis completed successfully");
     }
 
     public void analyze() throws Exception {
-        // Initialize soot options in case manifest analysis requires android.R$attr class
+        Metrics.beginPhase("ManifestAndResources");
+
+        // Initialize soot (the manifest analysis may require the android.R$attr class).  The
+        // scene is loaded once, and used by both the entry-point analysis and the main
+        // analysis.
         initializeSoot();
 
         ManifestAnalysis manifestAnalysis = new ManifestAnalysis(
@@ -76,18 +262,18 @@ public class TIROStaticAnalysis {
         ResourceAnalysis resourceAnalysis = new ResourceAnalysis(
                 TIROStaticAnalysis.Config.ApkFile);
 
-        // Find entrypoints (note: performs/reset soot phases, must re-initialize soot after)
+        // Find entrypoints (runs soot phases in the current scene, which is then re-used)
+        checkCancelled();
         Output.progress("Searching for entrypoints");
+        Metrics.beginPhase("EntryPoints");
         EntryPointAnalysis entryPointAnalysis = new EntryPointAnalysis(
                 manifestAnalysis, resourceAnalysis);
 
-        // After this point, do not re-use any of the soot objects (the scene will be reset)!
-
-        // Initialize soot options
-        initializeSoot();
-
-        // Add entrypoints
+        // Add entrypoints (the call graph of the entry-point analysis is re-built with the
+        // final dummy main method and the call graph patching)
+        checkCancelled();
         Output.progress("Creating dummy main entrypoint method");
+        releaseCallGraph();
         Scene.v().setEntryPoints(Collections.singletonList(
                 entryPointAnalysis.getDummyMainMethod()));
 
@@ -98,6 +284,28 @@ public class TIROStaticAnalysis {
 
         PackManager.v().getPack("wjpp").add(new Transform("wjpp.AndroidCallGraphPatching",
                 new AndroidCallGraphPatching(manifestAnalysis)));
+        // The call graph and points-to analysis only depend on the APK, so with a cache they
+        // are loaded from a snapshot of a previous run (if any) instead of running Spark.
+        CallGraphSnapshot callGraphSnapshot = AnalysisCache.isEnabled()
+                ? new CallGraphSnapshot() : null;
+
+        PackManager.v().getPack("wjpp").add(new Transform("wjpp.Metrics",
+                new SceneTransformer() {
+                    @Override
+                    protected void internalTransform(String phaseName,
+                                                     Map<String, String> options) {
+                        // Patching is done; the cg pack (Spark) runs next.
+                        checkCancelled();
+                        if (callGraphSnapshot != null && callGraphSnapshot.exists()) {
+                            Metrics.beginPhase("CallGraphSnapshot");
+                            if (callGraphSnapshot.load()) {
+                                soot.options.Options.v().setPhaseOption("cg", "enabled:false");
+                                return;
+                            }
+                        }
+                        Metrics.beginPhase("Spark");
+                    }
+                }));
 
         DependencyAnalysis dependencyAnalysis = new DependencyAnalysis(resourceAnalysis,
                 entryPointAnalysis);
@@ -109,6 +317,31 @@ public class TIROStaticAnalysis {
         dependencyAnalysis.getCallGraphPlugins().forEach(
                 p -> { callGraphTraversal.addPlugin(p); });
 
+        if (callGraphSnapshot != null) {
+            PackManager.v().getPack("wjtp").add(new Transform("wjtp.CallGraphSnapshot",
+                    new SceneTransformer() {
+                        @Override
+                        protected void internalTransform(String phaseName,
+                                                         Map<String, String> options) {
+                            if (!callGraphSnapshot.isLoaded()) {
+                                Metrics.beginPhase("CallGraphSnapshot");
+                                callGraphSnapshot.write();
+                            }
+                        }
+                    }));
+        }
+
+        if (Config.CallbackCallGraph != Configuration.CallGraphAlgorithm.SPARK) {
+            PackManager.v().getPack("wjtp").add(new Transform("wjtp.CallbackReport",
+                    new SceneTransformer() {
+                        @Override
+                        protected void internalTransform(String phaseName,
+                                                         Map<String, String> options) {
+                            entryPointAnalysis.reportImpreciseCallbacks();
+                        }
+                    }));
+        }
+
         PackManager.v().getPack("wjtp").add(new Transform("wjtp.CallGraphTraversal",
                 callGraphTraversal));
 
@@ -119,11 +352,17 @@ public class TIROStaticAnalysis {
 
         // Use runPacks() to manually produce output dex files using DexPrinter
         //soot.Main.main(new String[] {"-process-dir", Config.ApkFile});
+        Metrics.beginPhase("CallGraphPatching");
         PackManager.v().runPacks();
+        Metrics.endPhase();
+
+        // Paths that were not analyzed before a cancellation are missing from the output.
+        checkCancelled();
     }
 
     public static void initializeSoot() {
         soot.G.reset();
+        Metrics.increment("soot.sceneLoads");
 
         // Source format: APK
         soot.options.Options.v().set_src_prec(soot.options.Options.src_prec_apk);
@@ -139,8 +378,8 @@ public class TIROStaticAnalysis {
         soot.options.Options.v().set_force_overwrite(true);
         soot.options.Options.v().set_whole_program(true);
         soot.options.Options.v().setPhaseOption("cg", "callgraph-tags:true");
-        soot.options.Options.v().setPhaseOption("cg.spark", "on");
         soot.options.Options.v().setPhaseOption("cg.spark", "string-constants:true");
+        setCallGraphAlgorithm(Configuration.CallGraphAlgorithm.SPARK);
 
         // Suppress output
         if (!Config.PrintSootOutput) {
@@ -173,6 +412,46 @@ public class TIROStaticAnalysis {
         soot.options.Options.v().set_process_dir(inputCode);
 
         Scene.v().loadNecessaryClasses();
+
+        if (AnalysisCache.isEnabled()) {
+            JimpleBodyCache.install();
+        }
+    }
+
+    // Selects the algorithm used by the next runs of the cg pack.
+    public static void setCallGraphAlgorithm(Configuration.CallGraphAlgorithm algorithm) {
+        soot.options.Options options = soot.options.Options.v();
+        switch (algorithm) {
+            case CHA:
+                options.setPhaseOption("cg.spark", "off");
+                options.setPhaseOption("cg.cha", "on");
+                break;
+            case RTA:
+                // Spark with a single points-to set for all variables (on-the-fly call graph
+                // construction is not supported in this mode).
+                options.setPhaseOption("cg.cha", "off");
+                options.setPhaseOption("cg.spark", "on");
+                options.setPhaseOption("cg.spark", "rta:true");
+                options.setPhaseOption("cg.spark", "on-fly-cg:false");
+                break;
+            case SPARK:
+            default:
+                options.setPhaseOption("cg.cha", "off");
+                options.setPhaseOption("cg.spark", "on");
+                options.setPhaseOption("cg.spark", "rta:false");
+                options.setPhaseOption("cg.spark", "on-fly-cg:true");
+                break;
+        }
+    }
+
+    // Discards the call graph and points-to analysis of the scene (and the class hierarchy,
+    // as classes may have been replaced), so that they are re-built by the next cg pack.
+    public static void releaseCallGraph() {
+        Scene.v().releaseCallGraph();
+        Scene.v().releasePointsToAnalysis();
+        Scene.v().releaseReachableMethods();
+        Scene.v().releaseActiveHierarchy();
+        Scene.v().releaseFastHierarchy();
     }
 
     private static Options getCommandLineOptions() {
@@ -183,6 +462,107 @@ public class TIROStaticAnalysis {
                         + "(default: \"./tiroOutput\")")
                 .build()
         );
+        options.addOption(Option.builder().longOpt("batch")
+                .required(false).hasArg(true).argName("file|dir")
+                .desc("Analyze multiple APKs one after another in the same JVM: all APKs in a "
+                        + "directory, or the APKs listed in a file (one per line, optionally "
+                        + "followed by options for that APK).  Each APK is written into its "
+                        + "own directory under \"--output\"")
+                .build()
+        );
+        options.addOption(Option.builder().longOpt("daemon")
+                .required(false).hasArg(true).argName("port")
+                .desc("Run as a resident service that analyzes APKs submitted through a JSON "
+                        + "API at http://localhost:<port>/jobs, one at a time.  Each job is "
+                        + "written into its own directory under \"--output\", and the other "
+                        + "options are defaults for all jobs")
+                .build()
+        );
+        options.addOption(Option.builder().longOpt("cache-dir")
+                .required(false).hasArg(true).argName("dir")
+                .desc("Cache the Jimple bodies of the app's classes, the results of the "
+                        + "entry-point and callback discovery, and a snapshot of the call "
+                        + "graph and points-to analysis, in this directory (keyed by the "
+                        + "content of the APK), and re-use them when the same APK is analyzed "
+                        + "again, e.g. with different target methods.  Summaries of methods "
+                        + "(e.g. of bundled libraries) are shared by all APKs")
+                .build()
+        );
+        options.addOption(Option.builder().longOpt("summary-store-size")
+                .required(false).hasArg(true).argName("entries")
+                .desc("Maximum number of method summaries shared by all APKs in the cache "
+                        + "directory; the least recently used ones are evicted (default: "
+                        + "100000, about 90 bytes each)")
+                .build()
+        );
+        options.addOption(Option.builder().longOpt("previous")
+                .required(false).hasArg(true).argName("dir")
+                .desc("Output directory of a previous analysis (e.g. of the previous version "
+                        + "of the app), whose results are re-used for the targeted paths that "
+                        + "are not affected by the changes to the app (requires the default "
+                        + "Python constraint format in both analyses)")
+                .build()
+        );
+        options.addOption(Option.builder().longOpt("callback-cg")
+                .required(false).hasArg(true).argName("algorithm")
+                .desc("Call graph used to find callback registrations during entry-point "
+                        + "discovery: \"spark\", or the faster but less precise \"cha\" or "
+                        + "\"rta\" (default: spark).  Callbacks that may not have been "
+                        + "found with Spark are reported")
+                .build()
+        );
+        options.addOption(Option.builder("d").longOpt("depth")
+                .required(false).hasArg(true).argName("depth")
+                .desc("Maximum depth of supporting event dependencies resolved for each "
+                        + "targeted path (default: 1)")
+                .build()
+        );
+        options.addOption(Option.builder().longOpt("lazy-heap-writes")
+                .required(false).hasArg(false)
+                .desc("Only record heap write sites during call graph traversal, and find "
+                        + "paths to them when a heap dependence needs to be resolved")
+                .build()
+        );
+        options.addOption(Option.builder("f").longOpt("format")
+                .required(false).hasArg(true).argName("format")
+                .desc("Output format for extracted constraints: \"python\" (one Z3-py file "
+                        + "per event) or \"smt2\" (single SMT-LIB2 file) (default: python)")
+                .build()
+        );
+        options.addOption(Option.builder().longOpt("pack-constraints")
+                .required(false).hasArg(false)
+                .desc("Write the Z3-py constraint files of all events into a single "
+                        + "archive (constraints.zip)")
+                .build()
+        );
+        options.addOption(Option.builder().longOpt("stream-output")
+                .required(false).hasArg(false)
+                .desc("Append each event chain to appInfo.jsonl as it is analyzed, instead "
+                        + "of keeping all event chains in memory")
+                .build()
+        );
+        options.addOption(Option.builder().longOpt("resume")
+                .required(false).hasArg(false)
+                .desc("Resume an analysis that was killed, with the same options: the "
+                        + "targeted paths completed before (see checkpoint.jsonl in the "
+                        + "output directory) are not analyzed again (requires the default "
+                        + "Python constraint format)")
+                .build()
+        );
+        options.addOption(Option.builder().longOpt("shard")
+                .required(false).hasArg(true).argName("i/N")
+                .desc("Only analyze shard i (0 to N-1) of the targeted paths, e.g. in one of "
+                        + "N processes that share a --cache-dir; the outputs of the shards "
+                        + "are then combined with --merge (requires the default Python "
+                        + "constraint format)")
+                .build()
+        );
+        options.addOption(Option.builder().longOpt("merge")
+                .required(false).hasArg(false)
+                .desc("Merge the output directories of the shards of an analysis (given "
+                        + "instead of the APK) into the \"--output\" directory")
+                .build()
+        );
         options.addOption(Option.builder("j").longOpt("multithreading")
                 .required(false).hasArg(true).argName("threads")
                 .desc("Enable multi-threaded analysis and set the number of threads")
@@ -198,6 +578,23 @@ public class TIROStaticAnalysis {
                 .desc("Do not print extracted paths in standard output")
                 .build()
         );
+        options.addOption(Option.builder().longOpt("log-level")
+                .required(false).hasArg(true).argName("level")
+                .desc("Minimum level of printed messages: \"debug\", \"info\", \"warn\" or "
+                        + "\"error\" (default: debug)")
+                .build()
+        );
+        options.addOption(Option.builder().longOpt("trace")
+                .required(false).hasArg(true).argName("file")
+                .desc("Also write all printed messages into a JSON Lines trace file")
+                .build()
+        );
+        options.addOption(Option.builder().longOpt("monitor-port")
+                .required(false).hasArg(true).argName("port")
+                .desc("Serve the live analysis status in Prometheus text format at "
+                        + "http://localhost:<port>/metrics")
+                .build()
+        );
         options.addOption(Option.builder("y").longOpt("constraints")
                 .required(false).hasArg(false)
                 .desc("Print extracted constraints in standard output")
@@ -221,9 +618,12 @@ public class TIROStaticAnalysis {
 
         OptionGroup targetOptions = new OptionGroup();
         targetOptions.addOption(Option.builder("t").longOpt("targets")
-                .required(false).hasArg(true).argName("file")
+                .required(false).hasArg(true).argName("[name=]file,...")
                 .desc("Input file listing target methods for analysis "
-                        + "(default: \"./targetedMethods.txt\")")
+                        + "(default: \"./targetedMethods.txt\").  Multiple target groups, "
+                        + "separated by commas, are analyzed in a single pass, and each "
+                        + "event chain is tagged with the groups whose targets it reaches "
+                        + "(a group is named after its file unless a name is given)")
                 .build()
         );
 
@@ -231,106 +631,236 @@ public class TIROStaticAnalysis {
         return options;
     }
 
-    private static void parseCommandLineOptions(Options options, CommandLine commands)
+    private static Configuration parseCommandLineOptions(Options options, CommandLine commands)
             throws Exception {
-        if (commands.hasOption("h")) {
-            printHelp(options);
-            System.exit(0);
+        Configuration config = new Configuration();
+        List<String> operands = commands.getArgList();
+        if (operands.size() != 1) {
+            throw new ParseException("Missing APK file", 0);
         }
 
-        if (commands.hasOption("v")) {
-            System.out.println("TIRO version: " + Config.Version);
-            System.exit(0);
+        config.ApkFile = operands.get(0);
+        config.OutputDirectory = commands.getOptionValue("o", "./tiroOutput");
+
+        if (commands.hasOption("d")) {
+            try {
+                config.MaxDependencyDepth = Integer.parseInt(commands.getOptionValue("d"));
+            } catch (Exception e) {
+                throw new ParseException("Cannot parse dependency depth parameter: "
+                        + e.toString(), 0);
+            }
         }
 
-        List<String> operands = commands.getArgList();
-        if (operands.size() != 1) {
-            throw new ParseException("Missing APK file", 0);
+        if (commands.hasOption("cache-dir")) {
+            config.CacheDirectory = commands.getOptionValue("cache-dir");
         }
 
-        Config.ApkFile = operands.get(0);
-        Config.OutputDirectory = commands.getOptionValue("o", "./tiroOutput");
+        if (commands.hasOption("summary-store-size")) {
+            try {
+                config.SummaryStoreSize = Integer.parseInt(
+                        commands.getOptionValue("summary-store-size"));
+            } catch (Exception e) {
+                throw new ParseException("Cannot parse summary store size parameter: "
+                        + e.toString(), 0);
+            }
+        }
 
-        // Clean output directory
-        try {
-            File outputDirFile = new File(Config.OutputDirectory);
-            outputDirFile.mkdirs();
+        if (commands.hasOption("previous")) {
+            config.PreviousOutputDirectory = commands.getOptionValue("previous");
+            if (Paths.get(config.PreviousOutputDirectory).toAbsolutePath().normalize().equals(
+                    Paths.get(config.OutputDirectory).toAbsolutePath().normalize())) {
+                // The output directory is cleaned before the analysis
+                throw new ParseException(
+                        "The previous output directory cannot be the output directory", 0);
+            }
+        }
 
-            FileUtils.cleanDirectory(outputDirFile);
-        } catch (Exception e) {
-            Output.error(e.toString());
-            e.printStackTrace();
+        if (commands.hasOption("callback-cg")) {
+            String algorithm = commands.getOptionValue("callback-cg");
+            try {
+                config.CallbackCallGraph =
+                        Configuration.CallGraphAlgorithm.valueOf(algorithm.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new ParseException("Unknown call graph algorithm: " + algorithm, 0);
+            }
+        }
+
+        if (commands.hasOption("lazy-heap-writes")) {
+            config.LazyHeapWrites = true;
+        }
+
+        if (commands.hasOption("f")) {
+            String format = commands.getOptionValue("f");
+            if (format.equals("python")) {
+                config.OutputConstraintFormat = Configuration.ConstraintFormat.PYTHON;
+            } else if (format.equals("smt2")) {
+                config.OutputConstraintFormat = Configuration.ConstraintFormat.SMTLIB2;
+            } else {
+                throw new ParseException("Unknown constraint format: " + format, 0);
+            }
+        }
+
+        if (commands.hasOption("pack-constraints")) {
+            config.PackConstraints = true;
+        }
+
+        if (commands.hasOption("stream-output")) {
+            config.StreamingOutput = true;
+        }
+
+        if (commands.hasOption("shard")) {
+            String shard = commands.getOptionValue("shard");
+            try {
+                String[] parts = shard.split("/");
+                config.ShardIndex = Integer.parseInt(parts[0]);
+                config.ShardCount = Integer.parseInt(parts[1]);
+            } catch (Exception e) {
+                throw new ParseException("Cannot parse shard parameter: " + shard, 0);
+            }
+            if (config.ShardCount < 1 || config.ShardIndex < 0
+                    || config.ShardIndex >= config.ShardCount) {
+                throw new ParseException("Invalid shard: " + shard, 0);
+            }
+            if (config.OutputConstraintFormat != Configuration.ConstraintFormat.PYTHON
+                    || config.PackConstraints) {
+                // Shards are merged by event chain (see ShardMerge).
+                throw new ParseException("--shard requires unpacked Python constraints", 0);
+            }
+        }
+
+        if (commands.hasOption("resume")) {
+            if (config.OutputConstraintFormat != Configuration.ConstraintFormat.PYTHON
+                    || config.PackConstraints) {
+                // The other formats write all constraints into a single file per analysis.
+                throw new ParseException(
+                        "--resume requires unpacked Python constraints", 0);
+            }
+            config.Resume = true;
         }
 
         if (commands.hasOption("j")) {
-            Config.MultiThreading = true;
+            config.MultiThreading = true;
 
             try {
-                Config.NumberOfThreads = Integer.parseInt(commands.getOptionValue("j"));
+                config.NumberOfThreads = Integer.parseInt(commands.getOptionValue("j"));
             } catch (Exception e) {
-                System.err.println("Cannot parse multi-threading parameter");
-                System.err.println("Exception: " + e.toString());
-                System.exit(1);
+                throw new ParseException("Cannot parse multi-threading parameter: "
+                        + e.toString(), 0);
             }
 
-            if (Config.NumberOfThreads <= 1) {
+            if (config.NumberOfThreads <= 1) {
                 System.err.println("Warning: ignoring multi-threading parameter ("
-                        + Config.NumberOfThreads + ")");
-                Config.MultiThreading = false;
+                        + config.NumberOfThreads + ")");
+                config.MultiThreading = false;
             }
         }
 
         if (commands.hasOption("k")) {
             try {
-                Config.Timeout = 60000 * Integer.parseInt(commands.getOptionValue("k"));
+                config.Timeout = 60000 * Integer.parseInt(commands.getOptionValue("k"));
             } catch (Exception e) {
-                System.err.println("Cannot parse timeout parameter");
-                System.err.println("Exception: " + e.toString());
-                System.exit(1);
+                throw new ParseException("Cannot parse timeout parameter: "
+                        + e.toString(), 0);
             }
         }
 
         if (commands.hasOption("x")) {
-            Config.PrintOutput = false;
+            config.PrintOutput = false;
+        }
+
+        if (commands.hasOption("log-level")) {
+            String level = commands.getOptionValue("log-level");
+            try {
+                config.LogLevel = Output.Level.valueOf(level.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new ParseException("Unknown log level: " + level, 0);
+            }
+        }
+
+        if (commands.hasOption("trace")) {
+            config.TraceFile = commands.getOptionValue("trace");
         }
 
+
         if (commands.hasOption("y")) {
-            Config.PrintConstraints = true;
+            config.PrintConstraints = true;
         }
 
         if (commands.hasOption("z")) {
-            Config.PrintSootOutput = true;
+            config.PrintSootOutput = true;
+        }
+
+        Set<String> targetMethods = new HashSet<String>();
+        for (String targetGroup
+                : commands.getOptionValue("t", "./targetedMethods.txt").split(",")) {
+            String targetMethodsFile = targetGroup;
+            String groupName = new File(targetGroup).getName().replaceFirst("\\.[^.]*$", "");
+            if (targetGroup.contains("=")) {
+                groupName = targetGroup.substring(0, targetGroup.indexOf('='));
+                targetMethodsFile = targetGroup.substring(targetGroup.indexOf('=') + 1);
+            }
+
+            //Output.log("Target: " + targetMethodsFile);
+            Set<String> groupTargetMethods = readTargetMethods(targetMethodsFile);
+            if (config.TargetGroups.put(groupName, groupTargetMethods) != null) {
+                throw new ParseException("Duplicate target group name: " + groupName, 0);
+            }
+            targetMethods.addAll(groupTargetMethods);
         }
+        config.TargetMethods = Collections.unmodifiableSet(targetMethods);
 
-        String targetMethodsFile = commands.getOptionValue("t", "./targetedMethods.txt");
-        //Output.log("Target: " + targetMethodsFile);
+        return config;
+    }
 
+    private static Set<String> readTargetMethods(String targetMethodsFile)
+            throws ParseException {
         try {
-            BufferedReader br = new BufferedReader(new FileReader(targetMethodsFile));
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.isEmpty() || line.startsWith("#")) {
-                    continue;
-                }
+            return _targetMethodsCache.get(targetMethodsFile);
+        } catch (Exception e) {
+            throw new ParseException("Cannot read target methods file: "
+                    + e.toString(), 0);
+        }
+    }
 
-                //String methodSignature = line.substring(line.indexOf("<") + 1,
-                //    line.lastIndexOf(">"));
-                String methodSignature = line;
-                Config.TargetMethods.add(methodSignature);
+    private static Set<String> readTargetMethods(Path targetMethodsFile)
+            throws IOException {
+        Set<String> targetMethods = new HashSet<String>();
+        BufferedReader br = new BufferedReader(new FileReader(targetMethodsFile.toFile()));
+        String line;
+        while ((line = br.readLine()) != null) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
             }
 
-            br.close();
+            //String methodSignature = line.substring(line.indexOf("<") + 1,
+            //    line.lastIndexOf(">"));
+            String methodSignature = line;
+            targetMethods.add(methodSignature);
+        }
+
+        br.close();
+
+        return Collections.unmodifiableSet(targetMethods);
+    }
 
+    private static void cleanOutputDirectory() {
+        try {
+            File outputDirFile = new File(Config.OutputDirectory);
+            outputDirFile.mkdirs();
+
+            FileUtils.cleanDirectory(outputDirFile);
         } catch (Exception e) {
-            System.err.println("Cannot read target methods file");
-            System.err.println("Exception: " + e.toString());
-            System.exit(1);
+            Output.error(e.toString());
+            e.printStackTrace();
         }
     }
 
     private static void printHelp(Options options) {
         HelpFormatter helpFormatter = new HelpFormatter();
-        helpFormatter.printHelp("TIROStaticAnalysis [options] <APK>",
+        helpFormatter.printHelp("TIROStaticAnalysis [options] <APK> | "
+                + "TIROStaticAnalysis --batch <file|dir> [options] | "
+                + "TIROStaticAnalysis --daemon <port> [options] | "
+                + "TIROStaticAnalysis --merge [-o <dir>] <shard dir>...",
                 "output: extracted paths and constraints in \"--output\" directory",
                 options, "", false);
     }
@@ -0,0 +1,94 @@
+package tiro.target;
+
+import tiro.*;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Timer;
+import java.util.TimerTask;
+
+// Keeps all event chains in a single JSON document, which is periodically rewritten to
+// appInfo.json.
+
+class AppInfoDocumentWriter extends AppInfoWriter {
+    private JsonObject _eventChainsJson = new JsonObject();
+    private Object _eventChainJsonLock = new Object();
+    private Timer _writerTimer;
+
+    private class WriterTask extends TimerTask {
+        @Override
+        public void run() {
+            AppInfoDocumentWriter.this.writeIntermediateFile();
+        }
+    }
+
+    public AppInfoDocumentWriter(ManifestAnalysis manifestAnalysis) {
+        super(manifestAnalysis);
+
+        _writerTimer = new Timer("AppInfoWriterThread");
+        _writerTimer.schedule(new WriterTask(), 600000, 600000);
+    }
+
+    @Override
+    public void writeFinalFile() {
+        // Cancel the timer task
+        _writerTimer.cancel();
+        _writerTimer.purge();
+
+        closeFileWriter();
+
+        // Write final file to the temp file first, in case we get timed out while writing
+        writeIntermediateFile();
+    }
+
+    @Override
+    protected void addEventChainJson(String eventChainId, JsonObject eventChainJson) {
+        synchronized (_eventChainJsonLock) {
+            _eventChainsJson.add(eventChainId, eventChainJson);
+        }
+    }
+
+    public void writeIntermediateFile() {
+        String tmpFilePath = TIROStaticAnalysis.Config.OutputDirectory
+                + "/appInfo.json.tmp";
+        writeToFile(tmpFilePath);
+
+        String filePath = TIROStaticAnalysis.Config.OutputDirectory + "/appInfo.json";
+
+        try {
+            Files.move(Paths.get(tmpFilePath), Paths.get(filePath),
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            e.printStackTrace();
+            writeToFile(filePath);
+        }
+    }
+
+    //public void writeToFile() {
+    //    writeToFile(TIROStaticAnalysis.Config.OutputDirectory + "/appInfo.json");
+    //}
+
+    public void writeToFile(String filePath) {
+        synchronized (_eventChainJsonLock) {
+            JsonObject appInfoJson = createHeaderJson();
+            appInfoJson.add("EventChains", _eventChainsJson);
+
+            try {
+                Gson gson = new GsonBuilder().setPrettyPrinting().create();
+                PrintWriter appInfoWriter = new PrintWriter(filePath, "UTF-8");
+                appInfoWriter.print(gson.toJson(appInfoJson));
+                appInfoWriter.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
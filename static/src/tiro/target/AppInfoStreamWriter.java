@@ -0,0 +1,212 @@
+package tiro.target;
+
+import tiro.*;
+import tiro.target.event.EventChain;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Appends each event chain to appInfo.jsonl (JSON Lines) as soon as it has been analyzed,
+// so that finished event chains do not need to be kept in memory.  The file contains:
+//     {"Type":"Header", "Version":..., "Package":..., ...}
+//     {"Type":"EventChain", "Id":"<id>", "EventChain":{...}}     (one per event chain)
+//     {"Type":"Trailer", "EventChains":<count>, "Index":{"<id>":<byte offset>, ...}}
+// Lines are appended by the file writer thread, and the file is synced to disk periodically,
+// so after a crash it holds every event chain up to the last sync (a missing trailer
+// indicates an incomplete run).  When the analysis completes, appInfo.json is generated
+// from it one event chain at a time.
+
+class AppInfoStreamWriter extends AppInfoWriter {
+    // Sync to disk after this many lines or this much time, whichever comes first.
+    private static final int SYNC_LINES = 100;
+    private static final long SYNC_INTERVAL = 10000;
+
+    private final String _streamFilePath =
+            TIROStaticAnalysis.Config.OutputDirectory + "/appInfo.jsonl";
+    private final Gson _gson = new Gson();
+
+    // Accessed only by the file writer thread
+    private FileChannel _channel = null;
+    private OutputStream _output = null;
+    private int _unsyncedLines = 0;
+    private long _lastSyncTime = System.currentTimeMillis();
+
+    // Byte offset of each event chain's line (assigned when the line is queued)
+    private final Map<String, Long> _index = new LinkedHashMap<String, Long>();
+    private long _offset = 0;
+    private boolean _closed = false;
+
+    public AppInfoStreamWriter(ManifestAnalysis manifestAnalysis) {
+        super(manifestAnalysis);
+
+        _fileWriter.submit(() -> {
+            FileOutputStream fileOutput = new FileOutputStream(_streamFilePath);
+            _channel = fileOutput.getChannel();
+            _output = new BufferedOutputStream(fileOutput);
+        });
+
+        JsonObject headerJson = new JsonObject();
+        headerJson.addProperty("Type", "Header");
+        createHeaderJson().entrySet().forEach(e -> {
+            headerJson.add(e.getKey(), e.getValue());
+        });
+
+        synchronized (this) {
+            append(toLine(headerJson), true);
+        }
+    }
+
+    @Override
+    protected void addEventChainJson(String eventChainId, JsonObject eventChainJson) {
+        // Serialize outside of the lock; only the offset assignment is serialized.
+        JsonObject lineJson = new JsonObject();
+        lineJson.addProperty("Type", "EventChain");
+        lineJson.addProperty("Id", eventChainId);
+        lineJson.add("EventChain", eventChainJson);
+        byte[] line = toLine(lineJson);
+
+        synchronized (this) {
+            if (_closed) {
+                return;
+            }
+
+            _index.put(eventChainId, _offset);
+            append(line, false);
+        }
+    }
+
+    @Override
+    public void writeFinalFile() {
+        synchronized (this) {
+            if (_closed) {
+                return;
+            }
+
+            JsonObject indexJson = new JsonObject();
+            _index.forEach((id, offset) -> { indexJson.addProperty(id, offset); });
+
+            JsonObject trailerJson = new JsonObject();
+            trailerJson.addProperty("Type", "Trailer");
+            trailerJson.addProperty("Completed", (new Date()).toString());
+            trailerJson.addProperty("EventChains", _index.size());
+            trailerJson.add("Index", indexJson);
+
+            append(toLine(trailerJson), true);
+            _fileWriter.submit(() -> {
+                if (_output != null) {
+                    _output.close();
+                    _output = null;
+                    _channel = null;
+                }
+            });
+
+            _closed = true;
+        }
+
+        closeFileWriter();
+        writeDocument();
+    }
+
+    // Generates appInfo.json (same format as AppInfoDocumentWriter) from the stream file,
+    // reading one event chain at a time.
+    private void writeDocument() {
+        String tmpFilePath = TIROStaticAnalysis.Config.OutputDirectory + "/appInfo.json.tmp";
+        String filePath = TIROStaticAnalysis.Config.OutputDirectory + "/appInfo.json";
+        JsonParser parser = new JsonParser();
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                     new FileInputStream(_streamFilePath), StandardCharsets.UTF_8));
+             JsonWriter writer = new JsonWriter(new OutputStreamWriter(
+                     new FileOutputStream(tmpFilePath), StandardCharsets.UTF_8))) {
+            writer.setIndent("  ");
+            writer.beginObject();
+
+            boolean inEventChains = false;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JsonObject lineJson = parser.parse(line).getAsJsonObject();
+                String type = lineJson.get("Type").getAsString();
+
+                if (type.equals("Header")) {
+                    for (Map.Entry<String, JsonElement> entry : lineJson.entrySet()) {
+                        if (!entry.getKey().equals("Type")) {
+                            writer.name(entry.getKey());
+                            _gson.toJson(entry.getValue(), writer);
+                        }
+                    }
+
+                    writer.name("EventChains");
+                    writer.beginObject();
+                    inEventChains = true;
+
+                } else if (type.equals("EventChain") && inEventChains) {
+                    writer.name(lineJson.get("Id").getAsString());
+                    _gson.toJson(lineJson.get("EventChain"), writer);
+                }
+            }
+
+            if (inEventChains) {
+                writer.endObject();
+            }
+            writer.endObject();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
+
+        try {
+            Files.move(Paths.get(tmpFilePath), Paths.get(filePath),
+                       StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    private byte[] toLine(JsonObject json) {
+        // Gson's compact output does not contain newlines, so each object is a single line.
+        return (_gson.toJson(json) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Queues the line to be appended to the stream file.  Must be called while holding the
+    // lock, so that lines are queued in the order of their offsets.
+    private void append(byte[] line, boolean forceSync) {
+        _offset += line.length;
+
+        _fileWriter.submit(() -> {
+            if (_output == null) {
+                return;
+            }
+
+            _output.write(line);
+
+            _unsyncedLines++;
+            if (forceSync || _unsyncedLines >= SYNC_LINES
+                    || System.currentTimeMillis() - _lastSyncTime >= SYNC_INTERVAL) {
+                _output.flush();
+                _channel.force(false);
+
+                _unsyncedLines = 0;
+                _lastSyncTime = System.currentTimeMillis();
+            }
+        });
+    }
+}
@@ -1,100 +1,113 @@
 package tiro.target;
 
 import tiro.*;
-import tiro.target.event.Event;
+import tiro.target.event.ConstraintWriter;
 import tiro.target.event.EventChain;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 
-import java.io.PrintWriter;
+import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.Date;
-import java.util.Timer;
-import java.util.TimerTask;
-
-class AppInfoWriter {
-    private final ManifestAnalysis _manifestAnalysis;
-    private JsonObject _eventChainsJson = new JsonObject();
-    private Object _eventChainJsonLock = new Object();
-    private Timer _writerTimer;
-
-    private class WriterTask extends TimerTask {
-        @Override
-        public void run() {
-            AppInfoWriter.this.writeIntermediateFile();
+import java.util.stream.Stream;
+
+// Writes the extracted event chains into the output directory.  By default, all event chains
+// are kept in a single document that is rewritten periodically; with "--stream-output",
+// they are appended to a JSON Lines file as they complete.
+
+abstract class AppInfoWriter {
+    protected final ManifestAnalysis _manifestAnalysis;
+    // Output file I/O is performed on a separate thread, not by the analysis threads.
+    protected final AsyncFileWriter _fileWriter = new AsyncFileWriter("OutputWriterThread");
+    protected final ConstraintWriter _constraintWriter = ConstraintWriter.create(_fileWriter);
+
+    public static AppInfoWriter create(ManifestAnalysis manifestAnalysis) {
+        if (TIROStaticAnalysis.Config.StreamingOutput) {
+            return new AppInfoStreamWriter(manifestAnalysis);
+        } else {
+            return new AppInfoDocumentWriter(manifestAnalysis);
         }
     }
 
-    public AppInfoWriter(ManifestAnalysis manifestAnalysis) {
+    protected AppInfoWriter(ManifestAnalysis manifestAnalysis) {
         _manifestAnalysis = manifestAnalysis;
-
-        _writerTimer = new Timer("AppInfoWriterThread");
-        _writerTimer.schedule(new WriterTask(), 600000, 600000);
     }
 
-    public void writeFinalFile() {
-        // Cancel the timer task
-        _writerTimer.cancel();
-        _writerTimer.purge();
-
-        // Write final file to the temp file first, in case we get timed out while writing
-        writeIntermediateFile();
+    // Adds the event chain (and writes its constraints), and returns its JSON.
+    public JsonObject addEventChain(EventChain eventChain) {
+        JsonObject eventChainJson = eventChain.toJson(_constraintWriter);
+        addEventChainJson(Integer.toString(eventChain.getId()), eventChainJson);
+        return eventChainJson;
     }
 
-    public void addEventChain(EventChain eventChain) {
-        JsonObject eventChainJson = eventChain.toJson();
-
-        synchronized (_eventChainJsonLock) {
-            _eventChainsJson.add(Integer.toString(eventChain.getId()), eventChainJson);
+    // Adds an event chain of a previous analysis, and copies its constraint files (unless
+    // previousConstraintDirectory is null, i.e. they are already in the output directory).
+    public void addReusedEventChain(int eventChainId, JsonObject eventChainJson,
+                                    Path previousConstraintDirectory) {
+        if (previousConstraintDirectory == null) {
+            addEventChainJson(Integer.toString(eventChainId), eventChainJson);
+            return;
         }
-    }
 
-    public void writeIntermediateFile() {
-        String tmpFilePath = TIROStaticAnalysis.Config.OutputDirectory
-                + "/appInfo.json.tmp";
-        writeToFile(tmpFilePath);
+        Path constraintDirectory = Paths.get(TIROStaticAnalysis.Config.OutputDirectory,
+                "constraints", Integer.toString(eventChainId));
+        _fileWriter.submit(() -> {
+            if (!Files.isDirectory(previousConstraintDirectory)) {
+                return;
+            }
 
-        String filePath = TIROStaticAnalysis.Config.OutputDirectory + "/appInfo.json";
+            Files.createDirectories(constraintDirectory);
+            try (Stream<Path> files = Files.list(previousConstraintDirectory)) {
+                for (Path file : (Iterable<Path>)files::iterator) {
+                    Files.copy(file, constraintDirectory.resolve(file.getFileName()),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        });
 
-        try {
-            Files.move(Paths.get(tmpFilePath), Paths.get(filePath),
-                       StandardCopyOption.ATOMIC_MOVE);
-        } catch (Exception e) {
-            e.printStackTrace();
-            writeToFile(filePath);
-        }
+        addEventChainJson(Integer.toString(eventChainId), eventChainJson);
     }
 
-    //public void writeToFile() {
-    //    writeToFile(TIROStaticAnalysis.Config.OutputDirectory + "/appInfo.json");
-    //}
+    protected abstract void addEventChainJson(String eventChainId, JsonObject eventChainJson);
 
-    public void writeToFile(String filePath) {
-        synchronized (_eventChainJsonLock) {
-            JsonObject appInfoJson = new JsonObject();
+    // Runs the task on the output writer thread, after the event chains (and constraints)
+    // added so far have been written.
+    public void submit(AsyncFileWriter.WriteTask task) {
+        _fileWriter.submit(task);
+    }
 
-            appInfoJson.addProperty("Version", TIROStaticAnalysis.Config.Version);
-            appInfoJson.addProperty("Generated", (new Date()).toString());
+    public abstract void writeFinalFile();
 
-            appInfoJson.addProperty("Package", _manifestAnalysis.getPackageName());
-            appInfoJson.addProperty("MainActivity", _manifestAnalysis.getMainActivity());
+    // Waits for all queued output to be written.
+    protected void closeFileWriter() {
+        _constraintWriter.close();
+        _fileWriter.close();
+        _fileWriter.printStatistics();
+    }
 
-            appInfoJson.add("EventChains", _eventChainsJson);
+    protected JsonObject createHeaderJson() {
+        JsonObject headerJson = new JsonObject();
 
+        headerJson.addProperty("Version", TIROStaticAnalysis.Config.Version);
+        headerJson.addProperty("Generated", (new Date()).toString());
+
+        headerJson.addProperty("Package", _manifestAnalysis.getPackageName());
+        headerJson.addProperty("MainActivity", _manifestAnalysis.getMainActivity());
+        if (TIROStaticAnalysis.Config.ShardCount > 1) {
+            // Checked by ShardMerge, so that only shards of the same analysis are merged
+            headerJson.addProperty("Shard", TIROStaticAnalysis.Config.ShardIndex + "/"
+                    + TIROStaticAnalysis.Config.ShardCount);
             try {
-                Gson gson = new GsonBuilder().setPrettyPrinting().create();
-                PrintWriter appInfoWriter = new PrintWriter(filePath, "UTF-8");
-                appInfoWriter.print(gson.toJson(appInfoJson));
-                appInfoWriter.close();
-            } catch (Exception e) {
+                headerJson.addProperty("ApkHash", AnalysisCache.getApkHash());
+            } catch (IOException e) {
                 e.printStackTrace();
             }
+            headerJson.addProperty("Options", ShardMerge.getOptionsHash());
         }
+
+        return headerJson;
     }
 }
@@ -0,0 +1,203 @@
+package tiro.target;
+
+import tiro.Output;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Performs output file I/O on a dedicated writer thread, so that the analysis threads only
+// serialize their results and never touch the filesystem.  Writes are queued in a bounded
+// queue (producers block while it is full) and executed in the order they were submitted.
+// The writer thread drains the queue in batches, creating the directories needed by a batch
+// before writing its files.  Once the writer has been closed, further writes are rejected
+// (and reported), and the writes queued before the close are all completed.
+
+public class AsyncFileWriter {
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int BATCH_SIZE = 64;
+
+    public static interface WriteTask {
+        public void write() throws IOException;
+    }
+
+    private static class QueuedWrite {
+        public final String FilePath;   // File written by the task, or null
+        public final WriteTask Task;
+        public final long SubmitTime = System.nanoTime();
+
+        public QueuedWrite(String filePath, WriteTask task) {
+            FilePath = filePath;
+            Task = task;
+        }
+    }
+
+    // Marks the end of the queue
+    private static final QueuedWrite CLOSE = new QueuedWrite(null, null);
+
+    private final BlockingQueue<QueuedWrite> _queue =
+            new ArrayBlockingQueue<QueuedWrite>(QUEUE_CAPACITY);
+    private final Thread _thread;
+    private volatile boolean _closed = false;   // Set under the _queue lock
+
+    // Accessed only by the writer thread
+    private final Set<String> _createdDirectories = new HashSet<String>();
+
+    private final AtomicInteger _maxQueueDepth = new AtomicInteger();
+    private final AtomicLong _writeCount = new AtomicLong();
+    private final AtomicLong _totalLatency = new AtomicLong();
+    private final AtomicLong _maxLatency = new AtomicLong();
+    private final AtomicLong _totalWriteTime = new AtomicLong();
+    private final AtomicInteger _rejectedWrites = new AtomicInteger();
+
+    public AsyncFileWriter(String name) {
+        _thread = new Thread(this::run, name);
+        _thread.setDaemon(true);
+        _thread.start();
+    }
+
+    // Writes the contents to the file, creating its directory if needed.
+    public void writeFile(String filePath, String contents) {
+        enqueue(new QueuedWrite(filePath, () -> {
+            PrintWriter writer = new PrintWriter(filePath, "UTF-8");
+            writer.print(contents);
+            writer.close();
+        }));
+    }
+
+    // Runs the task on the writer thread, after all previously submitted writes.
+    public void submit(WriteTask task) {
+        enqueue(new QueuedWrite(null, task));
+    }
+
+    // Waits until all submitted writes have completed and stops the writer thread.
+    public void close() {
+        synchronized (_queue) {
+            if (_closed) {
+                return;
+            }
+
+            enqueue(CLOSE);
+            _closed = true;
+        }
+
+        try {
+            _thread.join();
+        } catch (InterruptedException e) {
+            Output.warn("Interrupted while waiting for output writes to complete");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public int getQueueDepth() {
+        return _queue.size();
+    }
+
+    public void printStatistics() {
+        if (_rejectedWrites.get() > 0) {
+            Output.warn(_rejectedWrites.get()
+                    + " writes submitted after the output writer was closed were lost");
+        }
+
+        long writeCount = _writeCount.get();
+        if (writeCount == 0) {
+            return;
+        }
+
+        Output.debug(String.format("Output writer: %d writes, max queue depth %d, "
+                + "latency %.2f ms avg / %.2f ms max, write time %.2f ms avg", writeCount,
+                _maxQueueDepth.get(), (double)_totalLatency.get() / writeCount / 1e6,
+                (double)_maxLatency.get() / 1e6,
+                (double)_totalWriteTime.get() / writeCount / 1e6));
+    }
+
+    private void enqueue(QueuedWrite write) {
+        // Checked and queued under the lock, so that no write can be queued after CLOSE.  The
+        // writer thread never takes the lock, so producers waiting for space do not block it.
+        synchronized (_queue) {
+            if (_closed) {
+                _rejectedWrites.incrementAndGet();
+                Output.error("Write submitted after output writer was closed: "
+                        + (write.FilePath != null ? write.FilePath : "task"));
+                return;
+            }
+
+            // Analysis threads are interrupted when they time out, but an accepted result must
+            // still be written completely, so wait for space in the queue regardless.
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    _queue.put(write);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        _maxQueueDepth.accumulateAndGet(_queue.size(), Math::max);
+    }
+
+    private void run() {
+        List<QueuedWrite> batch = new ArrayList<QueuedWrite>(BATCH_SIZE);
+        boolean closing = false;
+
+        while (true) {
+            try {
+                batch.add(_queue.take());
+            } catch (InterruptedException e) {
+                continue;
+            }
+            _queue.drainTo(batch, BATCH_SIZE - 1);
+
+            // Create the directories of the whole batch up front.
+            for (QueuedWrite write : batch) {
+                if (write.FilePath != null) {
+                    String directory = new File(write.FilePath).getParent();
+                    if (directory != null && _createdDirectories.add(directory)) {
+                        new File(directory).mkdirs();
+                    }
+                }
+            }
+
+            for (QueuedWrite write : batch) {
+                if (write == CLOSE) {
+                    closing = true;
+                    continue;
+                }
+
+                long startTime = System.nanoTime();
+                try {
+                    write.Task.write();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+
+                long endTime = System.nanoTime();
+                long latency = endTime - write.SubmitTime;
+                _writeCount.incrementAndGet();
+                _totalLatency.addAndGet(latency);
+                _maxLatency.accumulateAndGet(latency, Math::max);
+                _totalWriteTime.addAndGet(endTime - startTime);
+            }
+
+            batch.clear();
+
+            // Complete the writes queued before the close, if any, before stopping.
+            if (closing && _queue.isEmpty()) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package tiro.target;
+
+import tiro.*;
+import tiro.target.event.CallPath;
+import tiro.target.event.EventChain;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.stream.Stream;
+
+// Checkpoint of the targeted paths analysis, so that an analysis that was killed (e.g. out
+// of memory) can be resumed with "--resume" instead of starting from scratch.
+//
+// A line is appended to <output>/checkpoint.jsonl for each completed path (including false
+// positives):
+//     {"Path":"<path id>", "Record":{...}, "EventChain":{...}}
+// where the path ID is CallPath.getId(), Record is the path's IncrementalAnalysis record
+// (with the ID of its event chain, -1 for false positives), and EventChain is the event
+// chain as in appInfo.json.  Lines are written by the output writer thread after the event
+// chain's constraint files, and synced to disk periodically, so a checkpointed event chain
+// is complete.  The writes (on the writer thread) and close() are synchronized, so that the
+// checkpoint can also be closed when the analysis fails.
+//
+// When resuming, the output directory is not cleaned.  The checkpointed paths are restored
+// with the IDs of their event chains (and their constraint files), the constraint files of
+// incomplete event chains are removed, and new event chains get higher IDs.
+
+class Checkpoint {
+    static final String FILE_NAME = "checkpoint.jsonl";
+
+    // Sync to disk after this many lines or this much time, whichever comes first.
+    private static final int SYNC_LINES = 100;
+    private static final long SYNC_INTERVAL = 10000;
+
+    private final String _filePath =
+            TIROStaticAnalysis.Config.OutputDirectory + "/" + FILE_NAME;
+    private final Gson _gson = new Gson();
+
+    // Path ID -> checkpoint line, of the restored paths
+    private final Map<String, JsonObject> _restoredPaths = new HashMap<String, JsonObject>();
+
+    // Guarded by this (once the checkpoint has been created)
+    private FileChannel _channel = null;
+    private OutputStream _output = null;
+    private int _unsyncedLines = 0;
+    private long _lastSyncTime = System.currentTimeMillis();
+
+    public Checkpoint() {
+        if (TIROStaticAnalysis.Config.Resume) {
+            load();
+        }
+
+        // The checkpoint is rewritten with the restored paths (which drops a partial last
+        // line) into a temporary file that then replaces it, so that the restored paths are
+        // never lost, even if the analysis is killed again meanwhile.
+        Path file = Paths.get(_filePath);
+        try {
+            Path tempFile = AnalysisCache.createTempFile(file);
+            try {
+                try (FileOutputStream tempOutput = new FileOutputStream(tempFile.toFile());
+                     OutputStream output = new BufferedOutputStream(tempOutput)) {
+                    for (JsonObject lineJson : _restoredPaths.values()) {
+                        output.write(toLine(lineJson));
+                    }
+                    output.flush();
+                    tempOutput.getChannel().force(false);
+                }
+                AnalysisCache.replace(tempFile, file);
+            } finally {
+                Files.deleteIfExists(tempFile);
+            }
+
+            FileOutputStream fileOutput = new FileOutputStream(_filePath, true);
+            _channel = fileOutput.getChannel();
+            _output = new BufferedOutputStream(fileOutput);
+        } catch (IOException e) {
+            Output.warn("Cannot write checkpoint " + _filePath + ": " + e.toString());
+            close();
+        }
+    }
+
+    // Returns the checkpoint line of the path, or null if it must be analyzed.
+    public JsonObject getRestoredPath(CallPath path) {
+        return _restoredPaths.get(path.getId());
+    }
+
+    // Appends the result of a completed path (eventChainJson is null for false positives),
+    // once the event chain has been written.
+    public void addPath(AppInfoWriter appInfoWriter, CallPath path, JsonObject recordJson,
+                        JsonObject eventChainJson) {
+        JsonObject lineJson = new JsonObject();
+        lineJson.addProperty("Path", path.getId());
+        lineJson.add("Record", recordJson);
+        if (eventChainJson != null) {
+            lineJson.add("EventChain", eventChainJson);
+        }
+        byte[] line = toLine(lineJson);
+
+        appInfoWriter.submit(() -> { write(line); });
+    }
+
+    // Closes the checkpoint; lines that have not been written yet are dropped.
+    public synchronized void close() {
+        if (_output != null) {
+            try {
+                sync();
+                _output.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            _output = null;
+            _channel = null;
+        }
+    }
+
+    private void load() {
+        Set<String> restoredEventChains = new HashSet<String>();
+        int nextEventChainId = 0;
+
+        JsonParser parser = new JsonParser();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(_filePath),
+                StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JsonObject lineJson;
+                try {
+                    lineJson = parser.parse(line).getAsJsonObject();
+                } catch (RuntimeException e) {
+                    // Partial line written when the analysis was killed
+                    break;
+                }
+
+                _restoredPaths.put(lineJson.get("Path").getAsString(), lineJson);
+                int eventChainId = lineJson.getAsJsonObject("Record")
+                        .get("EventChain").getAsInt();
+                if (eventChainId >= 0) {
+                    restoredEventChains.add(Integer.toString(eventChainId));
+                    nextEventChainId = Math.max(nextEventChainId, eventChainId + 1);
+                }
+            }
+        } catch (Exception e) {
+            Output.warn("Cannot read checkpoint " + _filePath + ": " + e.toString());
+        }
+
+        Output.progress("Resuming analysis: " + _restoredPaths.size()
+                + " targeted paths were completed");
+        EventChain.reserveIds(nextEventChainId);
+
+        // Constraints of event chains that were not completed
+        File[] constraintDirectories = new File(TIROStaticAnalysis.Config.OutputDirectory,
+                "constraints").listFiles();
+        if (constraintDirectories != null) {
+            for (File directory : constraintDirectories) {
+                if (!restoredEventChains.contains(directory.getName())) {
+                    deleteDirectory(directory.toPath());
+                }
+            }
+        }
+    }
+
+    private synchronized void write(byte[] line) throws IOException {
+        if (_output == null) {
+            return;
+        }
+
+        _output.write(line);
+        _unsyncedLines++;
+        if (_unsyncedLines >= SYNC_LINES
+                || System.currentTimeMillis() - _lastSyncTime >= SYNC_INTERVAL) {
+            sync();
+        }
+    }
+
+    private void sync() throws IOException {
+        _output.flush();
+        _channel.force(false);
+        _unsyncedLines = 0;
+        _lastSyncTime = System.currentTimeMillis();
+    }
+
+    private byte[] toLine(JsonObject json) {
+        return (_gson.toJson(json) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void deleteDirectory(Path directory) {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> { p.toFile().delete(); });
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
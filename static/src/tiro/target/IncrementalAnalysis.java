@@ -0,0 +1,409 @@
+package tiro.target;
+
+import tiro.*;
+import tiro.target.constraint.HeapVariable;
+import tiro.target.dependency.Dependence;
+import tiro.target.event.CallPath;
+import tiro.target.event.Event;
+import tiro.target.event.EventChain;
+
+import soot.*;
+import soot.jimple.DefinitionStmt;
+import soot.jimple.FieldRef;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+import soot.jimple.toolkits.callgraph.ReachableMethods;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Re-uses the results of a previous analysis (e.g. of the previous version of the app) for
+// the targeted paths that are not affected by the changes to the app ("--previous <dir>").
+//
+// Each analysis writes <output>/incremental.json.gz, with:
+//   - a hash of the body of each application method,
+//   - for each field, the reachable application methods that write it,
+//   - for each analyzed targeted path (identified by CallPath.getId()): its event chain (if
+//     any), the methods of the chain's events, the fields of their heap dependencies, and
+//     whether they have other (e.g. shared preferences) dependencies.
+// A path of the current analysis re-uses the previous result of the same path if:
+//   - no method of its events, or method reachable from them in the current call graph
+//     (i.e. aux methods), has changed (or was added or removed),
+//   - for each field of its heap dependencies, the reachable writers of the field are the
+//     same, and none of them is reachable from a changed method (the supporting events of
+//     the field may otherwise differ, even if the writers themselves have not changed),
+//   - it has no other kind of dependency, or no method has changed at all.
+// Re-used event chains are copied from the previous appInfo.json (with a new ID) together
+// with their constraint files, so this requires the previous analysis to have used the same
+// TIRO version and the default (Python, unpacked) constraint format.
+
+class IncrementalAnalysis {
+    static final String FILE_NAME = "incremental.json.gz";
+    private static final int FORMAT_VERSION = 3;
+
+    public static class PreviousPath {
+        public final int EventChainId; // -1 for false positives
+        public final JsonObject EventChainJson;
+        public final Path ConstraintDirectory;
+        private final JsonObject _recordJson;
+
+        public PreviousPath(int eventChainId, JsonObject eventChainJson,
+                            Path constraintDirectory, JsonObject recordJson) {
+            EventChainId = eventChainId;
+            EventChainJson = eventChainJson;
+            ConstraintDirectory = constraintDirectory;
+            _recordJson = recordJson;
+        }
+    }
+
+    // Current analysis
+    private final Map<String, String> _methodHashes = new HashMap<String, String>();
+    private final Map<String, Set<String>> _fieldWriters = new HashMap<String, Set<String>>();
+    private final JsonObject _pathsJson = new JsonObject();
+
+    // Previous analysis (null if there is none, or it cannot be re-used)
+    private JsonObject _previousPathsJson = null;
+    private JsonObject _previousEventChainsJson = null;
+    private Path _previousDirectory = null;
+    private Set<String> _changedMethods = null;
+    private Set<String> _invalidatedFields = null;
+    private Set<String> _affectedMethods = null;
+
+    // Must be created after the call graph has been built.
+    public IncrementalAnalysis() {
+        indexMethods();
+
+        if (TIROStaticAnalysis.Config.PreviousOutputDirectory != null) {
+            loadPrevious(Paths.get(TIROStaticAnalysis.Config.PreviousOutputDirectory));
+        }
+    }
+
+    // Returns the previous result of the path, or null if it must be analyzed.
+    public PreviousPath findReusablePath(CallPath path) {
+        if (_previousPathsJson == null) {
+            return null;
+        }
+
+        JsonElement recordJson = _previousPathsJson.get(path.getId());
+        if (recordJson == null) {
+            return null;
+        }
+
+        JsonObject record = recordJson.getAsJsonObject();
+        for (JsonElement method : record.getAsJsonArray("Methods")) {
+            if (_affectedMethods.contains(method.getAsString())) {
+                return null;
+            }
+        }
+        for (JsonElement field : record.getAsJsonArray("HeapFields")) {
+            if (_invalidatedFields.contains(field.getAsString())) {
+                return null;
+            }
+        }
+        if (record.get("OtherDependencies").getAsBoolean() && !_changedMethods.isEmpty()) {
+            return null;
+        }
+
+        int eventChainId = record.get("EventChain").getAsInt();
+        if (eventChainId < 0) {
+            return new PreviousPath(-1, null, null, record);
+        }
+
+        JsonElement eventChainJson = _previousEventChainsJson.get(
+                Integer.toString(eventChainId));
+        if (eventChainJson == null) {
+            return null;
+        }
+
+        return new PreviousPath(eventChainId, eventChainJson.getAsJsonObject(),
+                _previousDirectory.resolve("constraints").resolve(
+                        Integer.toString(eventChainId)),
+                record);
+    }
+
+    // Records the result of an analyzed path (eventChain is null for false positives), and
+    // returns its record.
+    public JsonObject addPath(CallPath path, EventChain eventChain) {
+        Set<String> methods = new TreeSet<String>();
+        Set<String> heapFields = new TreeSet<String>();
+        boolean otherDependencies = false;
+
+        path.getNodes().forEach(n -> { methods.add(n.method().getSignature()); });
+        if (eventChain != null) {
+            for (Event event : eventChain.getEvents()) {
+                event.getPath().getNodes().forEach(n -> {
+                    methods.add(n.method().getSignature());
+                });
+
+                for (Dependence dependence : event.getDependencies()) {
+                    if (dependence instanceof HeapVariable) {
+                        heapFields.add(((HeapVariable)dependence).getField().getSignature());
+                    } else {
+                        otherDependencies = true;
+                    }
+                }
+            }
+        }
+
+        JsonObject recordJson = new JsonObject();
+        recordJson.addProperty("EventChain", (eventChain != null) ? eventChain.getId() : -1);
+        recordJson.add("Methods", toJsonArray(methods));
+        recordJson.add("HeapFields", toJsonArray(heapFields));
+        recordJson.addProperty("OtherDependencies", otherDependencies);
+
+        addRecord(path, recordJson);
+        return recordJson;
+    }
+
+    // Records a re-used previous result (under the ID of its copied event chain), and returns
+    // its record.
+    public JsonObject addReusedPath(CallPath path, PreviousPath previousPath,
+                                    int eventChainId) {
+        JsonObject recordJson = new JsonObject();
+        previousPath._recordJson.entrySet().forEach(e -> {
+            recordJson.add(e.getKey(), e.getValue());
+        });
+        recordJson.addProperty("EventChain", eventChainId);
+
+        addRecord(path, recordJson);
+        return recordJson;
+    }
+
+    // Records the result of a path (e.g. restored from a checkpoint).
+    public void addRecord(CallPath path, JsonObject recordJson) {
+        synchronized (_pathsJson) {
+            _pathsJson.add(path.getId(), recordJson);
+        }
+    }
+
+    // Writes incremental.json.gz for the next analysis.
+    public void writeFile() {
+        JsonObject incrementalJson = new JsonObject();
+        incrementalJson.addProperty("FormatVersion", FORMAT_VERSION);
+        incrementalJson.addProperty("Version", TIROStaticAnalysis.Configuration.Version);
+        incrementalJson.addProperty("ConstraintFormat",
+                getConstraintFormat(TIROStaticAnalysis.Config));
+
+        JsonObject methodsJson = new JsonObject();
+        new TreeMap<String, String>(_methodHashes).forEach((method, hash) -> {
+            methodsJson.addProperty(method, hash);
+        });
+        incrementalJson.add("Methods", methodsJson);
+
+        JsonObject fieldWritersJson = new JsonObject();
+        new TreeMap<String, Set<String>>(_fieldWriters).forEach((field, writers) -> {
+            fieldWritersJson.add(field, toJsonArray(writers));
+        });
+        incrementalJson.add("FieldWriters", fieldWritersJson);
+
+        synchronized (_pathsJson) {
+            incrementalJson.add("Paths", _pathsJson);
+        }
+
+        Path file = Paths.get(TIROStaticAnalysis.Config.OutputDirectory, FILE_NAME);
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(
+                Files.newOutputStream(file)), StandardCharsets.UTF_8)) {
+            new Gson().toJson(incrementalJson, writer);
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Hashes the bodies of the application methods, and finds the reachable writers of each
+    // field.
+    private void indexMethods() {
+        ReachableMethods reachableMethods = Scene.v().getReachableMethods();
+        for (SootClass klass : Scene.v().getApplicationClasses()) {
+            for (SootMethod method : klass.getMethods()) {
+                if (!method.hasActiveBody()) {
+                    continue;
+                }
+
+                Body body = method.getActiveBody();
+                String signature = method.getSignature();
+                _methodHashes.put(signature,
+                        Hashes.sha256(body.toString().getBytes(StandardCharsets.UTF_8)));
+
+                if (!reachableMethods.contains(method)) {
+                    continue;
+                }
+                for (Unit unit : body.getUnits()) {
+                    if (unit instanceof DefinitionStmt
+                            && ((DefinitionStmt)unit).getLeftOp() instanceof FieldRef) {
+                        String field = ((FieldRef)((DefinitionStmt)unit).getLeftOp())
+                                .getField().getSignature();
+                        _fieldWriters.computeIfAbsent(field, k -> new TreeSet<String>())
+                                .add(signature);
+                    }
+                }
+            }
+        }
+    }
+
+    private void loadPrevious(Path previousDirectory) {
+        JsonObject previousJson;
+        JsonObject appInfoJson;
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(
+                Files.newInputStream(previousDirectory.resolve(FILE_NAME))),
+                StandardCharsets.UTF_8)) {
+            previousJson = new JsonParser().parse(reader).getAsJsonObject();
+        } catch (Exception e) {
+            Output.warn("Cannot read the previous analysis in " + previousDirectory + ": "
+                    + e.toString());
+            return;
+        }
+
+        if (previousJson.get("FormatVersion").getAsInt() != FORMAT_VERSION
+                || !previousJson.get("Version").getAsString().equals(
+                        TIROStaticAnalysis.Configuration.Version)) {
+            Output.warn("Previous analysis is from another TIRO version, not re-using it");
+            return;
+        }
+
+        String constraintFormat = getConstraintFormat(TIROStaticAnalysis.Config);
+        if (!constraintFormat.equals("PYTHON")
+                || !previousJson.get("ConstraintFormat").getAsString().equals(
+                        constraintFormat)) {
+            Output.warn("Re-using a previous analysis requires unpacked Python constraints");
+            return;
+        }
+
+        try (Reader reader = Files.newBufferedReader(
+                previousDirectory.resolve("appInfo.json"), StandardCharsets.UTF_8)) {
+            appInfoJson = new JsonParser().parse(reader).getAsJsonObject();
+        } catch (Exception e) {
+            Output.warn("Cannot read the previous appInfo.json in " + previousDirectory
+                    + ": " + e.toString());
+            return;
+        }
+
+        // Methods that were added, removed or changed
+        Set<String> changedMethods = new HashSet<String>();
+        JsonObject previousMethodsJson = previousJson.getAsJsonObject("Methods");
+        for (Map.Entry<String, JsonElement> entry : previousMethodsJson.entrySet()) {
+            if (!entry.getValue().getAsString().equals(_methodHashes.get(entry.getKey()))) {
+                changedMethods.add(entry.getKey());
+            }
+        }
+        for (String method : _methodHashes.keySet()) {
+            if (!previousMethodsJson.has(method)) {
+                changedMethods.add(method);
+            }
+        }
+
+        // Fields whose reachable writers differ from the previous analysis, or whose writers
+        // are reachable from a changed method (the paths to the writes may have changed)
+        Set<String> invalidatedFields = new HashSet<String>();
+        Set<String> changedCallees = getReachableMethods(changedMethods);
+        JsonObject previousFieldWritersJson = previousJson.getAsJsonObject("FieldWriters");
+        for (Map.Entry<String, JsonElement> entry : previousFieldWritersJson.entrySet()) {
+            Set<String> previousWriters = new TreeSet<String>();
+            entry.getValue().getAsJsonArray().forEach(m -> {
+                previousWriters.add(m.getAsString());
+            });
+            if (!previousWriters.equals(_fieldWriters.get(entry.getKey()))) {
+                invalidatedFields.add(entry.getKey());
+            }
+        }
+        _fieldWriters.forEach((field, writers) -> {
+            if (!previousFieldWritersJson.has(field)
+                    || !Collections.disjoint(writers, changedCallees)) {
+                invalidatedFields.add(field);
+            }
+        });
+
+        _changedMethods = changedMethods;
+        _invalidatedFields = invalidatedFields;
+        _affectedMethods = getAffectedMethods(changedMethods);
+        _previousPathsJson = previousJson.getAsJsonObject("Paths");
+        _previousEventChainsJson = appInfoJson.getAsJsonObject("EventChains");
+        _previousDirectory = previousDirectory;
+
+        Metrics.add("incremental.changedMethods", changedMethods.size());
+        Metrics.add("incremental.invalidatedFields", invalidatedFields.size());
+        Output.progress("Re-using previous analysis in " + previousDirectory + " ("
+                + changedMethods.size() + " methods changed)");
+    }
+
+    // Returns the changed methods and the methods that reach them in the call graph.
+    private static Set<String> getAffectedMethods(Set<String> changedMethods) {
+        Set<String> affectedMethods = new HashSet<String>(changedMethods);
+        CallGraph callGraph = Scene.v().getCallGraph();
+
+        Deque<SootMethod> worklist = new ArrayDeque<SootMethod>();
+        for (String signature : changedMethods) {
+            SootMethod method = Scene.v().grabMethod(signature);
+            if (method != null) {
+                worklist.add(method);
+            }
+        }
+
+        while (!worklist.isEmpty()) {
+            Iterator<Edge> edgeIter = callGraph.edgesInto(worklist.poll());
+            while (edgeIter.hasNext()) {
+                SootMethod caller = edgeIter.next().src();
+                if (affectedMethods.add(caller.getSignature())) {
+                    worklist.add(caller);
+                }
+            }
+        }
+
+        return affectedMethods;
+    }
+
+    // Returns the given methods and the methods they reach in the call graph.
+    private static Set<String> getReachableMethods(Set<String> methods) {
+        Set<String> reachableMethods = new HashSet<String>(methods);
+        CallGraph callGraph = Scene.v().getCallGraph();
+
+        Deque<SootMethod> worklist = new ArrayDeque<SootMethod>();
+        for (String signature : methods) {
+            SootMethod method = Scene.v().grabMethod(signature);
+            if (method != null) {
+                worklist.add(method);
+            }
+        }
+
+        while (!worklist.isEmpty()) {
+            Iterator<Edge> edgeIter = callGraph.edgesOutOf(worklist.poll());
+            while (edgeIter.hasNext()) {
+                SootMethod callee = edgeIter.next().tgt();
+                if (reachableMethods.add(callee.getSignature())) {
+                    worklist.add(callee);
+                }
+            }
+        }
+
+        return reachableMethods;
+    }
+
+    static String getConstraintFormat(TIROStaticAnalysis.Configuration config) {
+        if (config.OutputConstraintFormat
+                == TIROStaticAnalysis.Configuration.ConstraintFormat.PYTHON
+                && config.PackConstraints) {
+            return "PYTHON_PACKED";
+        }
+        return config.OutputConstraintFormat.name();
+    }
+
+    private static JsonArray toJsonArray(Collection<String> strings) {
+        JsonArray array = new JsonArray();
+        strings.forEach(s -> { array.add(s); });
+        return array;
+    }
+}
@@ -0,0 +1,31 @@
+package tiro.target;
+
+import java.util.TimerTask;
+
+// Timeout of an analysis task: interrupts the task's thread (which then throws a
+// StaticAnalysisTimeoutException).  The task must call finish() when it is done, which
+// cancels the timeout and clears the interrupt flag.  Both run under the same lock, so a
+// timeout that fires concurrently either interrupts the thread before finish() clears the
+// flag, or not at all (and never interrupts the next task run by a pooled thread).
+
+public class InterruptionTask extends TimerTask {
+    private final Thread _thread;
+    private boolean _finished = false;
+
+    public InterruptionTask(Thread thread) {
+        _thread = thread;
+    }
+
+    @Override
+    public synchronized void run() {
+        if (!_finished) {
+            _thread.interrupt();
+        }
+    }
+
+    public synchronized void finish() {
+        _finished = true;
+        cancel();
+        Thread.interrupted();
+    }
+}
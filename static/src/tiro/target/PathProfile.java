@@ -0,0 +1,132 @@
+package tiro.target;
+
+import com.google.gson.JsonObject;
+
+// Cost profile of the analysis of a single targeted path (including the resolution of its
+// dependencies), recorded in the event chain's "Profile" in appInfo.json.
+//
+// A profile is active on the thread that analyzes the path (between begin() and end()), and
+// the analyses report to it through the static methods, which do nothing when no profile is
+// active (e.g. when heap writes are precomputed in the background).  Stage times are
+// inclusive, e.g. the dependency resolution time includes the constraint analysis and
+// solving of supporting events.
+
+public class PathProfile {
+    public enum Stage {
+        CONSTRAINT_ANALYSIS("ConstraintAnalysisMs"),
+        MINIMIZATION("MinimizationMs"),
+        DEPENDENCY_RESOLUTION("DependencyResolutionMs"),
+        SOLVING("SolvingMs");
+
+        public final String JsonName;
+
+        private Stage(String jsonName) {
+            JsonName = jsonName;
+        }
+    }
+
+    public enum Status {
+        RUNNING,
+        COMPLETED,
+        FALSE_POSITIVE,
+        ABORTED
+    }
+
+    private static final ThreadLocal<PathProfile> _current = new ThreadLocal<PathProfile>();
+
+    private final long _startTime = System.nanoTime();
+    private long _endTime = -1;
+    private Status _status = Status.RUNNING;
+
+    private final long[] _stageTimes = new long[Stage.values().length];
+    private long _flowThroughs = 0;
+    private long _auxMethodAnalyses = 0;
+    private long _predicateNodesBeforeMinimization = 0;
+    private long _predicateNodesAfterMinimization = 0;
+    private long _solverCalls = 0;
+
+    // Starts a new profile on the current thread.
+    public static PathProfile begin() {
+        PathProfile profile = new PathProfile();
+        _current.set(profile);
+        return profile;
+    }
+
+    // Ends the current thread's profile.
+    public static void end(Status status) {
+        PathProfile profile = _current.get();
+        if (profile != null) {
+            profile._endTime = System.nanoTime();
+            profile._status = status;
+            _current.remove();
+        }
+    }
+
+    public static void addStageTime(Stage stage, long startTime) {
+        PathProfile profile = _current.get();
+        if (profile != null) {
+            profile._stageTimes[stage.ordinal()] += System.nanoTime() - startTime;
+        }
+    }
+
+    public static void countFlowThrough() {
+        PathProfile profile = _current.get();
+        if (profile != null) {
+            profile._flowThroughs++;
+        }
+    }
+
+    public static void countAuxMethodAnalysis() {
+        PathProfile profile = _current.get();
+        if (profile != null) {
+            profile._auxMethodAnalyses++;
+        }
+    }
+
+    public static void countSolverCall() {
+        PathProfile profile = _current.get();
+        if (profile != null) {
+            profile._solverCalls++;
+        }
+    }
+
+    public static void addMinimization(long nodesBefore, long nodesAfter) {
+        PathProfile profile = _current.get();
+        if (profile != null) {
+            profile._predicateNodesBeforeMinimization += nodesBefore;
+            profile._predicateNodesAfterMinimization += nodesAfter;
+        }
+    }
+
+    public Status getStatus() {
+        return _status;
+    }
+
+    public long getTotalTime() {
+        long endTime = (_endTime >= 0) ? _endTime : System.nanoTime();
+        return endTime - _startTime;
+    }
+
+    public JsonObject toJson() {
+        JsonObject profileJson = new JsonObject();
+        profileJson.addProperty("Status", _status.name());
+        profileJson.addProperty("TotalMs", toMillis(getTotalTime()));
+        for (Stage stage : Stage.values()) {
+            profileJson.addProperty(stage.JsonName, toMillis(_stageTimes[stage.ordinal()]));
+        }
+
+        profileJson.addProperty("FlowThroughIterations", _flowThroughs);
+        profileJson.addProperty("AuxMethodAnalyses", _auxMethodAnalyses);
+        profileJson.addProperty("PredicateNodesBeforeMinimization",
+                                _predicateNodesBeforeMinimization);
+        profileJson.addProperty("PredicateNodesAfterMinimization",
+                                _predicateNodesAfterMinimization);
+        profileJson.addProperty("SolverCalls", _solverCalls);
+
+        return profileJson;
+    }
+
+    private static double toMillis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+}
@@ -0,0 +1,398 @@
+package tiro.target;
+
+import tiro.*;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Combines the output directories of the shards of an analysis ("--shard i/N", one process
+// per shard) into one output directory ("--merge").
+//
+// The completed paths of each shard are read from its checkpoint (see Checkpoint), and the
+// event chains of all shards are renumbered in the order of their path IDs, so the merged
+// IDs only depend on the analyzed paths (and not e.g. on the order in which the shards
+// completed them).  The merged directory has the same files as the output of a single
+// process: appInfo.json, the constraint files of each event chain, checkpoint.jsonl,
+// incremental.json.gz and targetGroups.json (if the shards have them).
+//
+// Shards are only merged if they analyzed the same APK (by content) with the same TIRO
+// version and the same options that affect the results (see getOptionsHash()).
+
+public class ShardMerge {
+    private static class PathEntry {
+        public final Path ShardDirectory;
+        public final JsonObject CheckpointJson;
+        public int EventChainId = -1;
+
+        public PathEntry(Path shardDirectory, JsonObject checkpointJson) {
+            ShardDirectory = shardDirectory;
+            CheckpointJson = checkpointJson;
+        }
+
+        public int getShardEventChainId() {
+            return CheckpointJson.getAsJsonObject("Record").get("EventChain").getAsInt();
+        }
+    }
+
+    // Header properties of appInfo.json that must be the same in all shards
+    private static final String[] SHARED_PROPERTIES = {
+        "Version", "Package", "ApkHash", "Options"
+    };
+
+    private final List<Path> _shardDirectories = new ArrayList<Path>();
+    private final Path _outputDirectory;
+    private final Gson _gson = new Gson();
+
+    public ShardMerge(List<String> shardDirectories, String outputDirectory) {
+        shardDirectories.forEach(d -> { _shardDirectories.add(Paths.get(d)); });
+        _outputDirectory = Paths.get(outputDirectory);
+    }
+
+    // Returns whether the shards were merged.
+    public boolean run() throws Exception {
+        try {
+            merge();
+            return true;
+        } catch (IllegalArgumentException e) {
+            Output.error(e.getMessage());
+            return false;
+        }
+    }
+
+    // Hash of the options that affect the results of the analysis, which must be the same
+    // for all shards (the "Options" of their appInfo.json).
+    static String getOptionsHash() {
+        TIROStaticAnalysis.Configuration config = TIROStaticAnalysis.Config;
+        StringBuilder options = new StringBuilder();
+        new TreeMap<String, Set<String>>(config.TargetGroups).forEach((group, methods) -> {
+            options.append("group ").append(group).append(": ")
+                    .append(new TreeSet<String>(methods)).append('\n');
+        });
+        options.append("targets: ").append(new TreeSet<String>(config.TargetMethods))
+                .append("\ndepth: ").append(config.MaxDependencyDepth)
+                .append("\nlazyHeapWrites: ").append(config.LazyHeapWrites)
+                .append("\ncallbackCallGraph: ").append(config.CallbackCallGraph)
+                .append("\nconstraints: ")
+                .append(IncrementalAnalysis.getConstraintFormat(config));
+
+        return Hashes.sha256(options.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void merge() throws Exception {
+        // The output directory is cleaned, so it must not contain (or be inside) a shard.
+        Path outputDirectory = _outputDirectory.toAbsolutePath().normalize();
+        for (Path shardDirectory : _shardDirectories) {
+            Path directory = shardDirectory.toAbsolutePath().normalize();
+            if (directory.startsWith(outputDirectory)
+                    || outputDirectory.startsWith(directory)) {
+                throw new IllegalArgumentException("The output directory cannot contain or be "
+                        + "inside a shard directory (" + shardDirectory + ")");
+            }
+        }
+
+        JsonObject headerJson = readHeaders();
+
+        // Path ID -> completed path (in order of path IDs)
+        TreeMap<String, PathEntry> paths = new TreeMap<String, PathEntry>();
+        for (Path shardDirectory : _shardDirectories) {
+            readCheckpoint(shardDirectory, paths);
+        }
+
+        int eventChainCount = 0;
+        for (PathEntry entry : paths.values()) {
+            if (entry.getShardEventChainId() >= 0) {
+                entry.EventChainId = eventChainCount++;
+            }
+        }
+        Output.progress("Merging " + paths.size() + " targeted paths (" + eventChainCount
+                + " event chains) into " + _outputDirectory);
+
+        Files.createDirectories(_outputDirectory);
+        FileUtils.cleanDirectory(_outputDirectory.toFile());
+
+        copyConstraints(paths.values());
+        writeAppInfo(headerJson, paths.values());
+        writeCheckpoint(paths.values());
+        writeIncrementalFile(paths.values());
+        writeTargetGroupsFile(paths.values());
+    }
+
+    // Returns the header of the merged appInfo.json (from the shards' appInfo.json).
+    private JsonObject readHeaders() throws Exception {
+        JsonObject mergedHeaderJson = null;
+        Set<Integer> shards = new TreeSet<Integer>();
+        int shardCount = 0;
+
+        for (Path shardDirectory : _shardDirectories) {
+            JsonObject headerJson = readHeader(shardDirectory.resolve("appInfo.json"));
+            if (!headerJson.has("Shard")) {
+                throw new IllegalArgumentException(shardDirectory
+                        + " is not the output of a shard");
+            }
+
+            String[] shard = headerJson.get("Shard").getAsString().split("/");
+            if (mergedHeaderJson == null) {
+                shardCount = Integer.parseInt(shard[1]);
+                mergedHeaderJson = headerJson;
+            } else if (Integer.parseInt(shard[1]) != shardCount) {
+                throw new IllegalArgumentException(shardDirectory
+                        + " is not a shard of the same analysis (different shard count)");
+            } else {
+                for (String property : SHARED_PROPERTIES) {
+                    if (!Objects.equals(headerJson.get(property),
+                            mergedHeaderJson.get(property))) {
+                        throw new IllegalArgumentException(shardDirectory + " is not a shard "
+                                + "of the same analysis (different " + property + ")");
+                    }
+                }
+            }
+            if (!shards.add(Integer.parseInt(shard[0]))) {
+                throw new IllegalArgumentException("Shard " + shard[0] + " is given twice");
+            }
+
+            if (!isCompleted(shardDirectory)) {
+                Output.warn("The analysis of shard " + shard[0] + " (" + shardDirectory
+                        + ") did not complete, merging its completed paths");
+            }
+        }
+
+        for (int i = 0; i < shardCount; i++) {
+            if (!shards.contains(i)) {
+                Output.warn("Shard " + i + "/" + shardCount + " is missing");
+            }
+        }
+
+        mergedHeaderJson.remove("Shard");
+        mergedHeaderJson.remove("ApkHash");
+        mergedHeaderJson.remove("Options");
+        mergedHeaderJson.addProperty("Generated", (new Date()).toString());
+        return mergedHeaderJson;
+    }
+
+    // Reads the properties of appInfo.json, except for the event chains.
+    private JsonObject readHeader(Path appInfoFile) throws Exception {
+        if (!Files.exists(appInfoFile)) {
+            throw new IllegalArgumentException(appInfoFile + " is missing (the analysis of "
+                    + "the shard can be completed with --resume)");
+        }
+
+        JsonObject headerJson = new JsonObject();
+        JsonParser parser = new JsonParser();
+
+        try (JsonReader reader = new JsonReader(Files.newBufferedReader(appInfoFile,
+                StandardCharsets.UTF_8))) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("EventChains")) {
+                    reader.skipValue();
+                } else {
+                    headerJson.add(name, parser.parse(reader));
+                }
+            }
+        }
+
+        return headerJson;
+    }
+
+    private static boolean isCompleted(Path shardDirectory) {
+        try (Reader reader = Files.newBufferedReader(shardDirectory.resolve("metrics.json"),
+                StandardCharsets.UTF_8)) {
+            return new JsonParser().parse(reader).getAsJsonObject()
+                    .get("Completed").getAsBoolean();
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void readCheckpoint(Path shardDirectory, Map<String, PathEntry> paths)
+            throws Exception {
+        JsonParser parser = new JsonParser();
+        try (BufferedReader reader = Files.newBufferedReader(
+                shardDirectory.resolve(Checkpoint.FILE_NAME), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JsonObject checkpointJson;
+                try {
+                    checkpointJson = parser.parse(line).getAsJsonObject();
+                } catch (RuntimeException e) {
+                    // Partial line written when the shard's analysis was killed
+                    break;
+                }
+
+                String pathId = checkpointJson.get("Path").getAsString();
+                if (paths.putIfAbsent(pathId,
+                        new PathEntry(shardDirectory, checkpointJson)) != null) {
+                    Output.warn("Path " + pathId + " was analyzed by multiple shards");
+                }
+            }
+        }
+    }
+
+    private void copyConstraints(Collection<PathEntry> paths) throws Exception {
+        for (PathEntry entry : paths) {
+            if (entry.EventChainId < 0) {
+                continue;
+            }
+
+            Path shardConstraintDirectory = entry.ShardDirectory.resolve("constraints")
+                    .resolve(Integer.toString(entry.getShardEventChainId()));
+            if (!Files.isDirectory(shardConstraintDirectory)) {
+                continue;
+            }
+
+            Path constraintDirectory = _outputDirectory.resolve("constraints")
+                    .resolve(Integer.toString(entry.EventChainId));
+            Files.createDirectories(constraintDirectory);
+            try (Stream<Path> files = Files.list(shardConstraintDirectory)) {
+                for (Path file : (Iterable<Path>)files::iterator) {
+                    Files.copy(file, constraintDirectory.resolve(file.getFileName()),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+    }
+
+    private void writeAppInfo(JsonObject headerJson, Collection<PathEntry> paths)
+            throws Exception {
+        try (JsonWriter writer = new JsonWriter(Files.newBufferedWriter(
+                _outputDirectory.resolve("appInfo.json"), StandardCharsets.UTF_8))) {
+            writer.setIndent("  ");
+            writer.beginObject();
+            for (Map.Entry<String, JsonElement> entry : headerJson.entrySet()) {
+                writer.name(entry.getKey());
+                _gson.toJson(entry.getValue(), writer);
+            }
+
+            writer.name("EventChains");
+            writer.beginObject();
+            for (PathEntry entry : paths) {
+                if (entry.EventChainId >= 0) {
+                    writer.name(Integer.toString(entry.EventChainId));
+                    _gson.toJson(entry.CheckpointJson.get("EventChain"), writer);
+                }
+            }
+            writer.endObject();
+            writer.endObject();
+        }
+    }
+
+    // Writes the checkpoint of the merged output (with the merged event chain IDs), so that
+    // e.g. the paths of missing shards can be analyzed with "--resume" on the merged output.
+    private void writeCheckpoint(Collection<PathEntry> paths) throws Exception {
+        try (Writer writer = Files.newBufferedWriter(
+                _outputDirectory.resolve(Checkpoint.FILE_NAME), StandardCharsets.UTF_8)) {
+            for (PathEntry entry : paths) {
+                JsonObject checkpointJson = new JsonObject();
+                checkpointJson.add("Path", entry.CheckpointJson.get("Path"));
+                checkpointJson.add("Record", getRecord(entry));
+                if (entry.EventChainId >= 0) {
+                    checkpointJson.add("EventChain", entry.CheckpointJson.get("EventChain"));
+                }
+                writer.write(_gson.toJson(checkpointJson));
+                writer.write("\n");
+            }
+        }
+    }
+
+    // Writes incremental.json.gz, with the method hashes and field writers of the first shard
+    // (which only depend on the APK) and the records of the paths of all shards.
+    private void writeIncrementalFile(Collection<PathEntry> paths) throws Exception {
+        Path shardFile = _shardDirectories.get(0).resolve(IncrementalAnalysis.FILE_NAME);
+        if (!Files.exists(shardFile)) {
+            return;
+        }
+
+        JsonObject incrementalJson;
+        try (Reader reader = new InputStreamReader(new GZIPInputStream(
+                Files.newInputStream(shardFile)), StandardCharsets.UTF_8)) {
+            incrementalJson = new JsonParser().parse(reader).getAsJsonObject();
+        }
+
+        JsonObject pathsJson = new JsonObject();
+        for (PathEntry entry : paths) {
+            pathsJson.add(entry.CheckpointJson.get("Path").getAsString(), getRecord(entry));
+        }
+        incrementalJson.add("Paths", pathsJson);
+
+        Path file = _outputDirectory.resolve(IncrementalAnalysis.FILE_NAME);
+        try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(
+                Files.newOutputStream(file)), StandardCharsets.UTF_8)) {
+            _gson.toJson(incrementalJson, writer);
+        }
+    }
+
+    // Writes targetGroups.json (see TargetedPathsAnalysis), with the path counts of the first
+    // shard (each shard counts all targeted paths).
+    private void writeTargetGroupsFile(Collection<PathEntry> paths) throws Exception {
+        Path shardFile = _shardDirectories.get(0).resolve("targetGroups.json");
+        if (!Files.exists(shardFile)) {
+            return;
+        }
+
+        JsonObject targetGroupsJson;
+        try (Reader reader = Files.newBufferedReader(shardFile, StandardCharsets.UTF_8)) {
+            targetGroupsJson = new JsonParser().parse(reader).getAsJsonObject();
+        }
+
+        Map<String, JsonArray> groupEventChains = new HashMap<String, JsonArray>();
+        targetGroupsJson.entrySet().forEach(e -> {
+            JsonArray eventChainsJson = new JsonArray();
+            e.getValue().getAsJsonObject().add("EventChains", eventChainsJson);
+            groupEventChains.put(e.getKey(), eventChainsJson);
+        });
+
+        for (PathEntry entry : paths) {
+            JsonObject eventChainJson = entry.CheckpointJson.getAsJsonObject("EventChain");
+            if (entry.EventChainId < 0 || !eventChainJson.has("TargetGroups")) {
+                continue;
+            }
+
+            for (JsonElement group : eventChainJson.getAsJsonArray("TargetGroups")) {
+                JsonArray eventChainsJson = groupEventChains.get(group.getAsString());
+                if (eventChainsJson != null) {
+                    eventChainsJson.add(entry.EventChainId);
+                }
+            }
+        }
+
+        try (Writer writer = Files.newBufferedWriter(
+                _outputDirectory.resolve("targetGroups.json"), StandardCharsets.UTF_8)) {
+            Gson gson = new GsonBuilder().setPrettyPrinting().create();
+            writer.write(gson.toJson(targetGroupsJson));
+        }
+    }
+
+    // Returns the path's record, with its merged event chain ID.
+    private static JsonObject getRecord(PathEntry entry) {
+        JsonObject recordJson = new JsonObject();
+        entry.CheckpointJson.getAsJsonObject("Record").entrySet().forEach(e -> {
+            recordJson.add(e.getKey(), e.getValue());
+        });
+        recordJson.addProperty("EventChain", entry.EventChainId);
+        return recordJson;
+    }
+}
@@ -11,6 +11,12 @@ import soot.*;
 import soot.jimple.*;
 import soot.jimple.toolkits.callgraph.*;
 
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.PrintWriter;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.regex.Pattern;
@@ -18,16 +24,41 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class TargetedPathsAnalysis extends SceneTransformer {
+    // Number of slowest paths reported at the end of the analysis
+    private static final int SLOWEST_PATHS = 10;
+
     private final ManifestAnalysis _manifestAnalysis;
     private final EntryPointAnalysis _entryPointAnalysis;
     private final DependencyAnalysis _dependencyAnalysis;
     private CallGraph _callGraph = null;
+    private IncrementalAnalysis _incrementalAnalysis = null;
+    private Checkpoint _checkpoint = null;
 
     private java.util.Timer _interruptTimer = null;
 
     private TargetedPathsCallGraphPlugin _callGraphPlugin =
             new TargetedPathsCallGraphPlugin();
 
+    private static class PathCost {
+        public final PathProfile Profile;
+        public final CallPath Path;
+        public final EventChain Chain;
+
+        public PathCost(PathProfile profile, CallPath path, EventChain chain) {
+            Profile = profile;
+            Path = path;
+            Chain = chain;
+        }
+    }
+
+    // Event chains of each target group (when multiple groups are analyzed)
+    private final Map<String, List<Integer>> _targetGroupEventChains =
+            new TreeMap<String, List<Integer>>();
+
+    // Slowest analyzed paths (cheapest first)
+    private final PriorityQueue<PathCost> _slowestPaths = new PriorityQueue<PathCost>(
+            Comparator.comparingLong((PathCost c) -> c.Profile.getTotalTime()));
+
     public TargetedPathsAnalysis(ManifestAnalysis manifestAnalysis,
                                  EntryPointAnalysis entryPointAnalysis,
                                  DependencyAnalysis dependencyAnalysis) {
@@ -43,20 +74,10 @@ public class TargetedPathsAnalysis extends SceneTransformer {
     @Override
     protected void internalTransform(String phaseName, Map<String, String> options) {
         _callGraph = Scene.v().getCallGraph();
-        analyzePaths();
-    }
-
-    private class InterruptionTask extends TimerTask {
-        private final Thread _thread;
-
-        public InterruptionTask(Thread thread) {
-            _thread = thread;
-        }
 
-        @Override
-        public void run() {
-            _thread.interrupt();
-        }
+        Metrics.beginPhase("PathAnalysis");
+        _incrementalAnalysis = new IncrementalAnalysis();
+        analyzePaths();
     }
 
     private class TargetedPathTask implements Callable<Boolean> {
@@ -70,19 +91,21 @@ public class TargetedPathsAnalysis extends SceneTransformer {
 
         @Override
         public Boolean call() {
-            TimerTask timeout = new InterruptionTask(Thread.currentThread());
+            if (TIROStaticAnalysis.Config.Cancelled) {
+                return false;
+            }
+
+            InterruptionTask timeout = new InterruptionTask(Thread.currentThread());
             _interruptTimer.schedule(timeout,
                                      TIROStaticAnalysis.Config.TargetedPathTimeout);
 
             Output.startBuffering();
 
             try {
-                EventChain eventChain = analyzeTargetedPath(_callPath);
-                if (eventChain != null) {
-                    _appInfoWriter.addEventChain(eventChain);
-                }
+                processTargetedPath(_callPath, _appInfoWriter);
                 return true;
             } catch (StaticAnalysisTimeoutException e) {
+                Metrics.increment("paths.timedOut");
                 if (TIROStaticAnalysis.Config.PrintOutput) {
                     Output.clearBuffer();
                     Output.printPath("Targeted Path [timeout]");
@@ -93,8 +116,7 @@ public class TargetedPathsAnalysis extends SceneTransformer {
             } finally {
                 // Cancel the timeout timer and clear the interrupt flag in case this thread
                 // is reused.
-                timeout.cancel();
-                Thread.interrupted();
+                timeout.finish();
 
                 Output.flushBuffer();
             }
@@ -104,20 +126,50 @@ public class TargetedPathsAnalysis extends SceneTransformer {
     private void analyzePaths() {
         Output.progress("Analyzing targeted paths");
         Output.debug("Number of paths: " + _callGraphPlugin.getTargetedPaths().size());
+        Metrics.add("paths.targeted", _callGraphPlugin.getTargetedPaths().size());
+
+        // With "--shard", only this process's share of the paths is analyzed.
+        List<CallPath> paths = _callGraphPlugin.getTargetedPaths();
+        if (TIROStaticAnalysis.Config.ShardCount > 1) {
+            paths = paths.stream().filter(TargetedPathsAnalysis::isInShard)
+                    .collect(Collectors.toList());
+            Output.debug("Number of paths in shard: " + paths.size());
+            Metrics.add("paths.shard", paths.size());
+        }
+
+        _checkpoint = new Checkpoint();
+        try {
+            analyzePaths(paths);
+        } finally {
+            // Also closed if the analysis fails (e.g. out of memory), so that the completed
+            // paths are on disk for "--resume".
+            _checkpoint.close();
+        }
+        writeTargetGroupsFile();
+        _incrementalAnalysis.writeFile();
+    }
 
-        AppInfoWriter appInfoWriter = new AppInfoWriter(_manifestAnalysis);
-        Stream<CallPath> targetedPaths = _callGraphPlugin.getTargetedPaths().stream();
+    private void analyzePaths(List<CallPath> paths) {
+        AppInfoWriter appInfoWriter = AppInfoWriter.create(_manifestAnalysis);
+        Stream<CallPath> targetedPaths = paths.stream();
 
         if (!TIROStaticAnalysis.Config.MultiThreading) {
+            AnalysisStatus.setPathsTotal(paths.size(), 1);
             targetedPaths.forEach(path -> {
-                EventChain eventChain = analyzeTargetedPath(path);
-                if (eventChain != null) {
-                    appInfoWriter.addEventChain(eventChain);
+                if (TIROStaticAnalysis.Config.Cancelled) {
+                    return;
                 }
+
+                processTargetedPath(path, appInfoWriter);
             });
         } else {
-            // Create a thread pool to analyze the targeted paths.
-            int numThreads = TIROStaticAnalysis.Config.NumberOfThreads - 1;
+            // Create a thread pool to analyze the targeted paths.  The background resolution
+            // of heap dependencies takes a share of the worker threads (rather than adding
+            // threads), so that no more than "-j" threads are busy.
+            int numWorkers = TIROStaticAnalysis.Config.NumberOfThreads - 1;
+            int numPrecomputeThreads = (numWorkers >= 4) ? numWorkers / 4 : 0;
+            int numThreads = numWorkers - numPrecomputeThreads;
+            AnalysisStatus.setPathsTotal(paths.size(), numThreads);
             final ExecutorService executor = Executors.newFixedThreadPool(numThreads);
             List<TargetedPathTask> targetedPathsTasks = targetedPaths.map(path -> {
                 return new TargetedPathTask(appInfoWriter, path);
@@ -126,6 +178,11 @@ public class TargetedPathsAnalysis extends SceneTransformer {
             // Implement a per-path timeout as well as an overall timeout.
             _interruptTimer = new java.util.Timer("TargetedPathsAnalysisTimerThread");
 
+            // Resolve likely heap dependencies in the background while paths are analyzed.
+            if (numPrecomputeThreads > 0) {
+                _dependencyAnalysis.startPrecomputation(paths, numPrecomputeThreads);
+            }
+
             List<Future<Boolean>> results = null;
             try {
                 if (TIROStaticAnalysis.Config.Timeout > 0) {
@@ -154,6 +211,8 @@ public class TargetedPathsAnalysis extends SceneTransformer {
             _interruptTimer.cancel();
             _interruptTimer.purge();
 
+            _dependencyAnalysis.stopPrecomputation();
+
             // Determine  whether the targeted path tasks completed successfully (constraints
             // were extracted and dependencies resolved).
             boolean success = (results == null) ? false : results.stream().map(future -> {
@@ -172,16 +231,209 @@ public class TargetedPathsAnalysis extends SceneTransformer {
             }
         }
 
+        _dependencyAnalysis.printStatistics();
+        printSlowestPaths();
+
         Output.progress("Writing " + TIROStaticAnalysis.Config.OutputDirectory
                         + "/appInfo.json");
+        Metrics.beginPhase("Writing");
         appInfoWriter.writeFinalFile();
     }
 
+    // Returns whether the path belongs to the shard of this process (by its ID, so that the
+    // shards of all processes are disjoint).
+    private static boolean isInShard(CallPath path) {
+        return Long.remainderUnsigned(Long.parseUnsignedLong(path.getId(), 16),
+                TIROStaticAnalysis.Config.ShardCount) == TIROStaticAnalysis.Config.ShardIndex;
+    }
+
+    private static boolean hasMultipleTargetGroups() {
+        return TIROStaticAnalysis.Config.TargetGroups.size() > 1;
+    }
+
+    private void addToTargetGroups(Set<String> targetGroups, int eventChainId) {
+        synchronized (_targetGroupEventChains) {
+            for (String group : targetGroups) {
+                _targetGroupEventChains.computeIfAbsent(group,
+                        k -> new ArrayList<Integer>()).add(eventChainId);
+            }
+        }
+    }
+
+    // Writes the paths and event chains of each target group into targetGroups.json.
+    private void writeTargetGroupsFile() {
+        if (!hasMultipleTargetGroups()) {
+            return;
+        }
+
+        JsonObject targetGroupsJson = new JsonObject();
+        for (String group : TIROStaticAnalysis.Config.TargetGroups.keySet()) {
+            JsonObject groupJson = new JsonObject();
+            groupJson.addProperty("TargetedPaths",
+                    Metrics.getCounter("paths.targeted." + group));
+
+            JsonArray eventChainsJson = new JsonArray();
+            synchronized (_targetGroupEventChains) {
+                _targetGroupEventChains.getOrDefault(group, Collections.emptyList())
+                        .stream().sorted().forEach(id -> { eventChainsJson.add(id); });
+            }
+            groupJson.add("EventChains", eventChainsJson);
+            targetGroupsJson.add(group, groupJson);
+        }
+
+        try {
+            Gson gson = new GsonBuilder().setPrettyPrinting().create();
+            PrintWriter writer = new PrintWriter(TIROStaticAnalysis.Config.OutputDirectory
+                    + "/targetGroups.json", "UTF-8");
+            writer.print(gson.toJson(targetGroupsJson));
+            writer.close();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
     private EventChain analyzeTargetedPath(CallPath callPath) {
+        PathProfile profile = PathProfile.begin();
+        PathProfile.Status status = PathProfile.Status.ABORTED;
+        EventChain eventChain = null;
+        AnalysisStatus.pathStarted();
+        Object flightRecorderEvent = FlightRecorder.beginPath();
+
+        try {
+            eventChain = extractEventChain(callPath);
+            if (eventChain != null) {
+                eventChain.setProfile(profile);
+                if (hasMultipleTargetGroups()) {
+                    Set<String> targetGroups = _callGraphPlugin.getTargetGroups(callPath);
+                    eventChain.setTargetGroups(targetGroups);
+                    addToTargetGroups(targetGroups, eventChain.getId());
+                }
+                status = PathProfile.Status.COMPLETED;
+            } else {
+                status = PathProfile.Status.FALSE_POSITIVE;
+            }
+            return eventChain;
+        } finally {
+            PathProfile.end(status);
+            FlightRecorder.endPath(flightRecorderEvent, callPath, status.name());
+            AnalysisStatus.pathDone();
+            addPathCost(new PathCost(profile, callPath, eventChain));
+        }
+    }
+
+    // Analyzes the path (unless its result is restored from the checkpoint or re-used from a
+    // previous analysis), and writes its event chain.
+    private void processTargetedPath(CallPath callPath, AppInfoWriter appInfoWriter) {
+        if (restoreCheckpointedPath(callPath, appInfoWriter)
+                || reusePreviousResult(callPath, appInfoWriter)) {
+            return;
+        }
+
+        EventChain eventChain = analyzeTargetedPath(callPath);
+        JsonObject eventChainJson = (eventChain != null)
+                ? appInfoWriter.addEventChain(eventChain) : null;
+        JsonObject recordJson = _incrementalAnalysis.addPath(callPath, eventChain);
+        _checkpoint.addPath(appInfoWriter, callPath, recordJson, eventChainJson);
+    }
+
+    // Restores the result of the path from the checkpoint of a killed analysis (with
+    // "--resume").  Returns false if the path must be analyzed.
+    private boolean restoreCheckpointedPath(CallPath callPath, AppInfoWriter appInfoWriter) {
+        JsonObject checkpointJson = _checkpoint.getRestoredPath(callPath);
+        if (checkpointJson == null) {
+            return false;
+        }
+
+        AnalysisStatus.pathStarted();
+        try {
+            JsonObject recordJson = checkpointJson.getAsJsonObject("Record");
+            int eventChainId = recordJson.get("EventChain").getAsInt();
+            if (eventChainId < 0) {
+                Metrics.increment("paths.falsePositive");
+            } else {
+                JsonObject eventChainJson = checkpointJson.getAsJsonObject("EventChain");
+                setTargetGroups(callPath, eventChainId, eventChainJson);
+
+                // The event chain's constraint files are still in the output directory.
+                appInfoWriter.addReusedEventChain(eventChainId, eventChainJson, null);
+                Metrics.increment("eventChains");
+            }
+
+            _incrementalAnalysis.addRecord(callPath, recordJson);
+            Metrics.increment("paths.restored");
+            return true;
+        } finally {
+            AnalysisStatus.pathDone();
+        }
+    }
+
+    // Copies the previous result of the path if it is not affected by the changes to the app
+    // (see IncrementalAnalysis).  Returns false if the path must be analyzed.
+    private boolean reusePreviousResult(CallPath callPath, AppInfoWriter appInfoWriter) {
+        IncrementalAnalysis.PreviousPath previousPath =
+                _incrementalAnalysis.findReusablePath(callPath);
+        if (previousPath == null) {
+            return false;
+        }
+
+        AnalysisStatus.pathStarted();
+        try {
+            if (previousPath.EventChainId < 0) {
+                Metrics.increment("paths.falsePositive");
+                JsonObject recordJson =
+                        _incrementalAnalysis.addReusedPath(callPath, previousPath, -1);
+                _checkpoint.addPath(appInfoWriter, callPath, recordJson, null);
+            } else {
+                int eventChainId = EventChain.allocateId();
+                // The profile of the previous analysis does not describe this run.
+                JsonObject eventChainJson = new JsonObject();
+                previousPath.EventChainJson.entrySet().forEach(e -> {
+                    if (!e.getKey().equals("Profile")) {
+                        eventChainJson.add(e.getKey(), e.getValue());
+                    }
+                });
+                eventChainJson.addProperty("ReusedFrom", previousPath.EventChainId);
+
+                // Target groups may differ from the previous analysis
+                setTargetGroups(callPath, eventChainId, eventChainJson);
+
+                appInfoWriter.addReusedEventChain(eventChainId, eventChainJson,
+                        previousPath.ConstraintDirectory);
+                JsonObject recordJson = _incrementalAnalysis.addReusedPath(callPath,
+                        previousPath, eventChainId);
+                _checkpoint.addPath(appInfoWriter, callPath, recordJson, eventChainJson);
+                Metrics.increment("eventChains");
+            }
+
+            Metrics.increment("paths.reused");
+            return true;
+        } finally {
+            AnalysisStatus.pathDone();
+        }
+    }
+
+    // Sets the target groups of an event chain that was not extracted by this analysis.
+    private void setTargetGroups(CallPath callPath, int eventChainId,
+                                 JsonObject eventChainJson) {
+        eventChainJson.remove("TargetGroups");
+        if (hasMultipleTargetGroups()) {
+            Set<String> targetGroups = _callGraphPlugin.getTargetGroups(callPath);
+            JsonArray targetGroupsJson = new JsonArray();
+            targetGroups.forEach(g -> { targetGroupsJson.add(g); });
+            eventChainJson.add("TargetGroups", targetGroupsJson);
+            addToTargetGroups(targetGroups, eventChainId);
+        }
+    }
+
+    private EventChain extractEventChain(CallPath callPath) {
+        long constraintAnalysisStart = System.nanoTime();
         ConstraintAnalysis constraintAnalysis = new ConstraintAnalysis(callPath);
         Predicate pathConstraints = constraintAnalysis.getConstraints();
+        Metrics.addTime("ConstraintAnalysis", constraintAnalysisStart);
+
         if (pathConstraints != null && pathConstraints.isFalse()) {
             // This path is a false positive.
+            Metrics.increment("paths.falsePositive");
             return null;
         }
 
@@ -209,8 +461,14 @@ public class TargetedPathsAnalysis extends SceneTransformer {
         targetedEvent.addDependencies(heapDependencies);
 
         // Resolve dependencies and add their dependence constraint to the targeted event.
+        long dependencyResolutionStart = System.nanoTime();
         List<SupportingEvent> supportingEvents =
                 _dependencyAnalysis.resolveEventDependencies(targetedEvent);
+        Metrics.addTime("DependencyResolution", dependencyResolutionStart);
+        PathProfile.addStageTime(PathProfile.Stage.DEPENDENCY_RESOLUTION,
+                                 dependencyResolutionStart);
+        Metrics.add("events.supporting", supportingEvents.size());
+        Metrics.max("events.supportingPerChain", supportingEvents.size());
 
         // Targeted path constraints may have changed while resolving dependencies.
         pathConstraints = targetedEvent.getConstraints();
@@ -236,16 +494,60 @@ public class TargetedPathsAnalysis extends SceneTransformer {
             Output.printEventChainDivider();
         }
 
+        Metrics.increment("eventChains");
         return eventChain;
     }
 
+    private void addPathCost(PathCost cost) {
+        synchronized (_slowestPaths) {
+            _slowestPaths.add(cost);
+            if (_slowestPaths.size() > SLOWEST_PATHS) {
+                _slowestPaths.poll();
+            }
+        }
+    }
+
+    private void printSlowestPaths() {
+        List<PathCost> slowestPaths;
+        synchronized (_slowestPaths) {
+            slowestPaths = new ArrayList<PathCost>(_slowestPaths);
+        }
+        slowestPaths.sort(Comparator.comparingLong(
+                (PathCost c) -> c.Profile.getTotalTime()).reversed());
+
+        JsonArray slowestPathsJson = new JsonArray();
+        for (PathCost cost : slowestPaths) {
+            JsonObject costJson = cost.Profile.toJson();
+            if (cost.Chain != null) {
+                costJson.addProperty("EventChain", cost.Chain.getId());
+            }
+            costJson.addProperty("Start", cost.Path.getEntryMethod().getSignature());
+            costJson.addProperty("Target", cost.Path.getTargetUnit().toString());
+            slowestPathsJson.add(costJson);
+
+            Output.debug(String.format("Slow path (%.3f s, %s): %s -> %s",
+                    cost.Profile.getTotalTime() / 1e9, cost.Profile.getStatus(),
+                    cost.Path.getEntryMethod().getSignature(), cost.Path.getTargetUnit()));
+        }
+
+        Metrics.setSummary("SlowestPaths", slowestPathsJson);
+    }
+
     private class TargetedPathsCallGraphPlugin implements CallGraphTraversal.Plugin {
         private List<CallPath> _targetedPaths = new ArrayList<CallPath>();
 
+        // Target groups reached by each target unit
+        private Map<Unit, Set<String>> _targetGroups =
+                new ConcurrentHashMap<Unit, Set<String>>();
+
         public List<CallPath> getTargetedPaths() {
             return _targetedPaths;
         }
 
+        public Set<String> getTargetGroups(CallPath path) {
+            return _targetGroups.getOrDefault(path.getTargetUnit(), Collections.emptySet());
+        }
+
         @Override
         public boolean processUnit(SootMethod method, Unit unit) {
             Stmt stmt = (Stmt)unit;
@@ -255,11 +557,11 @@ public class TargetedPathsAnalysis extends SceneTransformer {
 
             InvokeExpr invokeExpr = stmt.getInvokeExpr();
             String invokeSignature = invokeExpr.getMethodRef().getSignature();
-            boolean isTarget = false;
+            List<String> targetSignatures = new ArrayList<String>();
 
             // Analyze declared target of edge
             if (TIROStaticAnalysis.Config.TargetMethods.contains(invokeSignature)) {
-                isTarget = true;
+                targetSignatures.add(invokeSignature);
             }
 
             // Analyze resolved targets of edge
@@ -269,16 +571,33 @@ public class TargetedPathsAnalysis extends SceneTransformer {
                 String tgtSignature = targetEdge.tgt().getSignature();
 
                 if (TIROStaticAnalysis.Config.TargetMethods.contains(tgtSignature)) {
-                    isTarget = true;
+                    targetSignatures.add(tgtSignature);
                 }
             }
 
-            return isTarget;
+            if (targetSignatures.isEmpty()) {
+                return false;
+            }
+
+            if (hasMultipleTargetGroups()) {
+                Set<String> groups = new TreeSet<String>();
+                TIROStaticAnalysis.Config.TargetGroups.forEach((group, targetMethods) -> {
+                    if (targetSignatures.stream().anyMatch(targetMethods::contains)) {
+                        groups.add(group);
+                    }
+                });
+                _targetGroups.put(unit, groups);
+            }
+
+            return true;
         }
 
         @Override
         public void onTargetPath(CallPath path) {
             _targetedPaths.add(path);
+            getTargetGroups(path).forEach(group -> {
+                Metrics.increment("paths.targeted." + group);
+            });
         }
     }
 }
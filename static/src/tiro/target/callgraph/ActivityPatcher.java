@@ -17,7 +17,7 @@ import java.util.Collections;
 import java.util.List;
 
 class ActivityPatcher extends IntentBasedCallGraphPatcher {
-    private static final SootClass _activityClass = Scene.v().getSootClass(
+    private final SootClass _activityClass = Scene.v().getSootClass(
             "android.app.Activity");
     private static final String _startActivityMethodSignature =
             "void startActivity(android.content.Intent)";
@@ -25,7 +25,7 @@ class ActivityPatcher extends IntentBasedCallGraphPatcher {
     //        "<android.content.Context: void startActivity(android.content.Intent," +
     //        "android.os.Bundle)>");
 
-    private static final SootMethod _intentGetExtrasMethod = Scene.v().getMethod(
+    private final SootMethod _intentGetExtrasMethod = Scene.v().getMethod(
             "<android.content.Intent: android.os.Bundle getExtras()>");
 
     public ActivityPatcher(SootClass patchClass, ManifestAnalysis manifestAnalysis) {
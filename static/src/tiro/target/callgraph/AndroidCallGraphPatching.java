@@ -25,6 +25,9 @@ import java.util.*;
 public class AndroidCallGraphPatching extends SceneTransformer {
     private static final boolean DEBUG = false;
 
+    // Fake class that holds the bridge methods
+    public static final String PATCH_CLASS_NAME = "tiro.patching.FakeAndroidCallGraphPatching";
+
     private final ManifestAnalysis _manifestAnalysis;
     private final List<CallGraphPatcher> _patchers = new ArrayList<CallGraphPatcher>();
     private final SootClass _fakeClass;
@@ -122,8 +125,7 @@ public class AndroidCallGraphPatching extends SceneTransformer {
     }
 
     private SootClass createFakePatchClass() {
-        SootClass patchClass = new SootClass(
-                "tiro.patching.FakeAndroidCallGraphPatching", Modifier.PUBLIC);
+        SootClass patchClass = new SootClass(PATCH_CLASS_NAME, Modifier.PUBLIC);
         patchClass.setSuperclass(Scene.v().getSootClass("java.lang.Object"));
         Scene.v().addClass(patchClass);
 
@@ -16,19 +16,19 @@ import java.util.Collections;
 import java.util.List;
 
 class AsyncTaskPatcher extends CallGraphPatcher {
-    private static final SootClass _asyncTaskClass = Scene.v().getSootClass(
+    private final SootClass _asyncTaskClass = Scene.v().getSootClass(
             "android.os.AsyncTask");
     private static final String _executeMethodSingature =
             "android.os.AsyncTask execute(java.lang.Object[])";
 
-    private static final SootMethodRef _asyncTaskOnPreExecuteMethod =
+    private final SootMethodRef _asyncTaskOnPreExecuteMethod =
             Scene.v().makeMethodRef(_asyncTaskClass, "onPreExecute",
                 Collections.<Type>emptyList(), VoidType.v(), false);
-    private static final SootMethodRef _asyncTaskDoInBackgroundMethod =
+    private final SootMethodRef _asyncTaskDoInBackgroundMethod =
             Scene.v().makeMethodRef(_asyncTaskClass, "doInBackground",
                 Arrays.asList(new Type[] { ArrayType.v(RefType.v("java.lang.Object"), 1) }),
                 RefType.v("java.lang.Object"), false);
-    private static final SootMethodRef _asyncTaskOnPostExecuteMethod =
+    private final SootMethodRef _asyncTaskOnPostExecuteMethod =
             Scene.v().makeMethodRef(_asyncTaskClass, "onPostExecute",
                 Arrays.asList(new Type[] { RefType.v("java.lang.Object") }),
                     VoidType.v(), false);
@@ -0,0 +1,487 @@
+package tiro.target.callgraph;
+
+import tiro.*;
+
+import soot.*;
+import soot.jimple.FieldRef;
+import soot.jimple.StaticFieldRef;
+import soot.jimple.spark.pag.AllocDotField;
+import soot.jimple.spark.pag.AllocNode;
+import soot.jimple.spark.pag.Node;
+import soot.jimple.spark.pag.PAG;
+import soot.jimple.spark.sets.P2SetVisitor;
+import soot.jimple.spark.sets.PointsToSetInternal;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.CallGraphPatchingTag;
+import soot.jimple.toolkits.callgraph.Edge;
+import soot.jimple.toolkits.callgraph.Kind;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// On-disk snapshot of the patched call graph and of the Spark points-to sets used by the
+// main analysis, which only depend on the APK (and not on the target methods).  When the
+// same APK is analyzed again (with "--cache-dir"), the snapshot is loaded after the call
+// graph patching (wjpp) instead of running Spark (cg).
+//
+// The snapshot (<cache dir>/callgraph-<key>.bin.gz, see AnalysisCache) contains:
+//   - the call graph edges, with their kind and source statement (by index in the body of
+//     the source method, with a hash of the statement to detect differences),
+//   - the statements tagged by the call graph patching and the bridge methods,
+//   - the points-to sets of the local variables of the reachable methods and of the static
+//     fields they use, and the points-to sets of the fields of each allocation site.
+// Method bodies are re-created from the APK (and the patching is re-applied), so a snapshot
+// is only used if all of its methods, statements, locals and patched statements are found
+// unchanged in the scene; otherwise Spark runs, and the snapshot is replaced.
+
+public class CallGraphSnapshot {
+    private static final int MAGIC = 0x5449524f; // "TIRO"
+    private static final int FORMAT_VERSION = 1;
+
+    private final Path _snapshotFile;
+    private boolean _loaded = false;
+
+    public CallGraphSnapshot() throws IOException {
+        _snapshotFile = AnalysisCache.getCacheFile("callgraph", FORMAT_VERSION, ".bin.gz");
+    }
+
+    public boolean exists() {
+        return Files.exists(_snapshotFile);
+    }
+
+    public boolean isLoaded() {
+        return _loaded;
+    }
+
+    // Sets the call graph and points-to analysis of the scene from the snapshot.  Returns
+    // false if the snapshot cannot be used.
+    public boolean load() {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(_snapshotFile))))) {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION
+                    || !input.readUTF().equals(AnalysisCache.getApkHash())) {
+                throw new IOException("stale snapshot");
+            }
+
+            SceneIndex sceneIndex = new SceneIndex();
+
+            // Methods
+            SootMethod[] methods = new SootMethod[input.readInt()];
+            for (int i = 0; i < methods.length; i++) {
+                String signature = input.readUTF();
+                methods[i] = Scene.v().grabMethod(signature);
+                if (methods[i] == null) {
+                    throw new IOException("missing method " + signature);
+                }
+            }
+
+            // Call graph
+            Map<String, Kind> kinds = getKinds();
+            CallGraph callGraph = new CallGraph();
+            int edgeCount = input.readInt();
+            for (int i = 0; i < edgeCount; i++) {
+                SootMethod source = methods[input.readInt()];
+                Unit sourceUnit = sceneIndex.getUnit(source, input.readInt(), input.readInt());
+                SootMethod target = methods[input.readInt()];
+                String kindName = input.readUTF();
+                Kind kind = kinds.get(kindName);
+                if (kind == null) {
+                    throw new IOException("unknown edge kind " + kindName);
+                }
+
+                callGraph.addEdge(new Edge(source, sourceUnit, target, kind));
+            }
+
+            // Call graph patching (must be the same for the edges to be valid)
+            Set<String> patchedUnits = new HashSet<String>();
+            int patchedUnitCount = input.readInt();
+            for (int i = 0; i < patchedUnitCount; i++) {
+                patchedUnits.add(input.readUTF());
+            }
+            Set<String> bridgeMethods = new HashSet<String>();
+            int bridgeMethodCount = input.readInt();
+            for (int i = 0; i < bridgeMethodCount; i++) {
+                bridgeMethods.add(input.readUTF());
+            }
+            if (!patchedUnits.equals(sceneIndex.getPatchedUnits())
+                    || !bridgeMethods.equals(getBridgeMethods())) {
+                throw new IOException("different call graph patching");
+            }
+
+            // Points-to sets
+            String[] allocationTypes = new String[input.readInt()];
+            for (int i = 0; i < allocationTypes.length; i++) {
+                allocationTypes[i] = input.readUTF();
+            }
+            SnapshotPointsToAnalysis pointsToAnalysis =
+                    new SnapshotPointsToAnalysis(allocationTypes);
+
+            int localCount = input.readInt();
+            for (int i = 0; i < localCount; i++) {
+                SootMethod method = methods[input.readInt()];
+                Local local = sceneIndex.getLocal(method, input.readUTF());
+                pointsToAnalysis.addLocal(local, readBitSet(input));
+            }
+
+            int staticFieldCount = input.readInt();
+            for (int i = 0; i < staticFieldCount; i++) {
+                pointsToAnalysis.addStaticField(input.readUTF(), readBitSet(input));
+            }
+
+            int instanceFieldCount = input.readInt();
+            for (int i = 0; i < instanceFieldCount; i++) {
+                int allocationSite = input.readInt();
+                pointsToAnalysis.addInstanceField(allocationSite, input.readUTF(),
+                        readBitSet(input));
+            }
+
+            Scene.v().setCallGraph(callGraph);
+            Scene.v().setPointsToAnalysis(pointsToAnalysis);
+            _loaded = true;
+
+            Metrics.add("callGraph.snapshotEdges", edgeCount);
+            Output.debug("Loaded call graph snapshot (" + edgeCount + " edges)");
+            return true;
+        } catch (Exception e) {
+            Output.warn("Cannot use call graph snapshot " + _snapshotFile + ": "
+                    + e.toString());
+            return false;
+        }
+    }
+
+    // Writes the call graph and (Spark) points-to analysis of the scene into the snapshot.
+    public void write() {
+        if (!(Scene.v().getPointsToAnalysis() instanceof PAG)) {
+            Output.warn("Call graph snapshot requires the Spark points-to analysis");
+            return;
+        }
+
+        try {
+            Path tempFile = AnalysisCache.createTempFile(_snapshotFile);
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(Files.newOutputStream(tempFile))))) {
+                write(output);
+            }
+            AnalysisCache.replace(tempFile, _snapshotFile);
+        } catch (Exception e) {
+            Output.warn("Cannot write call graph snapshot " + _snapshotFile + ": "
+                    + e.toString());
+        }
+    }
+
+    private void write(DataOutputStream output) throws IOException {
+        SceneIndex sceneIndex = new SceneIndex();
+        PAG pag = (PAG)Scene.v().getPointsToAnalysis();
+
+        // Methods are numbered in the order they are first used.
+        Map<SootMethod, Integer> methodIds = new LinkedHashMap<SootMethod, Integer>();
+        List<int[]> edges = new ArrayList<int[]>();
+        List<String> edgeKinds = new ArrayList<String>();
+        Iterator<Edge> edgeIter = Scene.v().getCallGraph().iterator();
+        while (edgeIter.hasNext()) {
+            Edge edge = edgeIter.next();
+            SootMethod source = edge.src();
+            Unit sourceUnit = edge.srcUnit();
+            edges.add(new int[] {
+                getId(methodIds, source),
+                (sourceUnit != null) ? sceneIndex.getUnitIndex(source, sourceUnit) : -1,
+                (sourceUnit != null) ? sourceUnit.toString().hashCode() : 0,
+                getId(methodIds, edge.tgt())
+            });
+            edgeKinds.add(edge.kind().name());
+        }
+
+        // Points-to sets of the locals of the reachable methods, and of the static fields
+        // they use.  Allocation sites are numbered in the order they are first used.
+        Map<AllocNode, Integer> allocationSiteIds = new LinkedHashMap<AllocNode, Integer>();
+        List<AllocNode> allocationSites = new ArrayList<AllocNode>();
+        List<Object[]> locals = new ArrayList<Object[]>();
+        Map<String, BitSet> staticFields = new TreeMap<String, BitSet>();
+
+        Iterator<MethodOrMethodContext> reachableMethods =
+                Scene.v().getReachableMethods().listener();
+        while (reachableMethods.hasNext()) {
+            SootMethod method = reachableMethods.next().method();
+            if (!method.hasActiveBody()) {
+                continue;
+            }
+
+            Body body = method.getActiveBody();
+            for (Local local : body.getLocals()) {
+                if (!(local.getType() instanceof RefLikeType)) {
+                    continue;
+                }
+
+                BitSet pointsTo = toBitSet(pag.reachingObjects(local), allocationSiteIds,
+                        allocationSites);
+                if (!pointsTo.isEmpty()) {
+                    locals.add(new Object[] { getId(methodIds, method), local.getName(),
+                            pointsTo });
+                }
+            }
+
+            for (ValueBox box : body.getUseAndDefBoxes()) {
+                if (!(box.getValue() instanceof StaticFieldRef)) {
+                    continue;
+                }
+
+                SootField field = ((FieldRef)box.getValue()).getField();
+                if (!(field.getType() instanceof RefLikeType)
+                        || staticFields.containsKey(field.getSignature())) {
+                    continue;
+                }
+
+                BitSet pointsTo = toBitSet(pag.reachingObjects(field), allocationSiteIds,
+                        allocationSites);
+                if (!pointsTo.isEmpty()) {
+                    staticFields.put(field.getSignature(), pointsTo);
+                }
+            }
+        }
+
+        // Points-to sets of the fields of the allocation sites (which may add sites)
+        List<Object[]> instanceFields = new ArrayList<Object[]>();
+        for (int i = 0; i < allocationSites.size(); i++) {
+            for (AllocDotField allocDotField : allocationSites.get(i).getFields()) {
+                String field = (allocDotField.getField() instanceof SootField)
+                        ? ((SootField)allocDotField.getField()).getSignature()
+                        : SnapshotPointsToAnalysis.ARRAY_ELEMENT;
+                BitSet pointsTo = toBitSet(allocDotField.getP2Set(), allocationSiteIds,
+                        allocationSites);
+                if (!pointsTo.isEmpty()) {
+                    instanceFields.add(new Object[] { i, field, pointsTo });
+                }
+            }
+        }
+
+        output.writeInt(MAGIC);
+        output.writeInt(FORMAT_VERSION);
+        output.writeUTF(AnalysisCache.getApkHash());
+
+        output.writeInt(methodIds.size());
+        for (SootMethod method : methodIds.keySet()) {
+            output.writeUTF(method.getSignature());
+        }
+
+        output.writeInt(edges.size());
+        for (int i = 0; i < edges.size(); i++) {
+            int[] edge = edges.get(i);
+            output.writeInt(edge[0]);
+            output.writeInt(edge[1]);
+            output.writeInt(edge[2]);
+            output.writeInt(edge[3]);
+            output.writeUTF(edgeKinds.get(i));
+        }
+
+        Set<String> patchedUnits = sceneIndex.getPatchedUnits();
+        output.writeInt(patchedUnits.size());
+        for (String patchedUnit : patchedUnits) {
+            output.writeUTF(patchedUnit);
+        }
+        Set<String> bridgeMethods = getBridgeMethods();
+        output.writeInt(bridgeMethods.size());
+        for (String bridgeMethod : bridgeMethods) {
+            output.writeUTF(bridgeMethod);
+        }
+
+        output.writeInt(allocationSites.size());
+        for (AllocNode allocationSite : allocationSites) {
+            output.writeUTF(allocationSite.getType().toString());
+        }
+
+        output.writeInt(locals.size());
+        for (Object[] local : locals) {
+            output.writeInt((Integer)local[0]);
+            output.writeUTF((String)local[1]);
+            writeBitSet(output, (BitSet)local[2]);
+        }
+
+        output.writeInt(staticFields.size());
+        for (Map.Entry<String, BitSet> entry : staticFields.entrySet()) {
+            output.writeUTF(entry.getKey());
+            writeBitSet(output, entry.getValue());
+        }
+
+        output.writeInt(instanceFields.size());
+        for (Object[] instanceField : instanceFields) {
+            output.writeInt((Integer)instanceField[0]);
+            output.writeUTF((String)instanceField[1]);
+            writeBitSet(output, (BitSet)instanceField[2]);
+        }
+
+        Metrics.add("callGraph.snapshotEdges", edges.size());
+    }
+
+    // Statements and locals of the method bodies in the scene, by position and name.
+    private static class SceneIndex {
+        private final Map<SootMethod, List<Unit>> _units =
+                new HashMap<SootMethod, List<Unit>>();
+        private final Map<SootMethod, Map<Unit, Integer>> _unitIndices =
+                new HashMap<SootMethod, Map<Unit, Integer>>();
+        private final Map<SootMethod, Map<String, Local>> _locals =
+                new HashMap<SootMethod, Map<String, Local>>();
+
+        public Unit getUnit(SootMethod method, int index, int hash) throws IOException {
+            if (index < 0) {
+                return null;
+            }
+
+            List<Unit> units = getUnits(method);
+            if (index >= units.size() || units.get(index).toString().hashCode() != hash) {
+                throw new IOException("different statements in " + method.getSignature());
+            }
+            return units.get(index);
+        }
+
+        public int getUnitIndex(SootMethod method, Unit unit) throws IOException {
+            Map<Unit, Integer> unitIndices = _unitIndices.get(method);
+            if (unitIndices == null) {
+                unitIndices = new HashMap<Unit, Integer>();
+                for (Unit u : getUnits(method)) {
+                    unitIndices.put(u, unitIndices.size());
+                }
+                _unitIndices.put(method, unitIndices);
+            }
+
+            Integer index = unitIndices.get(unit);
+            if (index == null) {
+                throw new IOException("statement not found in " + method.getSignature());
+            }
+            return index;
+        }
+
+        public Local getLocal(SootMethod method, String name) throws IOException {
+            Map<String, Local> locals = _locals.get(method);
+            if (locals == null) {
+                locals = new HashMap<String, Local>();
+                for (Local local : getBody(method).getLocals()) {
+                    locals.put(local.getName(), local);
+                }
+                _locals.put(method, locals);
+            }
+
+            Local local = locals.get(name);
+            if (local == null) {
+                throw new IOException("local " + name + " not found in "
+                        + method.getSignature());
+            }
+            return local;
+        }
+
+        // Returns the statements tagged by the call graph patching, as
+        // "<method signature>#<statement index>".
+        public Set<String> getPatchedUnits() throws IOException {
+            Set<String> patchedUnits = new TreeSet<String>();
+            for (SootClass klass : Scene.v().getApplicationClasses()) {
+                for (SootMethod method : klass.getMethods()) {
+                    if (!method.hasActiveBody()) {
+                        continue;
+                    }
+
+                    List<Unit> units = getUnits(method);
+                    for (int i = 0; i < units.size(); i++) {
+                        if (units.get(i).getTags().stream()
+                                .anyMatch(t -> t instanceof CallGraphPatchingTag)) {
+                            patchedUnits.add(method.getSignature() + "#" + i);
+                        }
+                    }
+                }
+            }
+
+            return patchedUnits;
+        }
+
+        private List<Unit> getUnits(SootMethod method) throws IOException {
+            List<Unit> units = _units.get(method);
+            if (units == null) {
+                units = new ArrayList<Unit>(getBody(method).getUnits());
+                _units.put(method, units);
+            }
+            return units;
+        }
+
+        private static Body getBody(SootMethod method) throws IOException {
+            if (method.hasActiveBody()) {
+                return method.getActiveBody();
+            } else if (method.isConcrete()) {
+                return method.retrieveActiveBody();
+            }
+
+            throw new IOException("no body for " + method.getSignature());
+        }
+    }
+
+    private static Set<String> getBridgeMethods() {
+        Set<String> bridgeMethods = new TreeSet<String>();
+        SootClass patchClass =
+                Scene.v().getSootClassUnsafe(AndroidCallGraphPatching.PATCH_CLASS_NAME);
+        if (patchClass != null) {
+            patchClass.getMethods().forEach(m -> { bridgeMethods.add(m.getSignature()); });
+        }
+        return bridgeMethods;
+    }
+
+    // Edge kinds by name (including the kinds of the call graph patching).
+    private static Map<String, Kind> getKinds() throws IllegalAccessException {
+        Map<String, Kind> kinds = new HashMap<String, Kind>();
+        for (Field field : Kind.class.getFields()) {
+            if (Modifier.isStatic(field.getModifiers()) && field.getType() == Kind.class) {
+                Kind kind = (Kind)field.get(null);
+                kinds.put(kind.name(), kind);
+            }
+        }
+        return kinds;
+    }
+
+    private static int getId(Map<SootMethod, Integer> methodIds, SootMethod method) {
+        return methodIds.computeIfAbsent(method, k -> methodIds.size());
+    }
+
+    private static BitSet toBitSet(PointsToSet pointsTo, Map<AllocNode, Integer> ids,
+                                   List<AllocNode> allocationSites) {
+        BitSet bitSet = new BitSet();
+        if (pointsTo instanceof PointsToSetInternal) {
+            ((PointsToSetInternal)pointsTo).forall(new P2SetVisitor() {
+                @Override
+                public void visit(Node n) {
+                    AllocNode allocNode = (AllocNode)n;
+                    Integer id = ids.get(allocNode);
+                    if (id == null) {
+                        id = ids.size();
+                        ids.put(allocNode, id);
+                        allocationSites.add(allocNode);
+                    }
+                    bitSet.set(id);
+                }
+            });
+        }
+        return bitSet;
+    }
+
+    private static void writeBitSet(DataOutputStream output, BitSet bitSet)
+            throws IOException {
+        long[] words = bitSet.toLongArray();
+        output.writeInt(words.length);
+        for (long word : words) {
+            output.writeLong(word);
+        }
+    }
+
+    private static BitSet readBitSet(DataInputStream input) throws IOException {
+        long[] words = new long[input.readInt()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = input.readLong();
+        }
+        return BitSet.valueOf(words);
+    }
+}
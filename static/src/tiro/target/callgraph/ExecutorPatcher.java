@@ -14,14 +14,14 @@ import java.util.Collections;
 import java.util.List;
 
 class ExecutorPatcher extends CallGraphPatcher {
-    private static final SootClass _executorClass = Scene.v().getSootClass(
+    private final SootClass _executorClass = Scene.v().getSootClass(
             "java.util.concurrent.Executor");
     private static final String _executeMethodSingature =
             "void execute(java.lang.Runnable)";
 
-    private static final SootClass _runnableClass = Scene.v().getSootClass(
+    private final SootClass _runnableClass = Scene.v().getSootClass(
             "java.lang.Runnable");
-    private static final SootMethodRef _runnableRunMethod = Scene.v().makeMethodRef(
+    private final SootMethodRef _runnableRunMethod = Scene.v().makeMethodRef(
             _runnableClass, "run", Collections.<Type>emptyList(), VoidType.v(), false);
 
     public ExecutorPatcher(SootClass patchClass) {
@@ -20,7 +20,7 @@ import java.util.Collections;
 import java.util.List;
 
 abstract class IntentBasedCallGraphPatcher extends CallGraphPatcher {
-    protected static final SootClass _contextClass = Scene.v().getSootClass(
+    protected final SootClass _contextClass = Scene.v().getSootClass(
             "android.content.Context");
 
     // Note: The manifest analysis will be used when we add support for identifying the intent
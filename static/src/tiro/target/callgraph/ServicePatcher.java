@@ -17,7 +17,7 @@ import java.util.Collections;
 import java.util.List;
 
 class ServicePatcher extends IntentBasedCallGraphPatcher {
-    private static final SootClass _serviceClass = Scene.v().getSootClass(
+    private final SootClass _serviceClass = Scene.v().getSootClass(
             "android.app.Service");
     private static final String _startServiceMethodSignature =
             "android.content.ComponentName startService(android.content.Intent)";
@@ -0,0 +1,123 @@
+package tiro.target.callgraph;
+
+import soot.Context;
+import soot.Local;
+import soot.PointsToAnalysis;
+import soot.PointsToSet;
+import soot.Scene;
+import soot.SootField;
+import soot.Type;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+// Points-to analysis restored from a call graph snapshot (see CallGraphSnapshot), that
+// answers the queries of the main analysis (e.g. HeapVariable) like Spark would.  Contexts
+// are ignored (Spark is context-insensitive).
+
+class SnapshotPointsToAnalysis implements PointsToAnalysis {
+    static final String ARRAY_ELEMENT = "[]";
+
+    // Allocation site -> type name (types are resolved on demand)
+    private final String[] _allocationTypeNames;
+    private final Type[] _allocationTypes;
+
+    private final Map<Local, SnapshotPointsToSet> _locals =
+            new HashMap<Local, SnapshotPointsToSet>();
+    // Static field signature -> points-to set
+    private final Map<String, SnapshotPointsToSet> _staticFields =
+            new HashMap<String, SnapshotPointsToSet>();
+    // Field signature (or ARRAY_ELEMENT) -> allocation site -> allocation sites
+    private final Map<String, Map<Integer, BitSet>> _instanceFields =
+            new HashMap<String, Map<Integer, BitSet>>();
+
+    SnapshotPointsToAnalysis(String[] allocationTypeNames) {
+        _allocationTypeNames = allocationTypeNames;
+        _allocationTypes = new Type[allocationTypeNames.length];
+    }
+
+    void addLocal(Local local, BitSet allocationSites) {
+        _locals.put(local, new SnapshotPointsToSet(this, allocationSites));
+    }
+
+    void addStaticField(String fieldSignature, BitSet allocationSites) {
+        _staticFields.put(fieldSignature, new SnapshotPointsToSet(this, allocationSites));
+    }
+
+    void addInstanceField(int allocationSite, String fieldSignature, BitSet allocationSites) {
+        _instanceFields.computeIfAbsent(fieldSignature, k -> new HashMap<Integer, BitSet>())
+                .put(allocationSite, allocationSites);
+    }
+
+    synchronized Type getAllocationType(int allocationSite) {
+        if (_allocationTypes[allocationSite] == null) {
+            try {
+                _allocationTypes[allocationSite] =
+                        Scene.v().getType(_allocationTypeNames[allocationSite]);
+            } catch (RuntimeException e) {
+                return null;
+            }
+        }
+
+        return _allocationTypes[allocationSite];
+    }
+
+    @Override
+    public PointsToSet reachingObjects(Local local) {
+        SnapshotPointsToSet pointsTo = _locals.get(local);
+        return (pointsTo != null) ? pointsTo : SnapshotPointsToSet.EMPTY;
+    }
+
+    @Override
+    public PointsToSet reachingObjects(Context context, Local local) {
+        return reachingObjects(local);
+    }
+
+    @Override
+    public PointsToSet reachingObjects(SootField field) {
+        SnapshotPointsToSet pointsTo = _staticFields.get(field.getSignature());
+        return (pointsTo != null) ? pointsTo : SnapshotPointsToSet.EMPTY;
+    }
+
+    @Override
+    public PointsToSet reachingObjects(PointsToSet set, SootField field) {
+        return reachingObjects(set, field.getSignature());
+    }
+
+    @Override
+    public PointsToSet reachingObjects(Local local, SootField field) {
+        return reachingObjects(reachingObjects(local), field.getSignature());
+    }
+
+    @Override
+    public PointsToSet reachingObjects(Context context, Local local, SootField field) {
+        return reachingObjects(local, field);
+    }
+
+    @Override
+    public PointsToSet reachingObjectsOfArrayElement(PointsToSet set) {
+        return reachingObjects(set, ARRAY_ELEMENT);
+    }
+
+    // Like Spark, returns a new set (the union of the field's points-to sets of the
+    // allocation sites in the given set).
+    private PointsToSet reachingObjects(PointsToSet set, String fieldSignature) {
+        Map<Integer, BitSet> fieldAllocationSites = _instanceFields.get(fieldSignature);
+        if (fieldAllocationSites == null || !(set instanceof SnapshotPointsToSet)) {
+            return SnapshotPointsToSet.EMPTY;
+        }
+
+        BitSet allocationSites = new BitSet();
+        ((SnapshotPointsToSet)set).getAllocationSites().stream().forEach(site -> {
+            BitSet sites = fieldAllocationSites.get(site);
+            if (sites != null) {
+                allocationSites.or(sites);
+            }
+        });
+
+        return allocationSites.isEmpty()
+                ? SnapshotPointsToSet.EMPTY
+                : new SnapshotPointsToSet(this, allocationSites);
+    }
+}
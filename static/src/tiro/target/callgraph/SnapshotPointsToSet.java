@@ -0,0 +1,67 @@
+package tiro.target.callgraph;
+
+import soot.PointsToSet;
+import soot.Type;
+import soot.jimple.ClassConstant;
+
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.Set;
+
+// Points-to set of a call graph snapshot: the allocation sites (numbered within the
+// snapshot) that a variable may point to.  Like Spark's points-to sets, sets are compared by
+// identity (see HeapVariable).
+
+public class SnapshotPointsToSet implements PointsToSet {
+    static final SnapshotPointsToSet EMPTY = new SnapshotPointsToSet(null, new BitSet());
+
+    private final SnapshotPointsToAnalysis _analysis;
+    private final BitSet _allocationSites;
+
+    SnapshotPointsToSet(SnapshotPointsToAnalysis analysis, BitSet allocationSites) {
+        _analysis = analysis;
+        _allocationSites = allocationSites;
+    }
+
+    // Must not be modified.
+    public BitSet getAllocationSites() {
+        return _allocationSites;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return _allocationSites.isEmpty();
+    }
+
+    @Override
+    public boolean hasNonEmptyIntersection(PointsToSet other) {
+        if (!(other instanceof SnapshotPointsToSet)) {
+            return false;
+        }
+
+        return _allocationSites.intersects(((SnapshotPointsToSet)other)._allocationSites);
+    }
+
+    @Override
+    public Set<Type> possibleTypes() {
+        Set<Type> types = new HashSet<Type>();
+        _allocationSites.stream().forEach(site -> {
+            Type type = _analysis.getAllocationType(site);
+            if (type != null) {
+                types.add(type);
+            }
+        });
+        return types;
+    }
+
+    // String and class constants are not kept in the snapshot (null means "unknown").
+    @Override
+    public Set<String> possibleStringConstants() {
+        return null;
+    }
+
+    @Override
+    public Set<ClassConstant> possibleClassConstants() {
+        return null;
+    }
+}
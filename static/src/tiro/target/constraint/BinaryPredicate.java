@@ -59,6 +59,11 @@ public final class BinaryPredicate extends Predicate {
         return _leftChild.dependsOnInput() || _rightChild.dependsOnInput();
     }
 
+    @Override
+    public int getNodeCount() {
+        return 1 + _leftChild.getNodeCount() + _rightChild.getNodeCount();
+    }
+
     @Override
     public Set<Variable> getAllVariables(Set<Variable> set) {
         _leftChild.getAllVariables(set);
@@ -121,11 +126,11 @@ public final class BinaryPredicate extends Predicate {
     }
 
     @Override
-    public void print(int indent) {
+    protected void printIndented(int indent) {
         if (_leftChild.isBinary() && _leftChild.getOperator().equals(_operator)) {
-            _leftChild.print(indent);
+            _leftChild.printIndented(indent);
         } else {
-            _leftChild.print(indent + 1);
+            _leftChild.printIndented(indent + 1);
         }
 
         StringBuilder outputString = new StringBuilder();
@@ -136,9 +141,9 @@ public final class BinaryPredicate extends Predicate {
         Output.printConstraint(outputString.toString());
 
         if (_rightChild.isBinary() && _rightChild.getOperator().equals(_operator)) {
-            _rightChild.print(indent);
+            _rightChild.printIndented(indent);
         } else {
-            _rightChild.print(indent + 1);
+            _rightChild.printIndented(indent + 1);
         }
     }
 }
@@ -1,6 +1,8 @@
 package tiro.target.constraint;
 
+import tiro.FlightRecorder;
 import tiro.Output;
+import tiro.target.PathProfile;
 import tiro.target.event.CallPath;
 
 import soot.*;
@@ -29,8 +31,16 @@ public class ConstraintAnalysis {
     }
 
     public Predicate getConstraints() {
+        long startTime = System.nanoTime();
         extractConstraints();
+        PathProfile.addStageTime(PathProfile.Stage.CONSTRAINT_ANALYSIS, startTime);
+
+        startTime = System.nanoTime();
+        int nodesBefore = (_constraints != null) ? _constraints.getNodeCount() : 0;
         minimizeConstraints();
+        int nodesAfter = (_constraints != null) ? _constraints.getNodeCount() : 0;
+        PathProfile.addStageTime(PathProfile.Stage.MINIMIZATION, startTime);
+        PathProfile.addMinimization(nodesBefore, nodesAfter);
 
         return _constraints;
     }
@@ -53,6 +63,18 @@ public class ConstraintAnalysis {
         _constraints = ConstraintMinimization.minimize(_constraints);
     }
 
+    private IntraproceduralConstraintAnalysis analyzeMethod(SootMethod method,
+            DataMap parameterMap) {
+        Object flightRecorderEvent = FlightRecorder.beginMethodAnalysis();
+
+        UnitGraph cfg = new BriefUnitGraph(method.getActiveBody());
+        IntraproceduralConstraintAnalysis intraAnalysis =
+                new IntraproceduralConstraintAnalysis(cfg, parameterMap, _pathMethods);
+
+        FlightRecorder.endMethodAnalysis(flightRecorderEvent, cfg.getBody(), 0);
+        return intraAnalysis;
+    }
+
     protected DataMap generateEntryPointParameterMap() {
         DataMap parameterMap = new DataMap();
         SootMethod entryPointMethod = _callPath.getNodes().get(0).method();
@@ -97,9 +119,8 @@ public class ConstraintAnalysis {
         MethodOrMethodContext nextNode = edge.getTgt();
         Stmt nodeTargetStmt = (Stmt)edge.srcUnit();
 
-        UnitGraph cfg = new BriefUnitGraph(node.method().getActiveBody());
         IntraproceduralConstraintAnalysis intraAnalysis =
-                new IntraproceduralConstraintAnalysis(cfg, parameterMap, _pathMethods);
+                analyzeMethod(node.method(), parameterMap);
 
         // Get data map and constraints at point where next method in path is invoked
         DataMap targetDataMap = intraAnalysis.getFlowBefore(nodeTargetStmt);
@@ -187,9 +208,8 @@ public class ConstraintAnalysis {
 
     protected void extractConstraintsForTargetUnit(SootMethod targetMethod, Unit targetUnit,
             DataMap parameterMap) {
-        UnitGraph cfg = new BriefUnitGraph(targetMethod.getActiveBody());
         IntraproceduralConstraintAnalysis intraAnalysis =
-                new IntraproceduralConstraintAnalysis(cfg, parameterMap, _pathMethods);
+                analyzeMethod(targetMethod, parameterMap);
 
         // Get data map and constraints at unit
         DataMap targetDataMap = intraAnalysis.getFlowBefore(targetUnit);
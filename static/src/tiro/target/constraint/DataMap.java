@@ -138,6 +138,10 @@ class DataMap {
     }
 
     public void printDataMappings() {
+        if (!Output.isEnabled(Output.Level.DEBUG)) {
+            return;
+        }
+
         this.LocalMap.forEach(
                 (x,y) -> { Output.debug("    local map: " + x + " -> " + y); });
         this.HeapMap.forEach(
@@ -1,6 +1,7 @@
 package tiro.target.constraint;
 
 import tiro.Output;
+import tiro.SceneLocal;
 
 import soot.BooleanType;
 import soot.IntType;
@@ -28,29 +29,34 @@ public abstract class Expression {
         _type = type;
     }
 
-    private static final VariableExpression TRUE =
-            new VariableExpression(new BooleanVariable(true));
-    private static final VariableExpression FALSE =
-            new VariableExpression(new BooleanVariable(false));
-    private static final VariableExpression NULL =
-            new VariableExpression(NullVariable.getInstance());
-    private static final VariableExpression EMPTY_STRING =
-            new VariableExpression(new StringVariable(""));
+    // Constants have Soot types, so they are re-created when the scene is reset.
+    private static final SceneLocal<VariableExpression> TRUE =
+            new SceneLocal<VariableExpression>(
+                    () -> new VariableExpression(new BooleanVariable(true)));
+    private static final SceneLocal<VariableExpression> FALSE =
+            new SceneLocal<VariableExpression>(
+                    () -> new VariableExpression(new BooleanVariable(false)));
+    private static final SceneLocal<VariableExpression> NULL =
+            new SceneLocal<VariableExpression>(
+                    () -> new VariableExpression(NullVariable.getInstance()));
+    private static final SceneLocal<VariableExpression> EMPTY_STRING =
+            new SceneLocal<VariableExpression>(
+                    () -> new VariableExpression(new StringVariable("")));
 
     static VariableExpression getTrue() {
-        return TRUE;
+        return TRUE.get();
     }
 
     static VariableExpression getFalse() {
-        return FALSE;
+        return FALSE.get();
     }
 
     static VariableExpression getNull() {
-        return NULL;
+        return NULL.get();
     }
 
     static VariableExpression getEmptyString() {
-        return EMPTY_STRING;
+        return EMPTY_STRING.get();
     }
 
     public boolean isTrue() {
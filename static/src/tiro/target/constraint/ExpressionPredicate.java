@@ -57,6 +57,11 @@ public final class ExpressionPredicate extends Predicate {
         return _expression.dependsOnInput();
     }
 
+    @Override
+    public int getNodeCount() {
+        return 1;
+    }
+
     @Override
     public Set<Variable> getAllVariables(Set<Variable> set) {
         _expression.getAllVariables(set);
@@ -97,7 +102,7 @@ public final class ExpressionPredicate extends Predicate {
     }
 
     @Override
-    public void print(int indent) {
+    protected void printIndented(int indent) {
         StringBuilder outputString = new StringBuilder();
         for (int i = 0; i < indent; i++) {
             outputString.append("    ");
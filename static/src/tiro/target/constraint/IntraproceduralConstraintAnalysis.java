@@ -1,6 +1,9 @@
 package tiro.target.constraint;
 
+import tiro.FlightRecorder;
+import tiro.Metrics;
 import tiro.Output;
+import tiro.target.PathProfile;
 import tiro.target.StaticAnalysisTimeoutException;
 
 import soot.*;
@@ -41,6 +44,9 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
     // Track read heap variables to constrain multiple reads
     private final Set<HeapVariable> _readHeapVariables = new HashSet<HeapVariable>();
 
+    // Whether the analysis reached the call of an auxiliary method
+    private boolean _hasAuxiliaryMethods = false;
+
     public IntraproceduralConstraintAnalysis(UnitGraph graph, DataMap parameterMap,
             Set<SootMethod> excludeMethods) {
         this(graph, parameterMap, excludeMethods, 0);
@@ -99,6 +105,8 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
             throw new StaticAnalysisTimeoutException("ConstraintAnalysis");
         }
 
+        PathProfile.countFlowThrough();
+
         // In future, may want to look at expressions that have changed and remove them
         if (_flowThroughCounts.get(s) >= MAX_FLOW_THROUGH_COUNT) {
             return;
@@ -128,6 +136,10 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
     }
 
     protected void printDataMapDebug(DataMap dataMap) {
+        if (!Output.isEnabled(Output.Level.DEBUG)) {
+            return;
+        }
+
         dataMap.LocalMap.forEach((x,y) -> { Output.debug(String.format("%8s -> %s", x, y)); });
         dataMap.HeapMap.forEach((x,y) -> { Output.debug("  " + x + " -> " + y); });
         //if (dataMap.ControlFlowConstraint != null) {
@@ -177,6 +189,11 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
         if (!auxMethod.hasActiveBody()) {
             return null;
         }
+        _hasAuxiliaryMethods = true;
+        if (MethodSummaryStore.isInert(auxMethod)) {
+            Metrics.increment("auxMethods.skipped");
+            return null;
+        }
 
         // Construct parameter map
         DataMap parameterMap = new DataMap();
@@ -208,10 +225,15 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
         }
 
         // Analyze constraints in auxiliary method
+        Object flightRecorderEvent = FlightRecorder.beginMethodAnalysis();
+        long startTime = System.nanoTime();
         UnitGraph auxCfg = new BriefUnitGraph(auxMethod.getActiveBody());
+        PathProfile.countAuxMethodAnalysis();
         IntraproceduralConstraintAnalysis auxIntraAnalysis =
                 new IntraproceduralConstraintAnalysis(
                         auxCfg, parameterMap, _excludeMethods, _auxDepth + 1);
+        long analysisTime = System.nanoTime() - startTime;
+        FlightRecorder.endMethodAnalysis(flightRecorderEvent, auxCfg.getBody(), _auxDepth + 1);
 
         // Track all heap dependencies encountered
         _heapDependencies.addAll(auxIntraAnalysis.getHeapDependencies());
@@ -220,12 +242,11 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
 
         // If auxilliary method returns a value, merge auxiliary constraints with current
         // constraints.
+        Predicate returnPred = null;
         if (auxMethod.getReturnType() != null
                 && !auxMethod.getReturnType().equals(VoidType.v())) {
             // Track the values that the returned variable can take and the constraints that
             // lead there.
-            Predicate returnPred = null;
-
             for (Unit tailUnit : auxCfg.getTails()) {
                 if (tailUnit instanceof ThrowStmt) {
                     continue;
@@ -257,11 +278,15 @@ class IntraproceduralConstraintAnalysis extends ForwardBranchedFlowAnalysis<Data
                             returnPred, returnValuePred);
                 }
             }
+        }
 
-            return returnPred;
+        // The analysis of other auxiliary methods may depend on the caller's heap.
+        if (!auxIntraAnalysis._hasAuxiliaryMethods) {
+            MethodSummaryStore.addSummary(auxMethod, returnPred == null
+                    && auxIntraAnalysis.getHeapDependencies().isEmpty(), analysisTime);
         }
 
-        return null;
+        return returnPred;
     }
 
     private ConstraintStmtSwitch _constraintStmtSwitch = new ConstraintStmtSwitch();
@@ -0,0 +1,291 @@
+package tiro.target.constraint;
+
+import tiro.*;
+
+import soot.*;
+import soot.jimple.FieldRef;
+import soot.jimple.IdentityStmt;
+import soot.jimple.ParameterRef;
+import soot.jimple.ThisRef;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// Summaries of auxiliary methods, used to skip the analysis of auxiliary methods that never
+// contribute constraints or heap dependencies to the calling path ("inert" methods).
+//
+// The analysis of an auxiliary method only depends on the caller through the values of its
+// parameters and "this", and through the caller's heap (which its field reads resolve to).
+// So for methods that neither use their parameters or "this" nor read fields, the result is
+// the same for every call and in every app.  The observed result of the first analysis of
+// such a method is recorded (whether it returned no constraint and no heap dependencies), and
+// later calls are skipped if it was inert.  Results of analyses that analyzed other auxiliary
+// methods are not recorded, since those callees may read fields.
+//
+// With "--cache-dir", the summaries are kept in a store shared by all APKs
+// (<cache dir>/methodSummaries.bin.gz), so that e.g. the methods of third-party libraries
+// bundled by many apps are only analyzed once.  Methods are identified by a hash of their
+// Jimple body with normalized local names.  The store holds at most "--summary-store-size"
+// summaries; the least recently used ones are evicted when it is saved at the end of each
+// analysis (concurrent analyses merge their summaries into the file).
+
+public class MethodSummaryStore {
+    private static final int MAGIC = 0x5449524f; // "TIRO"
+    private static final int FORMAT_VERSION = 2;
+    private static final String FILE_NAME = "methodSummaries.bin.gz";
+
+    private static final Pattern TOKEN_PATTERN = Pattern.compile("[\\w$]+");
+
+    private static class Summary {
+        public final boolean Inert;
+        public final long AnalysisTime; // in microseconds
+        public long LastUsed;
+
+        public Summary(boolean inert, long analysisTime, long lastUsed) {
+            Inert = inert;
+            AnalysisTime = analysisTime;
+            LastUsed = lastUsed;
+        }
+    }
+
+    private static class MethodInfo {
+        public final String Key;            // null if the analysis depends on the caller
+        public volatile Boolean Inert = null; // null until the result is known
+
+        public MethodInfo(String key) {
+            Key = key;
+        }
+    }
+
+    // Methods of the current scene
+    private static final SceneLocal<Map<SootMethod, MethodInfo>> _methods =
+            new SceneLocal<Map<SootMethod, MethodInfo>>(
+                    () -> new ConcurrentHashMap<SootMethod, MethodInfo>());
+
+    // Summaries of the store of _storeDirectory (most recently used last)
+    private static String _storeDirectory = null;
+    private static LinkedHashMap<String, Summary> _summaries = null;
+    private static boolean _modified = false;
+
+    // Returns whether the auxiliary method's analysis can be skipped.
+    static boolean isInert(SootMethod method) {
+        Map<SootMethod, MethodInfo> methods = _methods.get();
+        MethodInfo info = methods.get(method);
+        if (info == null) {
+            // Computed outside of any lock (the body hash is the expensive part); a method
+            // looked up concurrently by several threads is only registered once.
+            MethodInfo newInfo = getMethodInfo(method);
+            info = methods.putIfAbsent(method, newInfo);
+            if (info == null) {
+                info = newInfo;
+            }
+        }
+
+        return info.Inert != null && info.Inert;
+    }
+
+    // Records the observed result of an analyzed auxiliary method (if it does not depend on
+    // the caller, see above).
+    static void addSummary(SootMethod method, boolean inert, long analysisTime) {
+        MethodInfo info = _methods.get().get(method);
+        if (info == null || info.Key == null || info.Inert != null) {
+            return;
+        }
+
+        info.Inert = inert;
+        synchronized (MethodSummaryStore.class) {
+            Map<String, Summary> summaries = getSummaries();
+            if (summaries != null) {
+                summaries.put(info.Key, new Summary(inert, analysisTime / 1000,
+                        System.currentTimeMillis()));
+                _modified = true;
+            }
+        }
+    }
+
+    // Merges the summaries into the store file, and evicts the least recently used ones.
+    public static synchronized void save() {
+        if (_summaries == null || !_modified) {
+            return;
+        }
+
+        Path file = Paths.get(_storeDirectory, FILE_NAME);
+        try {
+            // Other analyses may have written the file since it was loaded.
+            Map<String, Summary> summaries = read(file);
+            _summaries.forEach((key, summary) -> {
+                Summary previous = summaries.get(key);
+                if (previous == null || previous.LastUsed < summary.LastUsed) {
+                    summaries.put(key, summary);
+                }
+            });
+
+            List<Map.Entry<String, Summary>> entries =
+                    new ArrayList<Map.Entry<String, Summary>>(summaries.entrySet());
+            entries.sort(Comparator.comparingLong(e -> e.getValue().LastUsed));
+            int maxSize = TIROStaticAnalysis.Config.SummaryStoreSize;
+            if (entries.size() > maxSize) {
+                Metrics.add("methodSummaries.evicted", entries.size() - maxSize);
+                entries = entries.subList(entries.size() - maxSize, entries.size());
+            }
+
+            Path tempFile = AnalysisCache.createTempFile(file);
+            try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(Files.newOutputStream(tempFile))))) {
+                output.writeInt(MAGIC);
+                output.writeInt(FORMAT_VERSION);
+                output.writeUTF(TIROStaticAnalysis.Configuration.Version);
+                output.writeInt(entries.size());
+                for (Map.Entry<String, Summary> entry : entries) {
+                    output.writeUTF(entry.getKey());
+                    output.writeBoolean(entry.getValue().Inert);
+                    output.writeLong(entry.getValue().AnalysisTime);
+                    output.writeLong(entry.getValue().LastUsed);
+                }
+            }
+            AnalysisCache.replace(tempFile, file);
+
+            _summaries = new LinkedHashMap<String, Summary>(16, 0.75f, true);
+            entries.forEach(e -> { _summaries.put(e.getKey(), e.getValue()); });
+            _modified = false;
+        } catch (Exception e) {
+            Output.warn("Cannot write method summaries " + file + ": " + e.toString());
+        }
+    }
+
+    private static MethodInfo getMethodInfo(SootMethod method) {
+        long startTime = System.nanoTime();
+        Body body = method.getActiveBody();
+
+        Set<Value> inputs = new HashSet<Value>();
+        for (Unit unit : body.getUnits()) {
+            if (unit instanceof IdentityStmt
+                    && (((IdentityStmt)unit).getRightOp() instanceof ParameterRef
+                        || ((IdentityStmt)unit).getRightOp() instanceof ThisRef)) {
+                inputs.add(((IdentityStmt)unit).getLeftOp());
+            }
+        }
+
+        for (Unit unit : body.getUnits()) {
+            for (ValueBox box : unit.getUseBoxes()) {
+                if (box.getValue() instanceof FieldRef
+                        || (!(unit instanceof IdentityStmt)
+                            && inputs.contains(box.getValue()))) {
+                    Metrics.increment("methodSummaries.callerDependent");
+                    return new MethodInfo(null);
+                }
+            }
+        }
+
+        MethodInfo info = new MethodInfo(getBodyHash(body));
+        synchronized (MethodSummaryStore.class) {
+            Map<String, Summary> summaries = getSummaries();
+            Summary summary = (summaries != null) ? summaries.get(info.Key) : null;
+            if (summary != null) {
+                Metrics.increment("methodSummaries.hits");
+                if (summary.Inert) {
+                    Metrics.add("methodSummaries.timeSavedUs", summary.AnalysisTime);
+                }
+                summary.LastUsed = System.currentTimeMillis();
+                _modified = true;
+                info.Inert = summary.Inert;
+            } else {
+                Metrics.increment("methodSummaries.misses");
+            }
+        }
+
+        Metrics.addTime("methodSummaries.lookup", startTime);
+        return info;
+    }
+
+    // Hash of the method's return type and Jimple statements, with locals renamed in order of
+    // appearance (local names depend on the other methods of the dex file).
+    private static String getBodyHash(Body body) {
+        Set<String> localNames = new HashSet<String>();
+        body.getLocals().forEach(l -> { localNames.add(l.getName()); });
+
+        Map<String, String> renamedLocals = new HashMap<String, String>();
+        StringBuilder text = new StringBuilder(body.getMethod().getReturnType().toString());
+        for (Unit unit : body.getUnits()) {
+            String unitText = unit.toString();
+            Matcher matcher = TOKEN_PATTERN.matcher(unitText);
+            int end = 0;
+            text.append('\n');
+            while (matcher.find()) {
+                String token = matcher.group();
+                text.append(unitText, end, matcher.start());
+                text.append(localNames.contains(token)
+                        ? renamedLocals.computeIfAbsent(token, k -> "l" + renamedLocals.size())
+                        : token);
+                end = matcher.end();
+            }
+            text.append(unitText, end, unitText.length());
+        }
+
+        return Hashes.sha256(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Returns the summaries of the store (null if there is none).  Must be called with the
+    // class locked.
+    private static LinkedHashMap<String, Summary> getSummaries() {
+        String directory = TIROStaticAnalysis.Config.CacheDirectory;
+        if (directory == null) {
+            return null;
+        }
+
+        if (!directory.equals(_storeDirectory)) {
+            save();
+
+            Path file = Paths.get(directory, FILE_NAME);
+            _summaries = new LinkedHashMap<String, Summary>(16, 0.75f, true);
+            try {
+                _summaries.putAll(read(file));
+            } catch (Exception e) {
+                Output.warn("Cannot read method summaries " + file + ": " + e.toString());
+            }
+            _storeDirectory = directory;
+            _modified = false;
+        }
+
+        return _summaries;
+    }
+
+    private static Map<String, Summary> read(Path file) throws IOException {
+        Map<String, Summary> summaries = new HashMap<String, Summary>();
+        if (!Files.exists(file)) {
+            return summaries;
+        }
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(Files.newInputStream(file))))) {
+            if (input.readInt() != MAGIC || input.readInt() != FORMAT_VERSION
+                    || !input.readUTF().equals(TIROStaticAnalysis.Configuration.Version)) {
+                // Summaries of other versions are discarded (the analysis may differ).
+                return summaries;
+            }
+
+            int count = input.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = input.readUTF();
+                boolean inert = input.readBoolean();
+                long analysisTime = input.readLong();
+                summaries.put(key, new Summary(inert, analysisTime, input.readLong()));
+            }
+        }
+
+        return summaries;
+    }
+}
@@ -1,18 +1,16 @@
 package tiro.target.constraint;
 
 import tiro.Output;
+import tiro.SceneLocal;
 
 import soot.NullType;
 
 public final class NullVariable extends ConstantVariable<String> {
-    static NullVariable _instance = null;
+    private static final SceneLocal<NullVariable> _instance =
+            new SceneLocal<NullVariable>(NullVariable::new);
 
     public static NullVariable getInstance() {
-        if (_instance == null) {
-            _instance = new NullVariable();
-        }
-
-        return _instance;
+        return _instance.get();
     }
 
     private NullVariable() {
@@ -1,6 +1,7 @@
 package tiro.target.constraint;
 
 import tiro.Output;
+import tiro.SceneLocal;
 
 import java.util.HashSet;
 import java.util.Set;
@@ -15,16 +16,18 @@ public abstract class Predicate {
         NOT
     }
 
-    private static final Predicate TRUE = new ExpressionPredicate(Expression.getTrue());
-    private static final Predicate FALSE = new ExpressionPredicate(Expression.getFalse());
+    private static final SceneLocal<Predicate> TRUE = new SceneLocal<Predicate>(
+            () -> new ExpressionPredicate(Expression.getTrue()));
+    private static final SceneLocal<Predicate> FALSE = new SceneLocal<Predicate>(
+            () -> new ExpressionPredicate(Expression.getFalse()));
 
     public static Predicate getTrue() {
-        return TRUE;
+        return TRUE.get();
         //return new Predicate(Expression.getTrue());
     }
 
     public static Predicate getFalse() {
-        return FALSE;
+        return FALSE.get();
         //return new Predicate(Expression.getFalse());
     }
 
@@ -86,6 +89,7 @@ public abstract class Predicate {
     public abstract boolean containsExpression(Expression expression);
     public abstract boolean contains(Predicate other);
     public abstract boolean dependsOnInput();
+    public abstract int getNodeCount();
     public abstract Set<Variable> getAllVariables(Set<Variable> set);
     public Set<Variable> getAllVariables() {
         Set<Variable> result = new HashSet<Variable>();
@@ -97,12 +101,20 @@ public abstract class Predicate {
     @Override public abstract Predicate clone();
     @Override public abstract boolean equals(Object other);
 
-    public abstract void print(int indent);
+    // Constraints are printed at the INFO level; the check is done once here, since building
+    // the output of large constraints is expensive.
+    public final void print(int indent) {
+        if (Output.isEnabled(Output.Level.INFO)) {
+            printIndented(indent);
+        }
+    }
 
     public void print() {
         print(0);
     }
 
+    protected abstract void printIndented(int indent);
+
     public abstract Set<Variable> searchVariables(Predicate.VariablePredicate predicate,
                                                   Set<Variable> result);
 
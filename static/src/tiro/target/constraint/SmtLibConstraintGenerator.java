@@ -0,0 +1,369 @@
+package tiro.target.constraint;
+
+import tiro.Output;
+import tiro.target.StaticAnalysisTimeoutException;
+
+import soot.*;
+
+import com.google.gson.JsonObject;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+
+// Generates SMT-LIB2 for a constraint.  Sorts and operators follow the ones used by Z3Solver
+// (bit-vectors for integral types, floating-point sorts for float/double, and strings), so
+// a batch solver run over the generated file should produce the same results as in-process
+// solving.  Variable names follow the same scheme as Z3ConstraintGenerator so that the
+// "Variables" map in the output JSON can be used with either format.
+
+public class SmtLibConstraintGenerator {
+    private final Predicate _constraint;
+    private final String _smtConstraint;
+    private final String _smtDeclarations;
+    private final Map<SymbolicVariable, String> _variableMap =
+            new LinkedHashMap<SymbolicVariable, String>();
+    private final Map<SymbolicVariable, String> _variableSorts =
+            new HashMap<SymbolicVariable, String>();
+    private int _nextVariableNum = 0;
+
+    public SmtLibConstraintGenerator(Predicate constraint) {
+        _constraint = constraint;
+        _smtConstraint = generateBoolTerm(constraint);
+        _smtDeclarations = generateDeclarations();
+    }
+
+    public String getSmtConstraintString() {
+        return _smtConstraint;
+    }
+
+    public JsonObject getSmtVariableMapJson() {
+        JsonObject jsonObject = new JsonObject();
+
+        for (SymbolicVariable variable : _variableMap.keySet()) {
+            if (!variable.isHeapVariable()) {
+                jsonObject.addProperty(variable.toString(), _variableMap.get(variable));
+            }
+        }
+
+        return jsonObject;
+    }
+
+    // Returns a self-contained SMT-LIB2 block for the constraint.  The block is scoped with
+    // push/pop so that blocks from different events can be concatenated in one file.
+    public String getSmtConstraintCode(String assertionName) {
+        StringBuilder code = new StringBuilder();
+        code.append("(push 1)\n");
+        code.append(_smtDeclarations);
+        code.append("(assert (! ");
+        code.append(_smtConstraint);
+        code.append(" :named ");
+        code.append(assertionName);
+        code.append("))\n");
+        code.append("(echo \"");
+        code.append(assertionName);
+        code.append("\")\n");
+        code.append("(check-sat)\n");
+        code.append("(get-model)\n");
+        code.append("(pop 1)\n");
+
+        return code.toString();
+    }
+
+    // Header that should appear once at the start of a file holding constraint blocks.
+    public static String getSmtFileHeader() {
+        StringBuilder header = new StringBuilder();
+        header.append("(set-option :produce-models true)\n");
+        header.append("(set-option :produce-unsat-cores true)\n");
+        header.append("(set-logic ALL)\n");
+        return header.toString();
+    }
+
+    private String getNewSmtVariableName() {
+        return "IAAv" + (_nextVariableNum++);
+    }
+
+    private String generateBoolTerm(Predicate constraint) {
+        // In cases where the constraints are complex (e.g. in a long method with many loops),
+        // make sure that we detect timeouts and stop analysis in for the current path.
+        if (Thread.interrupted()) {
+            throw new StaticAnalysisTimeoutException("ConstraintAnalysis");
+        }
+
+        if (constraint.isExpression()) {
+            Expression expr = ((ExpressionPredicate)constraint).getExpression();
+            if (expr.isTrue()) {
+                return "true";
+            } else if (expr.isFalse()) {
+                return "false";
+            } else if (expr.isVariable()) {
+                // Boolean variables are represented as 1-bit bit-vectors.
+                return "(= " + generateTerm(expr) + " #b1)";
+            }
+
+            return generateTerm(expr);
+
+        } else if (constraint.isUnary()) {
+            return "(not " + generateBoolTerm(((UnaryPredicate)constraint).getChild()) + ")";
+
+        } else if (constraint.isBinary()) {
+            String operator = constraint.getOperator().equals(Predicate.Operator.AND)
+                    ? "and" : "or";
+            return "(" + operator + " "
+                    + generateBoolTerm(((BinaryPredicate)constraint).getLeftChild()) + " "
+                    + generateBoolTerm(((BinaryPredicate)constraint).getRightChild()) + ")";
+        }
+
+        Output.error("SmtLibConstraintGenerator: ill-formed constraint");
+        return "true";
+    }
+
+    private String generateTerm(Expression expr) {
+        if (expr.isVariable()) {
+            return generateVariableTerm(expr.toVariableExpression());
+        } else if (expr.isStringExpression()) {
+            return generateStringTerm(expr.toStringExpression());
+        } else if (expr.isArithmeticExpression()) {
+            return generateArithmeticTerm(expr.toArithmeticExpression());
+        }
+
+        Output.error("SmtLibConstraintGenerator: cannot represent expression " + expr);
+        return "true";
+    }
+
+    private String generateArithmeticTerm(ArithmeticExpression arithExpr) {
+        String left = generateTerm(arithExpr.getLeft());
+        String right = generateTerm(arithExpr.getRight());
+        String operator = null;
+
+        if (Variable.isFloatingPointType(arithExpr.getType())) {
+            switch (arithExpr.getOperator()) {
+                case ADD: operator = "fp.add RNE"; break;
+                case SUB: operator = "fp.sub RNE"; break;
+                case MUL: operator = "fp.mul RNE"; break;
+                case DIV: operator = "fp.div RNE"; break;
+                case GT:  operator = "fp.gt"; break;
+                case GE:  operator = "fp.geq"; break;
+                case LT:  operator = "fp.lt"; break;
+                case LE:  operator = "fp.leq"; break;
+                case EQ:  operator = "fp.eq"; break;
+                case NE:  return "(not (fp.eq " + left + " " + right + "))";
+                default:  break;
+            }
+        } else {
+            switch (arithExpr.getOperator()) {
+                case ADD: operator = "bvadd"; break;
+                case SUB: operator = "bvsub"; break;
+                case MUL: operator = "bvmul"; break;
+                case DIV: operator = "bvsdiv"; break;
+                case REM: operator = "bvsrem"; break;
+                case GT:  operator = "bvsgt"; break;
+                case GE:  operator = "bvsge"; break;
+                case LT:  operator = "bvslt"; break;
+                case LE:  operator = "bvsle"; break;
+                case EQ:  operator = "="; break;
+                case NE:  return "(not (= " + left + " " + right + "))";
+                case AND: operator = "bvand"; break;
+                case OR:  operator = "bvor"; break;
+                case XOR: operator = "bvxor"; break;
+                case SHL: operator = "bvshl"; break;
+                case SHR: operator = "bvlshr"; break;
+                default:  break;
+            }
+        }
+
+        if (operator == null) {
+            Output.error("SmtLibConstraintGenerator: cannot represent arithmetic constraint "
+                    + arithExpr);
+            return "true";
+        }
+
+        return "(" + operator + " " + left + " " + right + ")";
+    }
+
+    private String generateStringTerm(StringExpression stringExpr) {
+        String left = generateTerm(stringExpr.getLeft());
+        String right = generateTerm(stringExpr.getRight());
+
+        switch (stringExpr.getOperator()) {
+            case STR_EQ:    return "(= " + left + " " + right + ")";
+            case STR_NE:    return "(not (= " + left + " " + right + "))";
+            case APPEND:    return "(str.++ " + left + " " + right + ")";
+            case CONTAINS:  return "(str.contains " + left + " " + right + ")";
+            case INDEX_OF:  return "(str.indexof " + left + " " + right + " 0)";
+            case PREFIX_OF: return "(str.prefixof " + left + " " + right + ")";
+            case SUFFIX_OF: return "(str.suffixof " + left + " " + right + ")";
+            default:        break;
+        }
+
+        Output.error("SmtLibConstraintGenerator: cannot represent string constraint "
+                + stringExpr);
+        return "true";
+    }
+
+    private String generateVariableTerm(final VariableExpression expr) {
+        final Variable variable = expr.getVariable();
+
+        if (variable.isConstant()) {
+            return generateConstantTerm(expr, variable);
+        }
+
+        // Not a constant, so obtain from symbolic variable map (or generate if needed).
+        SymbolicVariable symbolicVariable = (SymbolicVariable)variable;
+        return _variableMap.computeIfAbsent(symbolicVariable, k -> {
+            _variableSorts.put(k, getSort(expr.getType()));
+            return getNewSmtVariableName();
+        });
+    }
+
+    private String generateConstantTerm(final VariableExpression expr,
+                                        final Variable variable) {
+        final StringBuilder term = new StringBuilder();
+
+        expr.getType().apply(new TypeSwitch() {
+            @Override
+            public void caseBooleanType(BooleanType t) {
+                boolean value = ((BooleanVariable)variable).getValue().booleanValue();
+                term.append(value ? "#b1" : "#b0");
+            }
+            @Override
+            public void caseByteType(ByteType t) {
+                term.append(bitVecLiteral(numberValue(variable).longValue(), 8));
+            }
+            @Override
+            public void caseCharType(CharType t) {
+                term.append(bitVecLiteral(numberValue(variable).longValue(), 8));
+            }
+            @Override
+            public void caseShortType(ShortType t) {
+                term.append(bitVecLiteral(numberValue(variable).longValue(), 16));
+            }
+            @Override
+            public void caseIntType(IntType t) {
+                term.append(bitVecLiteral(numberValue(variable).longValue(), 32));
+            }
+            @Override
+            public void caseLongType(LongType t) {
+                term.append(bitVecLiteral(numberValue(variable).longValue(), 64));
+            }
+            @Override
+            public void caseFloatType(FloatType t) {
+                term.append(floatingPointLiteral(numberValue(variable).doubleValue(), 8, 24));
+            }
+            @Override
+            public void caseDoubleType(DoubleType t) {
+                term.append(floatingPointLiteral(numberValue(variable).doubleValue(), 11, 53));
+            }
+            @Override
+            public void caseRefType(RefType t) {
+                if (Variable.isStringType(t) && variable instanceof StringVariable) {
+                    term.append(stringLiteral(((StringVariable)variable).getValue()));
+                } else if (Variable.isStringType(t)) {
+                    term.append("\"\"");
+                } else {
+                    term.append(bitVecLiteral(0, 32));
+                }
+            }
+            @Override
+            public void defaultCase(Type t) {
+                // Null, void and array constants are handled based on the outer expression
+                // type, the same way as in Z3Solver.
+                if (Variable.isStringType(expr.getType())) {
+                    term.append("\"\"");
+                } else {
+                    term.append(bitVecLiteral(0, 32));
+                }
+            }
+        });
+
+        return term.toString();
+    }
+
+    private static Number numberValue(Variable variable) {
+        if (variable instanceof NumberVariable) {
+            return ((NumberVariable)variable).getValue();
+        }
+
+        Output.error("SmtLibConstraintGenerator: non-numeric constant " + variable);
+        return Integer.valueOf(0);
+    }
+
+    private static String getSort(Type type) {
+        if (type instanceof BooleanType) {
+            return "(_ BitVec 1)";
+        } else if (type instanceof ByteType || type instanceof CharType) {
+            return "(_ BitVec 8)";
+        } else if (type instanceof ShortType) {
+            return "(_ BitVec 16)";
+        } else if (type instanceof LongType) {
+            return "(_ BitVec 64)";
+        } else if (type instanceof FloatType) {
+            return "(_ FloatingPoint 8 24)";
+        } else if (type instanceof DoubleType) {
+            return "(_ FloatingPoint 11 53)";
+        } else if (Variable.isStringType(type)) {
+            return "String";
+        }
+
+        return "(_ BitVec 32)";
+    }
+
+    private static String bitVecLiteral(long value, int width) {
+        // Encode negative values in two's complement for the given width.
+        BigInteger modulus = BigInteger.ONE.shiftLeft(width);
+        BigInteger unsigned = BigInteger.valueOf(value).mod(modulus);
+        return "(_ bv" + unsigned.toString() + " " + width + ")";
+    }
+
+    private static String floatingPointLiteral(double value, int exponent, int significand) {
+        String sort = exponent + " " + significand;
+        if (Double.isNaN(value)) {
+            return "(_ NaN " + sort + ")";
+        } else if (Double.isInfinite(value)) {
+            return (value > 0 ? "(_ +oo " : "(_ -oo ") + sort + ")";
+        }
+
+        String decimal = new BigDecimal(Math.abs(value)).toPlainString();
+        if (!decimal.contains(".")) {
+            decimal += ".0";
+        }
+
+        String literal = "((_ to_fp " + sort + ") RNE " + decimal + ")";
+        return (value < 0 || (value == 0 && 1 / value < 0))
+                ? "(fp.neg " + literal + ")" : literal;
+    }
+
+    private static String stringLiteral(String value) {
+        StringBuilder literal = new StringBuilder("\"");
+
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                literal.append("\"\"");
+            } else if (c < 0x20 || c > 0x7E || c == '\\') {
+                literal.append(String.format("\\u{%x}", (int)c));
+            } else {
+                literal.append(c);
+            }
+        }
+
+        literal.append("\"");
+        return literal.toString();
+    }
+
+    private String generateDeclarations() {
+        StringBuilder declarations = new StringBuilder();
+
+        for (SymbolicVariable variable : _variableMap.keySet()) {
+            declarations.append("(declare-const ");
+            declarations.append(_variableMap.get(variable));
+            declarations.append(" ");
+            declarations.append(_variableSorts.get(variable));
+            declarations.append(")    ; ");
+            declarations.append(variable.toString().replace('\n', ' '));
+            declarations.append("\n");
+        }
+
+        return declarations.toString();
+    }
+}
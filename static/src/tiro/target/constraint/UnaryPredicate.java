@@ -41,6 +41,11 @@ final class UnaryPredicate extends Predicate {
         return _child.dependsOnInput();
     }
 
+    @Override
+    public int getNodeCount() {
+        return 1 + _child.getNodeCount();
+    }
+
     @Override
     public Set<Variable> getAllVariables(Set<Variable> set) {
         _child.getAllVariables(set);
@@ -86,7 +91,7 @@ final class UnaryPredicate extends Predicate {
     }
 
     @Override
-    public void print(int indent) {
+    protected void printIndented(int indent) {
         StringBuilder outputString = new StringBuilder();
         for (int i = 0; i < indent; i++) {
             outputString.append("    ");
@@ -95,6 +100,6 @@ final class UnaryPredicate extends Predicate {
         outputString.append(getOperatorString());
         Output.printConstraint(outputString.toString());
 
-        _child.print(indent + 1);
+        _child.printIndented(indent + 1);
     }
 }
@@ -4,18 +4,17 @@ import tiro.Output;
 
 import soot.*;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
 public abstract class Variable {
-    private static final Set<Type> _stringTypes = new HashSet<Type>();
-
-    static {
-        _stringTypes.add(RefType.v("java.lang.String"));
-        _stringTypes.add(RefType.v("java.lang.StringBuffer"));
-        _stringTypes.add(RefType.v("java.lang.StringBuilder"));
-        _stringTypes.add(RefType.v("java.lang.CharSequence"));
-    }
+    // Class names rather than RefTypes, which belong to a specific Soot scene.
+    private static final Set<String> _stringClassNames = new HashSet<String>(Arrays.asList(
+            "java.lang.String",
+            "java.lang.StringBuffer",
+            "java.lang.StringBuilder",
+            "java.lang.CharSequence"));
 
     private final Type _type;
 
@@ -64,6 +63,7 @@ public abstract class Variable {
     }
 
     public static boolean isStringType(Type type) {
-        return _stringTypes.contains(type);
+        return type instanceof RefType
+                && _stringClassNames.contains(((RefType)type).getClassName());
     }
 }
@@ -1,6 +1,9 @@
 package tiro.target.constraint;
 
+import tiro.FlightRecorder;
+import tiro.Metrics;
 import tiro.Output;
+import tiro.target.PathProfile;
 
 import soot.*;
 
@@ -12,20 +15,46 @@ import java.math.BigInteger;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class Z3Solver {
+public class Z3Solver implements AutoCloseable {
+    // Number of Z3 contexts that have not been closed yet
+    private static final AtomicInteger _liveContexts = new AtomicInteger();
+
     private final Predicate _constraint;
     private final com.microsoft.z3.Context _context;
     private final Model _model;
+    private Status _checkStatus = null;
     private final Map<SymbolicVariable, Expr> _variableMap =
             new HashMap<SymbolicVariable, Expr>();
 
     public Z3Solver(Predicate constraint) {
         _constraint = constraint;
         _context = new com.microsoft.z3.Context();
-        _model = generateModel();
+        _liveContexts.incrementAndGet();
+
+        // The caller cannot close the solver if the constructor fails.
+        Model model = null;
+        try {
+            model = generateModel();
+        } catch (RuntimeException | Error e) {
+            close();
+            throw e;
+        }
+        _model = model;
+    }
+
+    public static int getLiveContextCount() {
+        return _liveContexts.get();
+    }
+
+    // Releases the native Z3 context.  The model cannot be queried after closing.
+    @Override
+    public void close() {
+        _context.close();
+        _liveContexts.decrementAndGet();
     }
 
     public static void inputValuesSanityCheck(Predicate constraint) {
@@ -41,18 +70,20 @@ public class Z3Solver {
             return;
         }
 
-        Z3Solver solver = new Z3Solver(constraint);
-        if (solver.isSatisfiable()) {
-            for (Variable variable : variables) {
-                String value = solver.getVariableValue(variable);
-                Output.debug("Solved input variable: " + variable.toString() + " = " + value);
+        try (Z3Solver solver = new Z3Solver(constraint)) {
+            if (solver.isSatisfiable()) {
+                for (Variable variable : variables) {
+                    String value = solver.getVariableValue(variable);
+                    Output.debug(() -> "Solved input variable: " + variable + " = " + value);
+                }
             }
         }
     }
 
     public static boolean isSatisfiable(Predicate constraint) {
-        Z3Solver solver = new Z3Solver(constraint);
-        return solver.isSatisfiable();
+        try (Z3Solver solver = new Z3Solver(constraint)) {
+            return solver.isSatisfiable();
+        }
     }
 
     public boolean isSatisfiable() {
@@ -117,6 +148,21 @@ public class Z3Solver {
     }
 
     private Model generateModel() {
+        long startTime = System.nanoTime();
+        Object flightRecorderEvent = FlightRecorder.beginSolverCheck();
+        try {
+            return checkModel();
+        } finally {
+            Metrics.addTime("Solving", startTime);
+            PathProfile.addStageTime(PathProfile.Stage.SOLVING, startTime);
+            FlightRecorder.endSolverCheck(flightRecorderEvent, _constraint,
+                    (_checkStatus != null) ? _checkStatus.name() : "ERROR");
+        }
+    }
+
+    private Model checkModel() {
+        Metrics.increment("z3.calls");
+        PathProfile.countSolverCall();
         Solver solver = _context.mkSolver();
 
         // Add a 10 second timeout for constraint solving.
@@ -128,17 +174,21 @@ public class Z3Solver {
             BoolExpr constraintExpr = generateBoolExpr(_constraint);
             solver.add(constraintExpr);
             Status status = solver.check();
+            _checkStatus = status;
 
             if (status == Status.SATISFIABLE) {
                 return solver.getModel();
             } else if (status == Status.UNKNOWN) {
+                Metrics.increment("z3.timeouts");
                 Output.warn("Z3Solver: timeout during constraint model check");
                 return null;
             } else {
+                Metrics.increment("z3.unsatisfiable");
                 //Output.warn("Z3Solver: constraint model not satisfiable");
                 return null;
             }
         } catch (Exception e) {
+            Metrics.increment("z3.errors");
             Output.error("Z3Solver: cannot resolve constraint");
             return null;
         }
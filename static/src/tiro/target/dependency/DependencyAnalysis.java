@@ -13,21 +13,20 @@ import soot.IntType;
 import soot.MethodOrMethodContext;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 public class DependencyAnalysis {
-    private static final int MAX_DEPENDENCY_DEPTH = 1;
-
     private final HeapDependencyResolver _heapDependencyResolver;
     private final ResourceDependencyResolver _resourceDependencyResolver;
 
+    // Memoized resolution of supporting events, shared by all event chains
+    private final EventDependencyGraph _dependencyGraph =
+            new EventDependencyGraph(e -> resolveSupportingEventNode(e));
+
     public DependencyAnalysis(ResourceAnalysis resourceAnalysis,
             EntryPointAnalysis entryPointAnalysis) {
-        _heapDependencyResolver = new HeapDependencyResolver();
+        _heapDependencyResolver = new HeapDependencyResolver(entryPointAnalysis);
         _resourceDependencyResolver = new ResourceDependencyResolver(resourceAnalysis);
     }
 
@@ -40,20 +39,56 @@ public class DependencyAnalysis {
         return plugins;
     }
 
-    public List<SupportingEvent> resolveEventDependencies(Event event) {
-        return resolveEventDependencies(event, 0);
+    // Start resolving, in the background, the supporting events that the given targeted paths
+    // are likely to need.
+    public void startPrecomputation(Collection<CallPath> targetedPaths, int numThreads) {
+        _heapDependencyResolver.startPrecomputation(targetedPaths, numThreads);
+    }
+
+    public void stopPrecomputation() {
+        _heapDependencyResolver.stopPrecomputation();
+    }
+
+    public void printStatistics() {
+        Output.debug("Dependency graph: " + _dependencyGraph.getResolvedNodeCount()
+                + " supporting events resolved, " + _dependencyGraph.getReusedNodeCount()
+                + " re-used, " + _dependencyGraph.getCutCycleCount() + " cycles cut");
     }
 
-    private List<SupportingEvent> resolveEventDependencies(Event event, int dependencyDepth) {
-        if (dependencyDepth > MAX_DEPENDENCY_DEPTH) {
-            return Collections.<SupportingEvent>emptyList();
+    // Resolves the dependencies of the event and adds their dependence constraints to the
+    // event.  Returns the supporting events of the event, in the order expected by
+    // EventChain.addDependentEvent().
+    public List<SupportingEvent> resolveEventDependencies(Event event) {
+        List<SupportingEvent> directDependencies = resolveDirectDependencies(event);
+
+        List<SupportingEvent> supportingEvents = _dependencyGraph.expand(directDependencies,
+                TIROStaticAnalysis.Config.MaxDependencyDepth);
+
+        if (TIROStaticAnalysis.Config.PrintOutput) {
+            supportingEvents.forEach(e -> { printSupportingEvent("heap dependence", e); });
         }
 
+        return supportingEvents;
+    }
+
+    private EventDependencyGraph.Node resolveSupportingEventNode(SupportingEvent event) {
+        // Resolve a copy, since the shared supporting event is used by other resolutions.
+        SupportingEvent resolvedEvent = event.clone();
+        List<SupportingEvent> dependencies = resolveDirectDependencies(resolvedEvent);
+        return new EventDependencyGraph.Node(resolvedEvent, dependencies);
+    }
+
+    // Resolves the dependencies of the event itself (not of its supporting events) and
+    // returns the shared supporting events that resolve them.
+    private List<SupportingEvent> resolveDirectDependencies(Event event) {
         computeEventDependencies(event);
 
         List<SupportingEvent> supportingEvents = new ArrayList<SupportingEvent>();
         for (Dependence dependence : event.getDependencies()) {
-            supportingEvents.addAll(resolveDependence(event, dependence, dependencyDepth));
+            SupportingEvent supportingEvent = resolveDependence(event, dependence);
+            if (supportingEvent != null) {
+                supportingEvents.add(supportingEvent);
+            }
         }
 
         return supportingEvents;
@@ -68,51 +103,26 @@ public class DependencyAnalysis {
         _resourceDependencyResolver.computeEventDependencies(event);
     }
 
-    private List<SupportingEvent> resolveDependence(Event event, Dependence dependence,
-            int dependencyDepth) {
-        List<SupportingEvent> supportingEvents = new ArrayList<SupportingEvent>();
-
-        boolean resolved = false;
-
+    private SupportingEvent resolveDependence(Event event, Dependence dependence) {
         if (dependence instanceof HeapVariable) {
             HeapVariable heapDependence = (HeapVariable)dependence;
             SupportingEvent supportingEvent =
-                    _heapDependencyResolver.resolveDependence(event, heapDependence);
-            if (supportingEvent != null) {
-                resolved = true;
-                supportingEvents.add(supportingEvent);
-
-                if (TIROStaticAnalysis.Config.PrintOutput) {
-                    printSupportingEvent("heap dependence", supportingEvent);
-                }
+                    _heapDependencyResolver.resolveSharedDependence(event, heapDependence);
+            if (supportingEvent == null) {
+                Output.warn("Could not resolve dependence: " + dependence);
             }
 
+            return supportingEvent;
+
         } else if (dependence instanceof KeyValueAccessVariable) {
             KeyValueAccessVariable resourceDependence = (KeyValueAccessVariable)dependence;
             _resourceDependencyResolver.resolveDependence(event, resourceDependence);
-            resolved = true;
+            return null;
 
         } else {
             Output.warn("Unsupported dependence: " + dependence);
-            return supportingEvents;
-        }
-
-        if (!resolved) {
-            Output.warn("Could not resolve dependence: " + dependence);
-            return supportingEvents;
-        }
-
-        // TODO: resolve the dependencies of the supporting event recursively
-
-        for (SupportingEvent supportingEvent : supportingEvents) {
-            List<SupportingEvent> recursedSupportingEvents =
-                    resolveEventDependencies(supportingEvent, dependencyDepth + 1);
-            supportingEvents.addAll(recursedSupportingEvents);
+            return null;
         }
-
-        // Need to make sure events are resolved in order by the deepest dependency.
-        Collections.reverse(supportingEvents);
-        return supportingEvents;
     }
 
     private void printSupportingEvent(String dependencyName, SupportingEvent event) {
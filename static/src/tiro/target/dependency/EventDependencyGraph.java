@@ -0,0 +1,188 @@
+package tiro.target.dependency;
+
+import tiro.Metrics;
+import tiro.Output;
+import tiro.target.StaticAnalysisTimeoutException;
+import tiro.target.event.SupportingEvent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Run-wide graph of supporting events and the supporting events that resolve their
+// dependencies.  Nodes are the shared supporting events produced by the dependency
+// resolvers (e.g. one per cached heap write), and edges are the resolutions of each node's
+// heap/resource dependencies.
+//
+// A node's own dependencies only depend on the node itself (not on the targeted event that
+// led to it), so each node is resolved once for the whole run and re-used by every event
+// chain that reaches it.  Since resolutions are memoized, the graph may contain cycles
+// (e.g. two writes that each read the other's field); these are cut when the graph is
+// expanded into the supporting events for a chain.
+
+class EventDependencyGraph {
+    // Resolves the dependencies of a supporting event (one level), returning the resolved
+    // copy of the event and the shared supporting events that resolve its dependencies.
+    public static interface NodeResolver {
+        public Node resolve(SupportingEvent event);
+    }
+
+    public static class Node {
+        public final SupportingEvent ResolvedEvent;
+        public final List<SupportingEvent> Dependencies;
+
+        public Node(SupportingEvent resolvedEvent, List<SupportingEvent> dependencies) {
+            ResolvedEvent = resolvedEvent;
+            Dependencies = dependencies;
+        }
+    }
+
+    private final NodeResolver _resolver;
+    private final Map<SupportingEvent, FutureTask<Node>> _nodes =
+            new ConcurrentHashMap<SupportingEvent, FutureTask<Node>>();
+
+    private final AtomicInteger _resolvedNodes = new AtomicInteger();
+    private final AtomicInteger _reusedNodes = new AtomicInteger();
+    private final AtomicInteger _cutCycles = new AtomicInteger();
+
+    public EventDependencyGraph(NodeResolver resolver) {
+        _resolver = resolver;
+    }
+
+    // Expands the graph from the given supporting events (the direct dependencies of a
+    // targeted event, at depth 1) up to the given depth.  The events reached within the depth
+    // are resolved, and the events one level deeper are included as is.  The result contains
+    // each reachable supporting event once, ordered so that an event appears before the
+    // events it depends on (the order used by EventChain.addDependentEvent()).
+    public List<SupportingEvent> expand(List<SupportingEvent> roots, int maxDepth) {
+        // Find the smallest depth of each event breadth-first, so that an event reached
+        // through a longer path first is still resolved if it is within the depth.
+        Map<SupportingEvent, Node> resolvedNodes =
+                new IdentityHashMap<SupportingEvent, Node>();
+        Set<SupportingEvent> reached = Collections.newSetFromMap(
+                new IdentityHashMap<SupportingEvent, Boolean>());
+        List<SupportingEvent> level = new ArrayList<SupportingEvent>();
+        for (SupportingEvent root : roots) {
+            if (reached.add(root)) {
+                level.add(root);
+            }
+        }
+
+        for (int depth = 1; depth <= maxDepth && !level.isEmpty(); depth++) {
+            List<SupportingEvent> nextLevel = new ArrayList<SupportingEvent>();
+            for (SupportingEvent event : level) {
+                Node node = getNode(event);
+                resolvedNodes.put(event, node);
+                for (SupportingEvent dependency : node.Dependencies) {
+                    if (reached.add(dependency)) {
+                        nextLevel.add(dependency);
+                    }
+                }
+            }
+            level = nextLevel;
+        }
+
+        List<SupportingEvent> executionOrder = new ArrayList<SupportingEvent>();
+        Set<SupportingEvent> visited = Collections.newSetFromMap(
+                new IdentityHashMap<SupportingEvent, Boolean>());
+        Set<SupportingEvent> onStack = Collections.newSetFromMap(
+                new IdentityHashMap<SupportingEvent, Boolean>());
+
+        for (SupportingEvent root : roots) {
+            order(root, resolvedNodes, visited, onStack, executionOrder);
+        }
+
+        // Dependencies were added before their dependents, so reverse the order.
+        Collections.reverse(executionOrder);
+        return executionOrder;
+    }
+
+    public int getResolvedNodeCount() {
+        return _resolvedNodes.get();
+    }
+
+    public int getReusedNodeCount() {
+        return _reusedNodes.get();
+    }
+
+    public int getCutCycleCount() {
+        return _cutCycles.get();
+    }
+
+    private void order(SupportingEvent event, Map<SupportingEvent, Node> resolvedNodes,
+            Set<SupportingEvent> visited, Set<SupportingEvent> onStack,
+            List<SupportingEvent> executionOrder) {
+        if (onStack.contains(event)) {
+            // Cut the cycle; the event is already ordered before its dependents.
+            _cutCycles.incrementAndGet();
+            Metrics.increment("dependencyGraph.cutCycles");
+            Output.debug(() -> "Cutting dependency cycle at: "
+                    + event.getPath().getTargetUnit());
+            return;
+        }
+        if (!visited.add(event)) {
+            return;
+        }
+
+        // Events past the depth are not resolved (their own dependencies are ignored).
+        Node node = resolvedNodes.get(event);
+        if (node == null) {
+            executionOrder.add(event.clone());
+            return;
+        }
+
+        onStack.add(event);
+        for (SupportingEvent dependency : node.Dependencies) {
+            order(dependency, resolvedNodes, visited, onStack, executionOrder);
+        }
+        onStack.remove(event);
+
+        // Each event chain gets its own copy of the supporting event.
+        executionOrder.add(node.ResolvedEvent.clone());
+    }
+
+    private Node getNode(SupportingEvent event) {
+        while (true) {
+            FutureTask<Node> resolution = _nodes.get(event);
+            boolean isResolvingThread = false;
+
+            if (resolution == null) {
+                resolution = new FutureTask<Node>(() -> _resolver.resolve(event));
+                if (_nodes.putIfAbsent(event, resolution) != null) {
+                    continue;
+                }
+
+                isResolvingThread = true;
+                _resolvedNodes.incrementAndGet();
+                Metrics.increment("dependencyGraph.resolvedNodes");
+                resolution.run();
+            } else {
+                _reusedNodes.incrementAndGet();
+                Metrics.increment("dependencyGraph.reusedNodes");
+            }
+
+            try {
+                return resolution.get();
+            } catch (InterruptedException e) {
+                throw new StaticAnalysisTimeoutException("DependencyAnalysis");
+            } catch (ExecutionException e) {
+                // The resolution was aborted (e.g. timed out), so allow it to be retried.
+                _nodes.remove(event, resolution);
+
+                if (isResolvingThread) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException)e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
+            }
+        }
+    }
+}
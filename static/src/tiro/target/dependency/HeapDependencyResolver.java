@@ -1,9 +1,13 @@
 package tiro.target.dependency;
 
+import tiro.Metrics;
 import tiro.Output;
+import tiro.TIROStaticAnalysis;
 import tiro.target.*;
 import tiro.target.constraint.*;
+import tiro.target.entrypoint.EntryPointAnalysis;
 import tiro.target.event.*;
+import tiro.target.traversal.BackwardCallPathFinder;
 import tiro.target.traversal.CallGraphTraversal;
 
 import soot.*;
@@ -11,14 +15,34 @@ import soot.jimple.*;
 import soot.jimple.toolkits.callgraph.*;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 class HeapDependencyResolver extends DependencyResolver<HeapVariable> {
-    // Cache of previously resolved heap writes
-    private final Map<HeapVariable, List<CachedHeapWriteEvent>> _cachedHeapWrites =
-            new HashMap<HeapVariable, List<CachedHeapWriteEvent>>();
+    // Cache of previously resolved heap writes, indexed by field and points-to set
+    private final HeapWriteIndex<CachedHeapWriteEvent> _cachedHeapWrites =
+            new HeapWriteIndex<CachedHeapWriteEvent>();
 
-    private HeapCallGraphPlugin _callGraphPlugin = new HeapCallGraphPlugin(_cachedHeapWrites);
+    private HeapCallGraphPlugin _callGraphPlugin = new HeapCallGraphPlugin();
+
+    // When heap writes are collected lazily, the traversal only records the write sites of
+    // each field.  Paths to the write sites are materialized the first time a dependence on
+    // the field needs to be resolved.
+    private final EntryPointAnalysis _entryPointAnalysis;
+    private final Map<SootField, List<HeapWriteSite>> _heapWriteSites =
+            new HashMap<SootField, List<HeapWriteSite>>();
+    private final Map<SootField, FutureTask<Void>> _materializedFields =
+            new ConcurrentHashMap<SootField, FutureTask<Void>>();
+    private volatile BackwardCallPathFinder _backwardPathFinder = null;
+
+    // Background resolution of heap writes that targeted paths are likely to depend on
+    private ExecutorService _precomputeExecutor = null;
+    private java.util.Timer _precomputeTimer = null;
+
+    public HeapDependencyResolver(EntryPointAnalysis entryPointAnalysis) {
+        _entryPointAnalysis = entryPointAnalysis;
+    }
 
     @Override
     public List<CallGraphTraversal.Plugin> getCallGraphPlugins() {
@@ -34,6 +58,19 @@ class HeapDependencyResolver extends DependencyResolver<HeapVariable> {
 
     @Override
     public SupportingEvent resolveDependence(Event event, HeapVariable dependence) {
+        SupportingEvent cachedEvent = resolveSharedDependence(event, dependence);
+        if (cachedEvent == null) {
+            return null;
+        }
+
+        // Clone the cached supporting event, since its constraints can depend on the
+        // constraints of the enclosing event chain.
+        return cachedEvent.clone();
+    }
+
+    // Same as resolveDependence(), but returns the cached supporting event itself.  The
+    // result is shared between all events that resolve to it and must not be modified.
+    public SupportingEvent resolveSharedDependence(Event event, HeapVariable dependence) {
         SupportingEvent cachedEvent = findCachedSupportingEvent(event, dependence);
         if (cachedEvent == null) {
             return null;
@@ -45,42 +82,215 @@ class HeapDependencyResolver extends DependencyResolver<HeapVariable> {
                 constraints, cachedEvent.getDependenceConstraint());
         event.updateConstraints(constraints);
 
-        // Clone the cached supporting event, since its constraints can depend on the
-        // constraints of the enclosing event chain.
-        return cachedEvent.clone();
+        return cachedEvent;
     }
 
-    private SupportingEvent findCachedSupportingEvent(Event event, HeapVariable dependence) {
+    // Speculatively resolve the heap writes that the targeted paths are likely to depend on,
+    // so that path analysis mostly finds resolved supporting events instead of resolving
+    // them on its own thread.  The candidates are the heap reads in the methods of the
+    // targeted paths, ordered by the number of paths that perform them.
+    public void startPrecomputation(Collection<CallPath> targetedPaths, int numThreads) {
+        Map<HeapVariable, Integer> readCounts = new HashMap<HeapVariable, Integer>();
+        for (CallPath path : targetedPaths) {
+            Set<SootMethod> pathMethods = new HashSet<SootMethod>();
+            path.getNodes().forEach(n -> { pathMethods.add(n.method()); });
+
+            Set<HeapVariable> pathReads = new HashSet<HeapVariable>();
+            pathMethods.forEach(m -> { pathReads.addAll(getHeapReads(m)); });
+            pathReads.forEach(v -> { readCounts.merge(v, 1, Integer::sum); });
+        }
+
+        List<HeapVariable> candidates = readCounts.keySet().stream()
+                .sorted((a, b) -> readCounts.get(b) - readCounts.get(a))
+                .collect(Collectors.toList());
+
+        _precomputeExecutor = Executors.newFixedThreadPool(numThreads, r -> {
+            Thread thread = new Thread(r, "HeapDependencyPrecomputationThread");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _precomputeTimer = new java.util.Timer("HeapDependencyPrecomputationTimerThread",
+                                               true);
+        final java.util.Timer timer = _precomputeTimer;
+
+        int numTasks = 0;
+        for (HeapVariable dependence : candidates) {
+            for (CachedHeapWriteEvent cached : findCachedHeapWrites(dependence)) {
+                _precomputeExecutor.submit(() -> { precompute(cached, dependence, timer); });
+                numTasks++;
+            }
+        }
+
+        Output.debug("Precomputing " + numTasks + " heap write events for "
+                + candidates.size() + " heap reads");
+    }
+
+    public void stopPrecomputation() {
+        if (_precomputeExecutor == null) {
+            return;
+        }
+
+        // Any resolution that is interrupted here is reset and will be resolved on demand.
+        _precomputeExecutor.shutdownNow();
+        _precomputeTimer.cancel();
+        _precomputeTimer.purge();
+
+        _precomputeExecutor = null;
+        _precomputeTimer = null;
+    }
+
+    private void precompute(CachedHeapWriteEvent cached, HeapVariable dependence,
+                            java.util.Timer timer) {
+        if (cached.isResolutionStarted() || Thread.currentThread().isInterrupted()) {
+            return;
+        }
+
+        // Use the same per-path timeout as the targeted path analysis.
+        InterruptionTask timeout = new InterruptionTask(Thread.currentThread());
+        try {
+            timer.schedule(timeout, TIROStaticAnalysis.Config.TargetedPathTimeout);
+        } catch (IllegalStateException e) {
+            // Precomputation has already been stopped.
+            return;
+        }
+
+        try {
+            cached.getSupportingEvent(dependence);
+        } catch (StaticAnalysisTimeoutException e) {
+            // Leave it to be resolved on demand.
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            timeout.finish();
+        }
+    }
+
+    private Set<HeapVariable> getHeapReads(SootMethod method) {
+        Set<HeapVariable> heapReads = new HashSet<HeapVariable>();
+        if (!method.hasActiveBody()) {
+            return heapReads;
+        }
+
+        for (Unit unit : method.getActiveBody().getUnits()) {
+            if (!(unit instanceof AssignStmt)) {
+                continue;
+            }
+
+            Value rightOp = ((AssignStmt)unit).getRightOp();
+            if (rightOp instanceof FieldRef) {
+                heapReads.add(new HeapVariable((FieldRef)rightOp));
+            }
+        }
+
+        return heapReads;
+    }
+
+    private List<CachedHeapWriteEvent> findCachedHeapWrites(HeapVariable dependence) {
         // Instead of using equality, determine resolution by checking whether points-to sets
         // intersect with the specified heap variable dependence.
-        Set<HeapVariable> heapIntersections = _cachedHeapWrites.keySet().stream()
-                .filter(x -> x.intersects(dependence))
-                .collect(Collectors.toSet());
-
-        for (HeapVariable heapIntersection : heapIntersections) {
-            for (CachedHeapWriteEvent cached : _cachedHeapWrites.get(heapIntersection)) {
-                SupportingEvent supportingEvent = cached.getSupportingEvent(dependence);
-                if (supportingEvent == null) {
-                    // This cached dependency is invalid and cannot be resolved.
-                    continue;
-                }
+        if (TIROStaticAnalysis.Config.LazyHeapWrites) {
+            materializeHeapWrites(dependence.getField());
+        }
+
+        return _cachedHeapWrites.findIntersecting(dependence);
+    }
+
+    private void materializeHeapWrites(SootField field) {
+        // Each field is materialized once, by the first thread that needs it; other threads
+        // that need the same field wait for it, and threads that need other fields do not.
+        FutureTask<Void> materialization = _materializedFields.get(field);
+        if (materialization == null) {
+            FutureTask<Void> newMaterialization =
+                    new FutureTask<Void>(() -> { doMaterializeHeapWrites(field); }, null);
+            materialization = _materializedFields.putIfAbsent(field, newMaterialization);
+            if (materialization == null) {
+                materialization = newMaterialization;
+                materialization.run();
+            }
+        }
 
-                // Check if resolved dependence contradicts the target path's constraints
-                if (supportingEvent.canResolveDependencyForEvent(event, dependence)) {
-                    return supportingEvent;
+        try {
+            materialization.get();
+        } catch (InterruptedException e) {
+            throw new StaticAnalysisTimeoutException("DependencyAnalysis");
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        }
+    }
+
+    private void doMaterializeHeapWrites(SootField field) {
+        // Write sites are only recorded by the call graph traversal, which is complete.
+        List<HeapWriteSite> writeSites = _heapWriteSites.get(field);
+        if (writeSites == null) {
+            return;
+        }
+
+        int numPaths = 0;
+        for (HeapWriteSite writeSite : writeSites) {
+            List<Edge> edges = getBackwardPathFinder().findPath(writeSite.Method);
+            if (edges != null) {
+                addHeapWrite(new CallPath(edges, writeSite.WriteStmt));
+                numPaths++;
+            }
+        }
+
+        final int materializedPaths = numPaths;
+        Output.debug(() -> "Materialized " + materializedPaths + " heap write paths for "
+                + field);
+    }
+
+    private BackwardCallPathFinder getBackwardPathFinder() {
+        // The path finder keeps no state between searches, so it can be shared.
+        if (_backwardPathFinder == null) {
+            synchronized (this) {
+                if (_backwardPathFinder == null) {
+                    _backwardPathFinder = new BackwardCallPathFinder(
+                            Scene.v().getCallGraph(), _entryPointAnalysis.getEntryPoints());
                 }
             }
         }
+        return _backwardPathFinder;
+    }
 
-        return null;
+    private void addHeapWrite(CallPath path) {
+        AssignStmt assignStmt = (AssignStmt)path.getTargetUnit();
+        FieldRef fieldRef = (FieldRef)assignStmt.getLeftOp();
+        HeapVariable heapVariable = new HeapVariable(fieldRef);
+
+        CachedHeapWriteEvent cached = new CachedHeapWriteEvent(path);
+        _cachedHeapWrites.add(heapVariable, cached);
     }
 
-    private class HeapCallGraphPlugin implements CallGraphTraversal.Plugin {
-        private final Map<HeapVariable, List<CachedHeapWriteEvent>> _cachedHeapWrites;
+    private static class HeapWriteSite {
+        public final SootMethod Method;
+        public final AssignStmt WriteStmt;
 
-        public HeapCallGraphPlugin(Map<HeapVariable, List<CachedHeapWriteEvent>> cache) {
-            _cachedHeapWrites = cache;
+        public HeapWriteSite(SootMethod method, AssignStmt writeStmt) {
+            Method = method;
+            WriteStmt = writeStmt;
         }
+    }
+
+    private SupportingEvent findCachedSupportingEvent(Event event, HeapVariable dependence) {
+        for (CachedHeapWriteEvent cached : findCachedHeapWrites(dependence)) {
+            SupportingEvent supportingEvent = cached.getSupportingEvent(dependence);
+            if (supportingEvent == null) {
+                // This cached dependency is invalid and cannot be resolved.
+                continue;
+            }
+
+            // Check if resolved dependence contradicts the target path's constraints
+            if (supportingEvent.canResolveDependencyForEvent(event, dependence)) {
+                return supportingEvent;
+            }
+        }
+
+        return null;
+    }
+
+    private class HeapCallGraphPlugin implements CallGraphTraversal.Plugin {
+        // Units already recorded as write sites (lazy mode)
+        private final Set<Unit> _recordedWriteSites = new HashSet<Unit>();
 
         @Override
         public boolean processUnit(SootMethod method, Unit unit) {
@@ -89,28 +299,38 @@ class HeapDependencyResolver extends DependencyResolver<HeapVariable> {
             }
 
             AssignStmt assignStmt = (AssignStmt)unit;
-            if (assignStmt.getLeftOp() instanceof FieldRef) {
-                return true;
+            if (!(assignStmt.getLeftOp() instanceof FieldRef)) {
+                return false;
+            }
+
+            if (TIROStaticAnalysis.Config.LazyHeapWrites) {
+                // Only record the write site; the path is found if it is needed.
+                if (_recordedWriteSites.add(unit)) {
+                    SootField field = ((FieldRef)assignStmt.getLeftOp()).getField();
+                    _heapWriteSites.computeIfAbsent(field,
+                            k -> new ArrayList<HeapWriteSite>()).add(
+                                new HeapWriteSite(method, assignStmt));
+                }
+                return false;
             }
 
-            return false;
+            return true;
         }
 
         @Override
         public void onTargetPath(CallPath path) {
-            AssignStmt assignStmt = (AssignStmt)path.getTargetUnit();
-            FieldRef fieldRef = (FieldRef)assignStmt.getLeftOp();
-            HeapVariable heapVariable = new HeapVariable(fieldRef);
-
-            CachedHeapWriteEvent cached = new CachedHeapWriteEvent(path);
-            _cachedHeapWrites.computeIfAbsent(heapVariable,
-                    k -> new ArrayList<CachedHeapWriteEvent>()).add(cached);
+            addHeapWrite(path);
         }
     }
 
     private class CachedHeapWriteEvent {
         private final CallPath _callPath;
-        private SupportingEvent _supportingEvent = null;
+
+        // Resolution of the supporting event, shared between the threads that need it.  It is
+        // only performed once, by whichever thread (path analysis or precomputation) first
+        // needs it; other threads wait for its result.
+        private final AtomicReference<FutureTask<SupportingEvent>> _resolution =
+                new AtomicReference<FutureTask<SupportingEvent>>();
 
         public CachedHeapWriteEvent(CallPath callPath) {
             _callPath = callPath;
@@ -120,19 +340,47 @@ class HeapDependencyResolver extends DependencyResolver<HeapVariable> {
             return _callPath;
         }
 
+        public boolean isResolutionStarted() {
+            return _resolution.get() != null;
+        }
+
         public SupportingEvent getSupportingEvent(HeapVariable dependence) {
-            if (_supportingEvent == null) {
-                resolve(dependence);
-            }
+            while (true) {
+                FutureTask<SupportingEvent> resolution = _resolution.get();
+                boolean isResolvingThread = false;
 
-            return _supportingEvent;
-        }
+                if (resolution == null) {
+                    resolution = new FutureTask<SupportingEvent>(() -> resolve(dependence));
+                    if (!_resolution.compareAndSet(null, resolution)) {
+                        continue;
+                    }
+
+                    isResolvingThread = true;
+                    Metrics.increment("heapWrites.resolved");
+                    resolution.run();
+                } else {
+                    Metrics.increment("heapWrites.cacheHits");
+                }
 
-        private synchronized void resolve(HeapVariable dependence) {
-            if (_supportingEvent != null) {
-                return;
+                try {
+                    return resolution.get();
+                } catch (InterruptedException e) {
+                    throw new StaticAnalysisTimeoutException("DependencyAnalysis");
+                } catch (ExecutionException e) {
+                    // The resolution was aborted (e.g. timed out), so allow it to be retried.
+                    _resolution.compareAndSet(resolution, null);
+
+                    if (isResolvingThread) {
+                        if (e.getCause() instanceof RuntimeException) {
+                            throw (RuntimeException)e.getCause();
+                        }
+                        throw new RuntimeException(e.getCause());
+                    }
+                }
             }
+        }
 
+        private SupportingEvent resolve(HeapVariable dependence) {
             HeapDependenceConstraintAnalysis heapConstraintAnalysis =
                     new HeapDependenceConstraintAnalysis(_callPath, dependence);
             Predicate pathConstraints = heapConstraintAnalysis.getConstraints();
@@ -141,12 +389,13 @@ class HeapDependencyResolver extends DependencyResolver<HeapVariable> {
             if (storeConstraint == null) {
                 Output.error("Heap dependence analysis did not retrieve stored heap value "
                              + "for: " + dependence);
-                return;
+                return null;
             }
 
-            _supportingEvent = new SupportingEvent(
+            SupportingEvent supportingEvent = new SupportingEvent(
                     _callPath, pathConstraints, storeConstraint);
-            _supportingEvent.addDependencies(heapConstraintAnalysis.getHeapDependencies());
+            supportingEvent.addDependencies(heapConstraintAnalysis.getHeapDependencies());
+            return supportingEvent;
         }
     }
 }
@@ -0,0 +1,144 @@
+package tiro.target.dependency;
+
+import tiro.target.callgraph.SnapshotPointsToSet;
+import tiro.target.constraint.HeapVariable;
+
+import soot.PointsToSet;
+import soot.SootField;
+import soot.jimple.spark.pag.Node;
+import soot.jimple.spark.sets.P2SetVisitor;
+import soot.jimple.spark.sets.PointsToSetInternal;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Index of values (e.g. heap writes) keyed by the heap variable they are stored with, that
+// finds the values whose heap variable intersects a given heap variable (see
+// HeapVariable.intersects()).  Entries are indexed first by field and then by the
+// allocation sites in their points-to set, so a lookup only visits entries that share at
+// least one allocation site with the queried variable instead of intersecting points-to
+// sets with every stored variable.
+//
+// The index can be added to and queried concurrently.  Lookups return values in the order
+// they were added.
+
+class HeapWriteIndex<T> {
+    private final Map<SootField, FieldEntries<T>> _fieldEntries =
+            new ConcurrentHashMap<SootField, FieldEntries<T>>();
+    private final AtomicInteger _nextSequence = new AtomicInteger();
+
+    private static class Entry<T> {
+        public final int Sequence;
+        public final HeapVariable Variable;
+        public final T Value;
+
+        public Entry(int sequence, HeapVariable variable, T value) {
+            Sequence = sequence;
+            Variable = variable;
+            Value = value;
+        }
+    }
+
+    private static class FieldEntries<T> {
+        // Heap variables without a points-to set (static fields, primitive values)
+        public final Queue<Entry<T>> NoPointsTo = new ConcurrentLinkedQueue<Entry<T>>();
+
+        // Heap variables with a points-to set, indexed by allocation site
+        public final Map<Integer, Queue<Entry<T>>> ByAllocationSite =
+                new ConcurrentHashMap<Integer, Queue<Entry<T>>>();
+
+        // Heap variables whose points-to set cannot be enumerated (checked individually)
+        public final Queue<Entry<T>> Unindexed = new ConcurrentLinkedQueue<Entry<T>>();
+    }
+
+    public void add(HeapVariable variable, T value) {
+        Entry<T> entry = new Entry<T>(_nextSequence.getAndIncrement(), variable, value);
+        FieldEntries<T> entries = _fieldEntries.computeIfAbsent(variable.getField(),
+                k -> new FieldEntries<T>());
+
+        if (!variable.hasPointsToSet()) {
+            entries.NoPointsTo.add(entry);
+            return;
+        }
+
+        BitSet allocationSites = getAllocationSites(variable.getPointsToSet());
+        if (allocationSites == null) {
+            entries.Unindexed.add(entry);
+            return;
+        }
+
+        allocationSites.stream().forEach(site -> {
+            entries.ByAllocationSite.computeIfAbsent(site,
+                    k -> new ConcurrentLinkedQueue<Entry<T>>()).add(entry);
+        });
+    }
+
+    public List<T> findIntersecting(HeapVariable variable) {
+        FieldEntries<T> entries = _fieldEntries.get(variable.getField());
+        if (entries == null) {
+            return new ArrayList<T>();
+        }
+
+        Set<Entry<T>> matches = new TreeSet<Entry<T>>(
+                Comparator.comparingInt((Entry<T> e) -> e.Sequence));
+
+        if (!variable.hasPointsToSet()) {
+            matches.addAll(entries.NoPointsTo);
+        } else {
+            BitSet allocationSites = getAllocationSites(variable.getPointsToSet());
+            if (allocationSites == null) {
+                entries.ByAllocationSite.values().forEach(q -> {
+                    q.stream().filter(e -> e.Variable.intersects(variable))
+                            .forEach(matches::add);
+                });
+            } else {
+                allocationSites.stream().forEach(site -> {
+                    Queue<Entry<T>> siteEntries = entries.ByAllocationSite.get(site);
+                    if (siteEntries != null) {
+                        matches.addAll(siteEntries);
+                    }
+                });
+            }
+
+            entries.Unindexed.stream().filter(e -> e.Variable.intersects(variable))
+                    .forEach(matches::add);
+        }
+
+        List<T> result = new ArrayList<T>(matches.size());
+        matches.forEach(e -> { result.add(e.Value); });
+        return result;
+    }
+
+    public int size() {
+        return _nextSequence.get();
+    }
+
+    // Returns the numbers of the allocation nodes in a Spark (or call graph snapshot)
+    // points-to set, or null if the points-to set cannot be enumerated.
+    private static BitSet getAllocationSites(PointsToSet pointsTo) {
+        if (pointsTo instanceof SnapshotPointsToSet) {
+            return ((SnapshotPointsToSet)pointsTo).getAllocationSites();
+        } else if (!(pointsTo instanceof PointsToSetInternal)) {
+            return null;
+        }
+
+        final BitSet allocationSites = new BitSet();
+        ((PointsToSetInternal)pointsTo).forall(new P2SetVisitor() {
+            @Override
+            public void visit(Node n) {
+                allocationSites.set(n.getNumber());
+            }
+        });
+
+        return allocationSites;
+    }
+}
@@ -15,6 +15,8 @@ import tiro.*;
 import tiro.target.*;
 
 import soot.*;
+import soot.jimple.AssignStmt;
+import soot.jimple.NewExpr;
 import soot.jimple.infoflow.android.InfoflowAndroidConfiguration;
 import soot.jimple.infoflow.android.callbacks.AbstractCallbackAnalyzer;
 import soot.jimple.infoflow.android.callbacks.DefaultCallbackAnalyzer;
@@ -27,18 +29,26 @@ import soot.jimple.infoflow.android.resources.LayoutFileParser;
 import soot.jimple.infoflow.data.SootMethodAndClass;
 import soot.options.Options;
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.Map.Entry;
 
 // This classes uses the entrypoint extraction code from FlowDroid
 // (i.e. the soot-infoflow and soot-infoflow-android projects)
 
-// Note: The soot scene will be reset after the entry-point analysis has completed.
-// Do not pass soot objects out of this class directly (use class/method names instead).
+// Note: The entry-point analysis runs in the current soot scene (which must be initialized
+// with TIROStaticAnalysis.initializeSoot()), and the scene is kept for the main analysis:
+// the callback fixpoint only re-builds the dummy main method and the call graph in each
+// iteration, instead of re-loading all classes.  With "--cache-dir", the results are cached
+// per APK, and the fixpoint is skipped when they are found in the cache (see EntryPointCache).
 
 public class EntryPointAnalysis {
     private final ManifestAnalysis _manifestAnalysis;
@@ -52,6 +62,14 @@ public class EntryPointAnalysis {
     private Map<Integer, List<String>> _xmlCallbackMethods =
             new HashMap<Integer, List<String>>();
 
+    // Soot phases registered by FlowDroid's callback analyzer and layout file parser
+    private static final String CALLBACK_ANALYZER_PHASE = "wjtp.ajc";
+    private static final String LAYOUT_PARSER_PHASE = "wjtp.lfp";
+
+    // Android callback interfaces, shared by all APKs in batch mode (re-read if edited)
+    private static final FileCache<Set<String>> _androidCallbacks =
+            new FileCache<Set<String>>(EntryPointAnalysis::readAndroidCallbacks);
+
     public EntryPointAnalysis(ManifestAnalysis manifestAnalysis,
             ResourceAnalysis resourceAnalysis)
             throws Exception {
@@ -102,7 +120,83 @@ public class EntryPointAnalysis {
         return _xmlCallbackMethods;
     }
 
+    // Reports the callbacks that may only have been found because of the imprecise call graph
+    // of the callback discovery ("--callback-cg"), i.e. callback classes that are not
+    // instantiated by any method that is reachable in the (Spark) call graph of the main
+    // analysis.  Callbacks on components and views are created by the framework, and are not
+    // reported.  Must run after the main call graph has been built.
+    public void reportImpreciseCallbacks() {
+        SootClass dummyMainClass = Scene.v().getSootClassUnsafe(
+                _entryPointCreator.getDummyMainMethod().getDeclaringClass().getName());
+
+        // Classes instantiated in reachable code (excluding the dummy main method)
+        Set<String> allocatedClasses = new HashSet<String>();
+        Iterator<MethodOrMethodContext> reachableMethods =
+                Scene.v().getReachableMethods().listener();
+        while (reachableMethods.hasNext()) {
+            SootMethod method = reachableMethods.next().method();
+            if (!method.hasActiveBody() || method.getDeclaringClass() == dummyMainClass) {
+                continue;
+            }
+
+            for (Unit unit : method.getActiveBody().getUnits()) {
+                if (unit instanceof AssignStmt
+                        && ((AssignStmt)unit).getRightOp() instanceof NewExpr) {
+                    allocatedClasses.add(
+                            ((NewExpr)((AssignStmt)unit).getRightOp()).getBaseType()
+                                    .getClassName());
+                }
+            }
+        }
+
+        SootClass viewClass = Scene.v().getSootClassUnsafe("android.view.View");
+        Hierarchy hierarchy = Scene.v().getActiveHierarchy();
+        JsonArray impreciseCallbacksJson = new JsonArray();
+        for (Entry<String, Set<SootMethodAndClass>> entry : _callbackMethods.entrySet()) {
+            for (SootMethodAndClass callback : entry.getValue()) {
+                String callbackClassName = callback.getClassName();
+                SootClass callbackClass = Scene.v().getSootClassUnsafe(callbackClassName);
+                if (allocatedClasses.contains(callbackClassName)
+                        || _entryPointClasses.contains(callbackClassName)
+                        || callbackClassName.equals(entry.getKey())
+                        || callbackClass == null || callbackClass.isInterface()
+                        || (viewClass != null && hierarchy.isClassSubclassOfIncluding(
+                                callbackClass, viewClass))) {
+                    continue;
+                }
+
+                Output.debug("Callback may not be reachable in the Spark call graph: "
+                        + callback.getSignature());
+                JsonObject callbackJson = new JsonObject();
+                callbackJson.addProperty("Component", entry.getKey());
+                callbackJson.addProperty("Callback", callback.getSignature());
+                impreciseCallbacksJson.add(callbackJson);
+            }
+        }
+
+        Metrics.add("entryPoints.impreciseCallbacks", impreciseCallbacksJson.size());
+        Metrics.setSummary("ImpreciseCallbacks", impreciseCallbacksJson);
+        if (impreciseCallbacksJson.size() > 0) {
+            Output.warn(impreciseCallbacksJson.size() + " callbacks may only have been found "
+                    + "with the " + TIROStaticAnalysis.Config.CallbackCallGraph.name()
+                    + " call graph (see metrics.json)");
+        }
+    }
+
     private void calculateEntryPoints() throws Exception {
+        EntryPointCache cache = null;
+        if (AnalysisCache.isEnabled()) {
+            cache = new EntryPointCache();
+            if (cache.load(_entryPointClasses, _additionalEntryPoints, _callbackMethods,
+                    _xmlCallbackMethods)) {
+                Output.debug("Using cached entry points and callbacks");
+                Metrics.increment("entryPoints.cacheHits");
+                generateNewEntryPointCreator();
+                return;
+            }
+            Metrics.increment("entryPoints.cacheMisses");
+        }
+
         // Parse the resource and layout files
         LayoutFileParser lfp = new LayoutFileParser(_manifestAnalysis.getPackageName(),
                 _resourceAnalysis.getResourceParser());
@@ -111,6 +205,11 @@ public class EntryPointAnalysis {
         calculateCallbackMethods(_resourceAnalysis.getResourceParser(), lfp,
                 _manifestAnalysis.getEntryPointClasses());
 
+        if (cache != null) {
+            cache.store(_entryPointClasses, _additionalEntryPoints, _callbackMethods,
+                    _xmlCallbackMethods);
+        }
+
         // Clean up everything we no longer need
         //soot.G.reset();
 
@@ -140,18 +239,25 @@ public class EntryPointAnalysis {
                                          throws IOException {
 
         AbstractCallbackAnalyzer jimpleClass = null;
-        Set<String> callbackClasses = null;
+        Set<String> callbackClasses = getAndroidCallbacks();
         InfoflowAndroidConfiguration config = new InfoflowAndroidConfiguration();
+        Pack wjtpPack = PackManager.v().getPack("wjtp");
+
+        // Use the (cheaper) callback discovery call graph during the fixpoint.
+        TIROStaticAnalysis.setCallGraphAlgorithm(TIROStaticAnalysis.Config.CallbackCallGraph);
 
         boolean hasChanged = true;
         while (hasChanged) {
             hasChanged = false;
+            TIROStaticAnalysis.checkCancelled();
+            Metrics.increment("entryPoints.iterations");
 
             // Create a new entrypoint creator with updated callback methods
             generateNewEntryPointCreator();
 
-            // Create the new iteration of the main method
-            TIROStaticAnalysis.initializeSoot();
+            // Replace the main method in the current scene, and discard the call graph of the
+            // previous iteration (the classes and method bodies are kept).
+            TIROStaticAnalysis.releaseCallGraph();
             Scene.v().setEntryPoints(Collections.singletonList(getDummyMainMethod()));
 
             if (jimpleClass == null) {
@@ -166,14 +272,25 @@ public class EntryPointAnalysis {
                 // Find the user-defined sources in the layout XML files. This
                 // only needs to be done once, but is a Soot phase.
                 lfp.parseLayoutFile(TIROStaticAnalysis.Config.ApkFile);
+
+                PackManager.v().getPack("wjpp").apply();
             } else {
+                // Only analyze the classes that became reachable in the previous iteration.
+                // Depending on the FlowDroid version, this either re-registers the callback
+                // analyzer phase or re-uses the registered one.
+                Transform callbackTransform = wjtpPack.get(CALLBACK_ANALYZER_PHASE);
+                wjtpPack.remove(CALLBACK_ANALYZER_PHASE);
                 jimpleClass.collectCallbackMethodsIncremental();
+                if (wjtpPack.get(CALLBACK_ANALYZER_PHASE) == null
+                        && callbackTransform != null) {
+                    wjtpPack.add(callbackTransform);
+                }
             }
 
             // Run the soot-based operations
-            PackManager.v().getPack("wjpp").apply();
             PackManager.v().getPack("cg").apply();
-            PackManager.v().getPack("wjtp").apply();
+            wjtpPack.apply();
+            wjtpPack.remove(LAYOUT_PARSER_PHASE);
 
             // Collect the results of the soot-based phases
             for (Entry<String, Set<SootMethodAndClass>> entry
@@ -217,6 +334,11 @@ public class EntryPointAnalysis {
             hasChanged |= calculateViewBasedCallbackMethods();
         }
 
+        // The main analysis runs its own phases (with Spark) in this scene.
+        wjtpPack.remove(CALLBACK_ANALYZER_PHASE);
+        TIROStaticAnalysis.setCallGraphAlgorithm(
+                TIROStaticAnalysis.Configuration.CallGraphAlgorithm.SPARK);
+
         // Collect the XML-based callback methods
         collectXmlBasedCallbackMethods(resParser, lfp, jimpleClass);
     }
@@ -403,4 +525,19 @@ public class EntryPointAnalysis {
 
         return hasChanged;
     }
+
+    private static Set<String> getAndroidCallbacks() throws IOException {
+        return _androidCallbacks.get("./AndroidCallbacks.txt");
+    }
+
+    private static Set<String> readAndroidCallbacks(Path file) throws IOException {
+        Set<String> androidCallbacks = new HashSet<String>();
+        for (String line : Files.readAllLines(file)) {
+            if (!line.isEmpty()) {
+                androidCallbacks.add(line);
+            }
+        }
+
+        return Collections.unmodifiableSet(androidCallbacks);
+    }
 }
@@ -0,0 +1,149 @@
+package tiro.target.entrypoint;
+
+import tiro.*;
+
+import soot.jimple.infoflow.data.SootMethodAndClass;
+import soot.jimple.infoflow.util.SootMethodRepresentationParser;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.Map.Entry;
+
+// On-disk cache of the results of the entry-point and callback discovery, so that the
+// callback fixpoint is skipped when the same APK is analyzed again (e.g. with a different
+// list of target methods).  The results are stored as class names and method signatures in
+// <cache dir>/entrypoints-<key>.json (see AnalysisCache for the key).  A cache file that
+// cannot be read is ignored (and replaced at the end of the analysis).
+
+class EntryPointCache {
+    private static final int FORMAT_VERSION = 1;
+
+    private final Path _cacheFile;
+    private final String _apkHash;
+
+    public EntryPointCache() throws IOException {
+        _apkHash = AnalysisCache.getApkHash();
+        _cacheFile = AnalysisCache.getCacheFile("entrypoints", FORMAT_VERSION, ".json");
+    }
+
+    // Adds the cached results to the given collections, and returns true if the APK was
+    // found in the cache.
+    public boolean load(Set<String> entryPointClasses,
+                        Set<String> additionalEntryPoints,
+                        Map<String, Set<SootMethodAndClass>> callbackMethods,
+                        Map<Integer, List<String>> xmlCallbackMethods) {
+        if (!Files.exists(_cacheFile)) {
+            return false;
+        }
+
+        try {
+            JsonObject cacheJson = new JsonParser().parse(
+                    new String(Files.readAllBytes(_cacheFile), StandardCharsets.UTF_8))
+                    .getAsJsonObject();
+            if (cacheJson.get("FormatVersion").getAsInt() != FORMAT_VERSION
+                    || !cacheJson.get("ApkHash").getAsString().equals(_apkHash)) {
+                Output.warn("Ignoring stale entry-point cache file: " + _cacheFile);
+                return false;
+            }
+
+            // Parse everything before modifying the collections
+            Set<String> cachedEntryPointClasses =
+                    toStringSet(cacheJson.getAsJsonArray("EntryPointClasses"));
+            Set<String> cachedAdditionalEntryPoints =
+                    toStringSet(cacheJson.getAsJsonArray("AdditionalEntryPoints"));
+
+            SootMethodRepresentationParser parser = SootMethodRepresentationParser.v();
+            Map<String, Set<SootMethodAndClass>> cachedCallbackMethods =
+                    new HashMap<String, Set<SootMethodAndClass>>();
+            for (Entry<String, JsonElement> entry
+                    : cacheJson.getAsJsonObject("CallbackMethods").entrySet()) {
+                Set<SootMethodAndClass> methods = new HashSet<SootMethodAndClass>();
+                for (String signature : toStringSet(entry.getValue().getAsJsonArray())) {
+                    methods.add(parser.parseSootMethodString(signature));
+                }
+                cachedCallbackMethods.put(entry.getKey(), methods);
+            }
+
+            Map<Integer, List<String>> cachedXmlCallbackMethods =
+                    new HashMap<Integer, List<String>>();
+            for (Entry<String, JsonElement> entry
+                    : cacheJson.getAsJsonObject("XmlCallbackMethods").entrySet()) {
+                cachedXmlCallbackMethods.put(Integer.parseInt(entry.getKey()),
+                        new ArrayList<String>(
+                                toStringSet(entry.getValue().getAsJsonArray())));
+            }
+
+            entryPointClasses.addAll(cachedEntryPointClasses);
+            additionalEntryPoints.addAll(cachedAdditionalEntryPoints);
+            callbackMethods.putAll(cachedCallbackMethods);
+            xmlCallbackMethods.putAll(cachedXmlCallbackMethods);
+            return true;
+        } catch (Exception e) {
+            Output.warn("Cannot read entry-point cache file " + _cacheFile + ": "
+                    + e.toString());
+            return false;
+        }
+    }
+
+    public void store(Set<String> entryPointClasses,
+                      Set<String> additionalEntryPoints,
+                      Map<String, Set<SootMethodAndClass>> callbackMethods,
+                      Map<Integer, List<String>> xmlCallbackMethods) {
+        JsonObject cacheJson = new JsonObject();
+        cacheJson.addProperty("FormatVersion", FORMAT_VERSION);
+        cacheJson.addProperty("Version", TIROStaticAnalysis.Configuration.Version);
+        cacheJson.addProperty("ApkHash", _apkHash);
+        cacheJson.addProperty("ApkFile", TIROStaticAnalysis.Config.ApkFile);
+        cacheJson.add("EntryPointClasses", toJsonArray(entryPointClasses));
+        cacheJson.add("AdditionalEntryPoints", toJsonArray(additionalEntryPoints));
+
+        JsonObject callbackMethodsJson = new JsonObject();
+        for (Entry<String, Set<SootMethodAndClass>> entry
+                : new TreeMap<String, Set<SootMethodAndClass>>(callbackMethods).entrySet()) {
+            List<String> signatures = new ArrayList<String>();
+            entry.getValue().forEach(m -> { signatures.add(m.getSignature()); });
+            callbackMethodsJson.add(entry.getKey(), toJsonArray(signatures));
+        }
+        cacheJson.add("CallbackMethods", callbackMethodsJson);
+
+        JsonObject xmlCallbackMethodsJson = new JsonObject();
+        for (Entry<Integer, List<String>> entry
+                : new TreeMap<Integer, List<String>>(xmlCallbackMethods).entrySet()) {
+            xmlCallbackMethodsJson.add(entry.getKey().toString(),
+                    toJsonArray(entry.getValue()));
+        }
+        cacheJson.add("XmlCallbackMethods", xmlCallbackMethodsJson);
+
+        try {
+            Path tempFile = AnalysisCache.createTempFile(_cacheFile);
+            Gson gson = new GsonBuilder().setPrettyPrinting().create();
+            Files.write(tempFile, gson.toJson(cacheJson).getBytes(StandardCharsets.UTF_8));
+            AnalysisCache.replace(tempFile, _cacheFile);
+        } catch (Exception e) {
+            Output.warn("Cannot write entry-point cache file " + _cacheFile + ": "
+                    + e.toString());
+        }
+    }
+
+    private static JsonArray toJsonArray(Collection<String> strings) {
+        JsonArray array = new JsonArray();
+        new TreeSet<String>(strings).forEach(s -> { array.add(s); });
+        return array;
+    }
+
+    private static Set<String> toStringSet(JsonArray array) {
+        Set<String> strings = new LinkedHashSet<String>();
+        array.forEach(e -> { strings.add(e.getAsString()); });
+        return strings;
+    }
+}
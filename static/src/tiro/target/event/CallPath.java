@@ -1,5 +1,6 @@
 package tiro.target.event;
 
+import tiro.Hashes;
 import tiro.Output;
 
 import soot.MethodOrMethodContext;
@@ -10,6 +11,7 @@ import soot.jimple.toolkits.callgraph.Targets;
 
 import org.apache.commons.lang3.builder.HashCodeBuilder;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -23,6 +25,7 @@ public final class CallPath {
     protected final List<Edge> _edges;
     protected final List<MethodOrMethodContext> _nodes;
     protected final Unit _targetUnit;
+    private String _id = null;
 
     public CallPath(List<Edge> edges, Unit targetUnit) throws IllegalArgumentException {
         // Some quick error checking
@@ -57,6 +60,30 @@ public final class CallPath {
         return _targetUnit;
     }
 
+    // Identifier derived from the path's methods and target statement, which is the same in
+    // every analysis of the app (unlike event chain IDs).
+    public String getId() {
+        if (_id == null) {
+            StringBuilder content = new StringBuilder();
+            _nodes.forEach(n -> { content.append(n.method().getSignature()).append('\n'); });
+
+            // The index of the target statement distinguishes identical statements.
+            int index = 0;
+            for (Unit unit : getTargetMethod().getActiveBody().getUnits()) {
+                if (unit == _targetUnit) {
+                    break;
+                }
+                index++;
+            }
+            content.append(index).append(": ").append(_targetUnit.toString());
+
+            _id = Hashes.sha256(content.toString().getBytes(StandardCharsets.UTF_8))
+                    .substring(0, 16);
+        }
+
+        return _id;
+    }
+
     public SootMethod getEntryMethod() {
         return _nodes.get(0).method();
     }
@@ -66,6 +93,10 @@ public final class CallPath {
     }
 
     public void print() {
+        if (!Output.isEnabled(Output.Level.INFO)) {
+            return;
+        }
+
         _nodes.forEach(m -> { Output.printPath(m.method().toString()); });
         Output.printPath(_targetUnit.toString());
     }
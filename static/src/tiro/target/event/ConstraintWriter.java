@@ -0,0 +1,49 @@
+package tiro.target.event;
+
+import tiro.Metrics;
+import tiro.TIROStaticAnalysis;
+import tiro.target.AsyncFileWriter;
+
+import com.google.gson.JsonObject;
+
+// Writes the constraints of events into the output directory and records where they were
+// written in the event's JSON.  The output format is selected with the "--format" option.
+// Constraint code is generated on the calling (analysis) thread, while the file I/O is
+// performed by the given AsyncFileWriter.
+
+public abstract class ConstraintWriter {
+    protected final AsyncFileWriter _fileWriter;
+
+    public static ConstraintWriter create(AsyncFileWriter fileWriter) {
+        switch (TIROStaticAnalysis.Config.OutputConstraintFormat) {
+            case SMTLIB2: return new SmtLibConstraintWriter(fileWriter);
+            case PYTHON:
+            default:
+                if (TIROStaticAnalysis.Config.PackConstraints) {
+                    return new PackedPythonConstraintWriter(fileWriter);
+                } else {
+                    return new PythonConstraintWriter(fileWriter);
+                }
+        }
+    }
+
+    protected ConstraintWriter(AsyncFileWriter fileWriter) {
+        _fileWriter = fileWriter;
+    }
+
+    // Called once per event chain, before any of its events are written.
+    public abstract void beginEventChain(int eventChainId);
+
+    public abstract void writeConstraints(int eventChainId, int eventId, Event event,
+                                          JsonObject eventJson);
+
+    // Called once all event chains have been written, before the file writer is closed.
+    public void close() {
+    }
+
+    protected void recordConstraintSize(String constraintCode) {
+        Metrics.increment("constraints.events");
+        Metrics.add("constraints.totalLength", constraintCode.length());
+        Metrics.max("constraints.maxLength", constraintCode.length());
+    }
+}
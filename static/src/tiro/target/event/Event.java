@@ -1,8 +1,8 @@
 package tiro.target.event;
 
 import tiro.Output;
+import tiro.SceneLocal;
 import tiro.target.constraint.Predicate;
-import tiro.target.constraint.Z3ConstraintGenerator;
 import tiro.target.dependency.Dependence;
 
 import soot.*;
@@ -10,20 +10,19 @@ import soot.*;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
-import java.io.File;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 
 public class Event {
-    protected static final SootClass _activityClass =
-            Scene.v().getSootClass("android.app.Activity");
-    protected static final SootClass _serviceClass =
-            Scene.v().getSootClass("android.app.Service");
-    protected static final SootClass _receiverClass =
-            Scene.v().getSootClass("android.content.BroadcastReceiver");
-    protected static final SootClass _viewClass = Scene.v().getSootClass("android.view.View");
+    protected static final SceneLocal<SootClass> _activityClass = new SceneLocal<SootClass>(
+            () -> Scene.v().getSootClass("android.app.Activity"));
+    protected static final SceneLocal<SootClass> _serviceClass = new SceneLocal<SootClass>(
+            () -> Scene.v().getSootClass("android.app.Service"));
+    protected static final SceneLocal<SootClass> _receiverClass = new SceneLocal<SootClass>(
+            () -> Scene.v().getSootClass("android.content.BroadcastReceiver"));
+    protected static final SceneLocal<SootClass> _viewClass = new SceneLocal<SootClass>(
+            () -> Scene.v().getSootClass("android.view.View"));
 
     public enum Type {
         NONE,
@@ -83,7 +82,8 @@ public class Event {
         _dependencies.addAll(dependencies);
     }
 
-    public JsonObject toJson(String eventChainDirectory, int eventId) {
+    public JsonObject toJson(ConstraintWriter constraintWriter, int eventChainId,
+                             int eventId) {
         JsonObject eventJson = new JsonObject();
 
         eventJson.addProperty("Type", getTypeString());
@@ -96,14 +96,7 @@ public class Event {
         eventJson.add("Path", pathJson);
 
         if (_constraints != null) {
-            Z3ConstraintGenerator z3Generator = new Z3ConstraintGenerator(_constraints);
-
-            String constraintFileName = "constraints" + eventId + ".py";
-            String constraintFilePath = eventChainDirectory + "/" + constraintFileName;
-            writeConstraintFile(constraintFilePath, z3Generator.getZ3ConstraintCode());
-            eventJson.addProperty("ConstraintFile", constraintFileName);
-
-            eventJson.add("Variables", z3Generator.getZ3VariableMapJson());
+            constraintWriter.writeConstraints(eventChainId, eventId, this, eventJson);
         }
 
         // TODO
@@ -117,19 +110,6 @@ public class Event {
         return eventJson;
     }
 
-    protected void writeConstraintFile(String constraintFilePath, String constraintsCode) {
-        try {
-            PrintWriter writer = new PrintWriter(constraintFilePath, "UTF-8");
-            writer.println("# Start: " + _path.getEntryMethod().getSignature());
-            writer.println("# Target: " + _path.getTargetUnit().toString());
-            writer.println("");
-            writer.print(constraintsCode);
-            writer.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
     private Event.Type computeEventType(SootMethod entryMethod) {
         Hierarchy cha = Scene.v().getActiveHierarchy();
         SootClass entryClass = entryMethod.getDeclaringClass();
@@ -139,15 +119,15 @@ public class Event {
             return Event.Type.UI;
 
         } else if (!entryClass.isInterface()) {
-            if (cha.isClassSubclassOf(entryClass, _activityClass)) {
+            if (cha.isClassSubclassOf(entryClass, _activityClass.get())) {
                 return Event.Type.ACTIVITY;
-            } else if (cha.isClassSubclassOf(entryClass, _serviceClass)) {
+            } else if (cha.isClassSubclassOf(entryClass, _serviceClass.get())) {
                 return Event.Type.SERVICE;
-            } else if (cha.isClassSubclassOf(entryClass, _receiverClass)) {
+            } else if (cha.isClassSubclassOf(entryClass, _receiverClass.get())) {
                 // TODO: implement intent injection
                 return Event.Type.RECEIVER;
             } else {
-                if (cha.isClassSubclassOf(entryClass, _viewClass)) {
+                if (cha.isClassSubclassOf(entryClass, _viewClass.get())) {
                     return Event.Type.UI;
                 }
 
@@ -159,7 +139,8 @@ public class Event {
                                 interfaceName.substring(0, interfaceName.indexOf('$'));
                         SootClass outerClass = Scene.v().getSootClassUnsafe(outerClassName);
                         if (outerClass != null && !outerClass.isInterface()
-                                && cha.isClassSubclassOfIncluding(outerClass, _viewClass)) {
+                                && cha.isClassSubclassOfIncluding(outerClass,
+                                                                  _viewClass.get())) {
 
                             return Event.Type.UI;
                         }
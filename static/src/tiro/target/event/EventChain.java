@@ -1,6 +1,7 @@
 package tiro.target.event;
 
 import tiro.*;
+import tiro.target.PathProfile;
 
 import soot.jimple.Stmt;
 
@@ -8,9 +9,9 @@ import com.google.common.collect.Lists;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 
-import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class EventChain {
@@ -21,9 +22,27 @@ public class EventChain {
     // Events stored in reverse-dependence order
     private List<Event> _events = new ArrayList<Event>();
     private String _startMethod = null;
+    private PathProfile _profile = null;
+    private Set<String> _targetGroups = null;
 
     public EventChain() {
-        _id = _nextId.getAndIncrement();
+        _id = allocateId();
+    }
+
+    // Returns a new event chain ID (also used for event chains re-used from a previous
+    // analysis).
+    public static int allocateId() {
+        return _nextId.getAndIncrement();
+    }
+
+    // Makes new event chains get IDs of at least nextId (e.g. after restoring event chains).
+    public static void reserveIds(int nextId) {
+        _nextId.accumulateAndGet(nextId, Math::max);
+    }
+
+    // Restarts the chain IDs at 0 (for the next APK in batch mode).
+    public static void resetIds() {
+        _nextId.set(0);
     }
 
     public int getId() {
@@ -34,29 +53,45 @@ public class EventChain {
         return Lists.reverse(_events);
     }
 
+    public void setProfile(PathProfile profile) {
+        _profile = profile;
+    }
+
+    // Target groups reached by the chain (only set when multiple groups are analyzed)
+    public void setTargetGroups(Set<String> targetGroups) {
+        _targetGroups = targetGroups;
+    }
+
     public void addDependentEvent(Event event) {
         _events.add(event);
         _startMethod = event.getPath().getEntryMethod().getSignature();
     }
 
-    public JsonObject toJson() {
-        String eventChainDirectory = TIROStaticAnalysis.Config.OutputDirectory
-                + "/constraints/" + _id;
-        (new File(eventChainDirectory)).mkdirs();
+    public JsonObject toJson(ConstraintWriter constraintWriter) {
+        constraintWriter.beginEventChain(_id);
 
         JsonObject eventChainJson = new JsonObject();
 
         eventChainJson.addProperty("Start", this.getStart());
         eventChainJson.addProperty("Target", this.getTarget());
+        if (_targetGroups != null) {
+            JsonArray targetGroupsJson = new JsonArray();
+            _targetGroups.forEach(g -> { targetGroupsJson.add(g); });
+            eventChainJson.add("TargetGroups", targetGroupsJson);
+        }
 
         JsonArray eventsJson = new JsonArray();
         List<Event> events = Lists.reverse(_events);
         for (int eventId = 0; eventId < events.size(); eventId++) {
             Event event = events.get(eventId);
-            eventsJson.add(event.toJson(eventChainDirectory, eventId));
+            eventsJson.add(event.toJson(constraintWriter, _id, eventId));
         }
         eventChainJson.add("Events", eventsJson);
 
+        if (_profile != null) {
+            eventChainJson.add("Profile", _profile.toJson());
+        }
+
         return eventChainJson;
     }
 
@@ -0,0 +1,132 @@
+package tiro.target.event;
+
+import tiro.TIROStaticAnalysis;
+import tiro.target.AsyncFileWriter;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// Writes each event's constraints as Z3-py code into a single archive, instead of one file
+// (and one directory per event chain) per event:
+//     <output>/constraints.zip: <eventChainId>/constraints<eventId>.py
+// The event's JSON records the archive and entry name, so individual events can be read
+// with random access through the archive's central directory.  The last entry of the
+// archive ("index.json") also maps each entry name to the byte offset of its local header.
+
+class PackedPythonConstraintWriter extends PythonConstraintWriter {
+    static final String ARCHIVE_NAME = "constraints.zip";
+    static final String INDEX_ENTRY_NAME = "index.json";
+
+    // Accessed only by the file writer thread
+    private CountingOutputStream _counter = null;
+    private ZipOutputStream _output = null;
+    private final Map<String, Long> _index = new LinkedHashMap<String, Long>();
+
+    private boolean _closed = false;
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private long _count = 0;
+
+        public CountingOutputStream(OutputStream output) {
+            super(output);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            _count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            _count += len;
+        }
+
+        public long getCount() {
+            return _count;
+        }
+    }
+
+    public PackedPythonConstraintWriter(AsyncFileWriter fileWriter) {
+        super(fileWriter);
+
+        _fileWriter.submit(() -> {
+            FileChannel channel = FileChannel.open(
+                    Paths.get(TIROStaticAnalysis.Config.OutputDirectory, ARCHIVE_NAME),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            _counter = new CountingOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)));
+            _output = new ZipOutputStream(_counter);
+        });
+    }
+
+    @Override
+    protected void writeConstraintFile(int eventChainId, String constraintFileName,
+                                       String contents, JsonObject eventJson) {
+        String entryName = eventChainId + "/" + constraintFileName;
+        byte[] bytes = contents.getBytes(StandardCharsets.UTF_8);
+
+        synchronized (this) {
+            if (_closed) {
+                return;
+            }
+
+            _fileWriter.submit(() -> { writeEntry(entryName, bytes); });
+        }
+
+        eventJson.addProperty("ConstraintFile", constraintFileName);
+        eventJson.addProperty("ConstraintArchive", ARCHIVE_NAME);
+        eventJson.addProperty("ConstraintEntry", entryName);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (_closed) {
+            return;
+        }
+
+        _closed = true;
+        _fileWriter.submit(() -> {
+            if (_output == null) {
+                return;
+            }
+
+            byte[] indexBytes = (new Gson()).toJson(_index).getBytes(StandardCharsets.UTF_8);
+            _output.putNextEntry(new ZipEntry(INDEX_ENTRY_NAME));
+            _output.write(indexBytes);
+            _output.closeEntry();
+
+            _output.close();
+            _output = null;
+        });
+    }
+
+    private void writeEntry(String entryName, byte[] bytes) throws IOException {
+        if (_output == null) {
+            return;
+        }
+
+        // The previous entry has been closed, so all of its data has been written.
+        _index.put(entryName, _counter.getCount());
+
+        _output.putNextEntry(new ZipEntry(entryName));
+        _output.write(bytes);
+        _output.closeEntry();
+    }
+}
@@ -0,0 +1,57 @@
+package tiro.target.event;
+
+import tiro.TIROStaticAnalysis;
+import tiro.target.AsyncFileWriter;
+import tiro.target.constraint.Z3ConstraintGenerator;
+
+import com.google.gson.JsonObject;
+
+// Writes each event's constraints as Z3-py code into:
+//     <output>/constraints/<eventChainId>/constraints<eventId>.py
+
+class PythonConstraintWriter extends ConstraintWriter {
+    public PythonConstraintWriter(AsyncFileWriter fileWriter) {
+        super(fileWriter);
+    }
+
+    @Override
+    public void beginEventChain(int eventChainId) {
+        // The event chain's directory is created by the file writer.
+        return;
+    }
+
+    @Override
+    public void writeConstraints(int eventChainId, int eventId, Event event,
+                                 JsonObject eventJson) {
+        Z3ConstraintGenerator z3Generator = new Z3ConstraintGenerator(event.getConstraints());
+
+        String constraintCode = z3Generator.getZ3ConstraintCode();
+        recordConstraintSize(constraintCode);
+
+        String constraintFileName = "constraints" + eventId + ".py";
+        writeConstraintFile(eventChainId, constraintFileName,
+                getConstraintFileContents(event.getPath(), constraintCode), eventJson);
+
+        eventJson.add("Variables", z3Generator.getZ3VariableMapJson());
+    }
+
+    protected void writeConstraintFile(int eventChainId, String constraintFileName,
+                                       String contents, JsonObject eventJson) {
+        String constraintFilePath = getEventChainDirectory(eventChainId) + "/"
+                + constraintFileName;
+        _fileWriter.writeFile(constraintFilePath, contents);
+        eventJson.addProperty("ConstraintFile", constraintFileName);
+    }
+
+    private String getEventChainDirectory(int eventChainId) {
+        return TIROStaticAnalysis.Config.OutputDirectory + "/constraints/" + eventChainId;
+    }
+
+    private String getConstraintFileContents(CallPath path, String constraintsCode) {
+        String newLine = System.lineSeparator();
+        return "# Start: " + path.getEntryMethod().getSignature() + newLine
+                + "# Target: " + path.getTargetUnit().toString() + newLine
+                + newLine
+                + constraintsCode;
+    }
+}
@@ -0,0 +1,113 @@
+package tiro.target.event;
+
+import tiro.TIROStaticAnalysis;
+import tiro.target.AsyncFileWriter;
+import tiro.target.constraint.SmtLibConstraintGenerator;
+
+import com.google.gson.JsonObject;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+// Writes the constraints of all events in the run into a single SMT-LIB2 file:
+//     <output>/constraints.smt2
+// Each event is a self-contained push/pop block with a named assertion
+// ("c<eventChainId>e<eventId>"), so the whole file can be handed to an SMT solver in batch
+// mode.  The byte offset and length of each block are recorded in the event's JSON, which
+// allows a single event to be read back without parsing the whole file.  Offsets are
+// assigned when a block is submitted, and the file writer appends blocks in the same order.
+
+class SmtLibConstraintWriter extends ConstraintWriter {
+    static final String FILE_NAME = "constraints.smt2";
+
+    // Accessed only by the file writer thread
+    private OutputStream _output = null;
+
+    private long _offset = 0;
+    private boolean _closed = false;
+
+    public SmtLibConstraintWriter(AsyncFileWriter fileWriter) {
+        super(fileWriter);
+
+        _fileWriter.submit(() -> {
+            _output = new BufferedOutputStream(new FileOutputStream(
+                    TIROStaticAnalysis.Config.OutputDirectory + "/" + FILE_NAME));
+        });
+        append(SmtLibConstraintGenerator.getSmtFileHeader());
+    }
+
+    @Override
+    public void beginEventChain(int eventChainId) {
+        // All events share a single file, so there is nothing to prepare.
+        return;
+    }
+
+    @Override
+    public void writeConstraints(int eventChainId, int eventId, Event event,
+                                 JsonObject eventJson) {
+        // Generate the constraint code outside of the lock, since this is the expensive part.
+        SmtLibConstraintGenerator smtGenerator =
+                new SmtLibConstraintGenerator(event.getConstraints());
+        String assertionName = "c" + eventChainId + "e" + eventId;
+
+        StringBuilder block = new StringBuilder();
+        block.append("; Start: ");
+        block.append(event.getPath().getEntryMethod().getSignature());
+        block.append("\n; Target: ");
+        block.append(event.getPath().getTargetUnit().toString().replace('\n', ' '));
+        block.append("\n");
+        String constraintCode = smtGenerator.getSmtConstraintCode(assertionName);
+        recordConstraintSize(constraintCode);
+        block.append(constraintCode);
+
+        long[] location = append(block.toString());
+
+        eventJson.addProperty("ConstraintFile", FILE_NAME);
+        eventJson.addProperty("ConstraintName", assertionName);
+        if (location != null) {
+            eventJson.addProperty("ConstraintOffset", location[0]);
+            eventJson.addProperty("ConstraintLength", location[1]);
+        }
+
+        eventJson.add("Variables", smtGenerator.getSmtVariableMapJson());
+    }
+
+    @Override
+    public synchronized void close() {
+        if (_closed) {
+            return;
+        }
+
+        _closed = true;
+        _fileWriter.submit(() -> {
+            if (_output != null) {
+                _output.close();
+                _output = null;
+            }
+        });
+    }
+
+    // Queues the code to be appended to the file and returns the {offset, length} it will be
+    // written at.
+    private synchronized long[] append(String code) {
+        if (_closed) {
+            return null;
+        }
+
+        byte[] bytes = code.getBytes(StandardCharsets.UTF_8);
+        long offset = _offset;
+        _offset += bytes.length;
+
+        _fileWriter.submit(() -> {
+            if (_output != null) {
+                _output.write(bytes);
+                // Flush each block so that partial results are usable if the run is killed.
+                _output.flush();
+            }
+        });
+
+        return new long[] { offset, bytes.length };
+    }
+}
@@ -32,6 +32,9 @@ public class SupportingEvent extends Event {
 
     @Override
     public SupportingEvent clone() {
-        return new SupportingEvent(_path, _constraints, _dependenceConstraint);
+        SupportingEvent clone =
+                new SupportingEvent(_path, _constraints, _dependenceConstraint);
+        clone.addDependencies(_dependencies);
+        return clone;
     }
 }
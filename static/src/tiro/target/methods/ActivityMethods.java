@@ -1,6 +1,7 @@
 package tiro.target.methods;
 
 import tiro.Output;
+import tiro.SceneLocal;
 
 import soot.RefType;
 import soot.Scene;
@@ -18,8 +19,8 @@ import java.util.List;
 import java.util.Map;
 
 public class ActivityMethods extends Methods {
-    private static final SootClass _activityClass =
-            Scene.v().getSootClass("android.app.Activity");
+    private static final SceneLocal<SootClass> _activityClass = new SceneLocal<SootClass>(
+            () -> Scene.v().getSootClass("android.app.Activity"));
 
     private static class ActivityStartInfo {
         public final int IntentParameterIndex;
@@ -31,60 +32,74 @@ public class ActivityMethods extends Methods {
         }
     }
 
-    private static List<SootMethodRef> _lifecycleMethods = new ArrayList<SootMethodRef>();
-    private static Map<SootMethod, ActivityStartInfo> _startActivityInfo =
-            new HashMap<SootMethod, ActivityStartInfo>();
+    private static final SceneLocal<List<SootMethodRef>> _lifecycleMethods =
+            new SceneLocal<List<SootMethodRef>>(ActivityMethods::createLifecycleMethods);
+    private static final SceneLocal<Map<SootMethod, ActivityStartInfo>> _startActivityInfo =
+            new SceneLocal<Map<SootMethod, ActivityStartInfo>>(
+                    ActivityMethods::createStartActivityInfo);
+
+    public static List<SootMethodRef> getLifecycleMethods() {
+        return _lifecycleMethods.get();
+    }
+
+    private static List<SootMethodRef> createLifecycleMethods() {
+        SootClass activityClass = _activityClass.get();
+        List<SootMethodRef> lifecycleMethods = new ArrayList<SootMethodRef>();
 
-    static {
         // Lifecycle methods.
-        safeAddMethodRef(_lifecycleMethods, _activityClass, "onCreate",
+        safeAddMethodRef(lifecycleMethods, activityClass, "onCreate",
                 Arrays.asList(new Type[] { RefType.v("android.os.Bundle") }),
                 VoidType.v(), false);
-        safeAddMethodRef(_lifecycleMethods, _activityClass, "onCreate",
+        safeAddMethodRef(lifecycleMethods, activityClass, "onCreate",
                 Arrays.asList(new Type[] { RefType.v("android.os.Bundle"),
                                            RefType.v("android.os.PersistableBundle") }),
                 VoidType.v(), false);
-        safeAddMethodRef(_lifecycleMethods, _activityClass, "onStart",
+        safeAddMethodRef(lifecycleMethods, activityClass, "onStart",
                 Collections.<Type>emptyList(), VoidType.v(), false);
-        safeAddMethodRef(_lifecycleMethods, _activityClass, "onRestart",
+        safeAddMethodRef(lifecycleMethods, activityClass, "onRestart",
                 Collections.<Type>emptyList(), VoidType.v(), false);
-        safeAddMethodRef(_lifecycleMethods, _activityClass, "onResume",
+        safeAddMethodRef(lifecycleMethods, activityClass, "onResume",
                 Collections.<Type>emptyList(), VoidType.v(), false);
-        safeAddMethodRef(_lifecycleMethods, _activityClass, "onPause",
+        safeAddMethodRef(lifecycleMethods, activityClass, "onPause",
                 Collections.<Type>emptyList(), VoidType.v(), false);
-        safeAddMethodRef(_lifecycleMethods, _activityClass, "onStop",
+        safeAddMethodRef(lifecycleMethods, activityClass, "onStop",
                 Collections.<Type>emptyList(), VoidType.v(), false);
-        safeAddMethodRef(_lifecycleMethods, _activityClass, "onDestroy",
+        safeAddMethodRef(lifecycleMethods, activityClass, "onDestroy",
                 Collections.<Type>emptyList(), VoidType.v(), false);
 
+        return lifecycleMethods;
+    }
+
+    private static Map<SootMethod, ActivityStartInfo> createStartActivityInfo() {
+        Map<SootMethod, ActivityStartInfo> startActivityInfo =
+                new HashMap<SootMethod, ActivityStartInfo>();
+
         // Activity start methods.
-        safeAddMethod(_startActivityInfo, "<android.app.Activity: "
+        safeAddMethod(startActivityInfo, "<android.app.Activity: "
                 + "void startActivity(android.content.Intent)>",
                 new ActivityStartInfo(0, false));
-        safeAddMethod(_startActivityInfo, "<android.app.Activity: "
+        safeAddMethod(startActivityInfo, "<android.app.Activity: "
                 + "void startActivity(android.content.Intent,android.os.Bundle)>",
                 new ActivityStartInfo(0, false));
-        safeAddMethod(_startActivityInfo, "<android.app.Activity: "
+        safeAddMethod(startActivityInfo, "<android.app.Activity: "
                 + "void startActivityForResult(android.content.Intent,int)>",
                 new ActivityStartInfo(0, true));
-        safeAddMethod(_startActivityInfo, "<android.app.Activity: "
+        safeAddMethod(startActivityInfo, "<android.app.Activity: "
                 + "void startActivityForResult(android.content.Intent,int,android.os.Bundle)>",
                 new ActivityStartInfo(0, true));
-        safeAddMethod(_startActivityInfo, "<android.app.Activity: "
+        safeAddMethod(startActivityInfo, "<android.app.Activity: "
                 + "void startActivityFromChild(android.app.Activity,android.content.Intent,"
                 + "int)>",
                 new ActivityStartInfo(1, false));
-        safeAddMethod(_startActivityInfo, "<android.app.Activity: "
+        safeAddMethod(startActivityInfo, "<android.app.Activity: "
                 + "void startActivityFromChild(android.app.Activity,android.content.Intent,"
                 + "int,android.os.Bundle)>",
                 new ActivityStartInfo(0, false));
 
-        //safeAddMethod(_startActivityInfo, "<android.app.Activity: "
+        //safeAddMethod(startActivityInfo, "<android.app.Activity: "
         //        + "",
         //        new ActivityStartInfo(0, false));
-    }
 
-    public static List<SootMethodRef> getLifecycleMethods() {
-        return _lifecycleMethods;
+        return startActivityInfo;
     }
 }
@@ -1,6 +1,7 @@
 package tiro.target.methods;
 
 import tiro.Output;
+import tiro.SceneLocal;
 
 import soot.SootMethod;
 import soot.Value;
@@ -21,57 +22,59 @@ public class IntentMethods extends Methods {
         }
     }
 
-    private static final Map<SootMethod, IntentTargetInfo> _intentTargetInfo =
-            new HashMap<SootMethod, IntentTargetInfo>();
+    private static final SceneLocal<Map<SootMethod, IntentTargetInfo>> _intentTargetInfo =
+            new SceneLocal<Map<SootMethod, IntentTargetInfo>>(
+                    IntentMethods::createIntentTargetInfo);
+
+    private static Map<SootMethod, IntentTargetInfo> createIntentTargetInfo() {
+        Map<SootMethod, IntentTargetInfo> intentTargetInfo =
+                new HashMap<SootMethod, IntentTargetInfo>();
 
-    static {
         // Intent
-        safeAddMethod(_intentTargetInfo, "<android.content.Intent: void <init>("
+        safeAddMethod(intentTargetInfo, "<android.content.Intent: void <init>("
                 + "android.content.Context,java.lang.Class)>",
                 new IntentTargetInfo(IntentTargetType.CLASS, 1));
-        safeAddMethod(_intentTargetInfo, "<android.content.Intent: void <init>("
+        safeAddMethod(intentTargetInfo, "<android.content.Intent: void <init>("
                 + "java.lang.String,android.net.Uri,android.content.Context,java.lang.Class)>",
                 new IntentTargetInfo(IntentTargetType.CLASS, 3));
-        safeAddMethod(_intentTargetInfo, "<android.content.Intent: android.content.Intent "
+        safeAddMethod(intentTargetInfo, "<android.content.Intent: android.content.Intent "
                 + "setClass(android.content.Context,java.lang.Class)>",
                 new IntentTargetInfo(IntentTargetType.CLASS, 1));
-        safeAddMethod(_intentTargetInfo, "<android.content.Intent: android.content.Intent "
+        safeAddMethod(intentTargetInfo, "<android.content.Intent: android.content.Intent "
                 + "setClassName(java.lang.String,java.lang.String)>",
                 new IntentTargetInfo(IntentTargetType.STRING, 1));
-        safeAddMethod(_intentTargetInfo, "<android.content.Intent: android.content.Intent "
+        safeAddMethod(intentTargetInfo, "<android.content.Intent: android.content.Intent "
                 + "setClassName(android.content.Context,java.lang.String)>",
                 new IntentTargetInfo(IntentTargetType.STRING, 1));
-        safeAddMethod(_intentTargetInfo, "<android.content.Intent: android.content.Intent "
+        safeAddMethod(intentTargetInfo, "<android.content.Intent: android.content.Intent "
                 + "setComponent(android.content.ComponentName)>",
                 new IntentTargetInfo(IntentTargetType.COMPONENT_NAME, 0));
 
         // ComponentName
-        safeAddMethod(_intentTargetInfo, "<android.content.ComponentName: void <init>("
+        safeAddMethod(intentTargetInfo, "<android.content.ComponentName: void <init>("
                 + "android.content.Context,java.lang.Class)>",
                 new IntentTargetInfo(IntentTargetType.CLASS, 1));
-        safeAddMethod(_intentTargetInfo, "<android.content.ComponentName: void <init>("
+        safeAddMethod(intentTargetInfo, "<android.content.ComponentName: void <init>("
                 + "android.content.Context,java.lang.String)>",
                 new IntentTargetInfo(IntentTargetType.STRING, 1));
-        safeAddMethod(_intentTargetInfo, "<android.content.ComponentName: void <init>("
+        safeAddMethod(intentTargetInfo, "<android.content.ComponentName: void <init>("
                 + "java.lang.String,java.lang.String)>",
                 new IntentTargetInfo(IntentTargetType.STRING, 1));
+
+        return intentTargetInfo;
     }
 
     public static boolean isIntentTargetMethod(SootMethod method) {
-        return _intentTargetInfo.containsKey(method);
+        return _intentTargetInfo.get().containsKey(method);
     }
 
     public static IntentTargetType getIntentTargetType(SootMethod method) {
-        if (_intentTargetInfo.containsKey(method)) {
-            return _intentTargetInfo.get(method).TargetType;
-        }
-        return IntentTargetType.NONE;
+        IntentTargetInfo info = _intentTargetInfo.get().get(method);
+        return (info != null) ? info.TargetType : IntentTargetType.NONE;
     }
 
     public static int getIntentTargetParameterIndex(SootMethod method) {
-        if (_intentTargetInfo.containsKey(method)) {
-            return _intentTargetInfo.get(method).ParameterIndex;
-        }
-        return -1;
+        IntentTargetInfo info = _intentTargetInfo.get().get(method);
+        return (info != null) ? info.ParameterIndex : -1;
     }
 }
@@ -1,6 +1,7 @@
 package tiro.target.methods;
 
 import tiro.Output;
+import tiro.SceneLocal;
 
 import soot.BooleanType;
 import soot.IntType;
@@ -17,37 +18,43 @@ import java.util.Collections;
 import java.util.List;
 
 public class ServiceMethods extends Methods {
-    protected static final SootClass _serviceClass =
-            Scene.v().getSootClass("android.app.Service");
+    protected static final SceneLocal<SootClass> _serviceClass = new SceneLocal<SootClass>(
+            () -> Scene.v().getSootClass("android.app.Service"));
 
-    private static List<SootMethodRef> _lifecycleMethods = new ArrayList<SootMethodRef>();
+    private static final SceneLocal<List<SootMethodRef>> _lifecycleMethods =
+            new SceneLocal<List<SootMethodRef>>(ServiceMethods::createLifecycleMethods);
+
+    public static List<SootMethodRef> getLifecycleMethods() {
+        return _lifecycleMethods.get();
+    }
+
+    private static List<SootMethodRef> createLifecycleMethods() {
+        SootClass serviceClass = _serviceClass.get();
+        List<SootMethodRef> lifecycleMethods = new ArrayList<SootMethodRef>();
 
-    static {
         // Lifecycle methods.
-        safeAddMethodRef(_lifecycleMethods, _serviceClass, "onCreate",
+        safeAddMethodRef(lifecycleMethods, serviceClass, "onCreate",
                 Collections.<Type>emptyList(), VoidType.v(), false);
-        safeAddMethodRef(_lifecycleMethods, _serviceClass, "onBind",
+        safeAddMethodRef(lifecycleMethods, serviceClass, "onBind",
                 Arrays.asList(new Type[] { RefType.v("android.content.Intent") }),
                 RefType.v("android.os.IBinder"), false);
-        safeAddMethodRef(_lifecycleMethods, _serviceClass, "onRebind",
+        safeAddMethodRef(lifecycleMethods, serviceClass, "onRebind",
                 Arrays.asList(new Type[] { RefType.v("android.content.Intent") }),
                 RefType.v("android.os.IBinder"), false);
-        safeAddMethodRef(_lifecycleMethods, _serviceClass, "onStart",
+        safeAddMethodRef(lifecycleMethods, serviceClass, "onStart",
                 Arrays.asList(new Type[] { RefType.v("android.content.Intent"), IntType.v() }),
                 VoidType.v(), false);
-        safeAddMethodRef(_lifecycleMethods, _serviceClass, "onStartCommand",
+        safeAddMethodRef(lifecycleMethods, serviceClass, "onStartCommand",
                 Arrays.asList(new Type[] { RefType.v("android.content.Intent"), IntType.v(),
                                            IntType.v() }),
                 IntType.v(), false);
-        safeAddMethodRef(_lifecycleMethods, _serviceClass, "onTaskRemoved",
+        safeAddMethodRef(lifecycleMethods, serviceClass, "onTaskRemoved",
                 Arrays.asList(new Type[] { RefType.v("android.content.Intent") }),
                 VoidType.v(), false);
-        safeAddMethodRef(_lifecycleMethods, _serviceClass, "onUnbind",
+        safeAddMethodRef(lifecycleMethods, serviceClass, "onUnbind",
                 Arrays.asList(new Type[] { RefType.v("android.content.Intent") }),
                 BooleanType.v(), false);
-    }
 
-    public static List<SootMethodRef> getLifecycleMethods() {
-        return _lifecycleMethods;
+        return lifecycleMethods;
     }
 }
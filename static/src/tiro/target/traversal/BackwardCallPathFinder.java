@@ -0,0 +1,100 @@
+package tiro.target.traversal;
+
+import soot.MethodOrMethodContext;
+import soot.SootClass;
+import soot.jimple.toolkits.callgraph.CallGraph;
+import soot.jimple.toolkits.callgraph.Edge;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+// Finds a call path from one of the entry-points to a given method by searching backwards
+// over soot's call-graph.  The returned edges have the same form as those produced by
+// AndroidAnyPathFinder (i.e. they start with an edge into the entry-point and only pass
+// through application classes), so they can be used to construct a CallPath.
+//
+// This is used to materialize paths on demand for a small number of target methods,
+// instead of recording the paths to every unit of interest during the forward traversal.
+
+public class BackwardCallPathFinder {
+    private final CallGraph _graph;
+    private final Set<MethodOrMethodContext> _entryPoints;
+
+    public BackwardCallPathFinder(CallGraph graph,
+            Collection<? extends MethodOrMethodContext> entryPoints) {
+        _graph = graph;
+        _entryPoints = new HashSet<MethodOrMethodContext>(entryPoints);
+    }
+
+    // Returns the shortest path to the target method, or null if it is not reachable from
+    // an entry-point.
+    public List<Edge> findPath(MethodOrMethodContext target) {
+        // Breadth-first search, tracking the edge used to reach each method (towards the
+        // target).
+        Map<MethodOrMethodContext, Edge> nextEdges =
+                new HashMap<MethodOrMethodContext, Edge>();
+        Set<MethodOrMethodContext> visited = new HashSet<MethodOrMethodContext>();
+        Queue<MethodOrMethodContext> worklist = new ArrayDeque<MethodOrMethodContext>();
+
+        visited.add(target);
+        worklist.add(target);
+
+        while (!worklist.isEmpty()) {
+            MethodOrMethodContext current = worklist.poll();
+
+            if (_entryPoints.contains(current)) {
+                Iterator<Edge> entryEdges = _graph.edgesInto(current);
+                if (entryEdges.hasNext()) {
+                    return buildPath(entryEdges.next(), nextEdges);
+                }
+            }
+
+            Iterator<Edge> inEdges = _graph.edgesInto(current);
+            while (inEdges.hasNext()) {
+                Edge inEdge = inEdges.next();
+                MethodOrMethodContext caller = inEdge.getSrc();
+
+                // Same restrictions as the forward traversal: call sites must be known and
+                // callers must be application (non-support library) methods.
+                if (inEdge.srcUnit() == null || !isTraversable(caller)) {
+                    continue;
+                }
+
+                if (visited.add(caller)) {
+                    nextEdges.put(caller, inEdge);
+                    worklist.add(caller);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private List<Edge> buildPath(Edge entryEdge, Map<MethodOrMethodContext, Edge> nextEdges) {
+        List<Edge> path = new ArrayList<Edge>();
+        path.add(entryEdge);
+
+        MethodOrMethodContext current = entryEdge.getTgt();
+        while (nextEdges.containsKey(current)) {
+            Edge edge = nextEdges.get(current);
+            path.add(edge);
+            current = edge.getTgt();
+        }
+
+        return path;
+    }
+
+    private boolean isTraversable(MethodOrMethodContext method) {
+        SootClass methodClass = method.method().getDeclaringClass();
+        return methodClass.isApplicationClass()
+                && !methodClass.getName().startsWith("android.support.v");
+    }
+}
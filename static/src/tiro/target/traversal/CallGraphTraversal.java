@@ -1,6 +1,8 @@
 package tiro.target.traversal;
 
+import tiro.Metrics;
 import tiro.Output;
+import tiro.TIROStaticAnalysis;
 import tiro.target.entrypoint.EntryPointAnalysis;
 import tiro.target.event.CallPath;
 
@@ -43,6 +45,7 @@ public class CallGraphTraversal extends SceneTransformer {
     @Override
     protected void internalTransform(String phaseName, Map<String, String> options) {
         Output.progress("Traversing the call graph");
+        Metrics.beginPhase("Traversal");
 
         PluginBasedEdgePredicate edgePredicate = new PluginBasedEdgePredicate(_plugins);
         AndroidAnyPathFinder pathFinder = new AndroidAnyPathFinder(
@@ -50,6 +53,8 @@ public class CallGraphTraversal extends SceneTransformer {
                 edgePredicate);
 
         for (List<Edge> path = pathFinder.next(); path != null; path = pathFinder.next()) {
+            TIROStaticAnalysis.checkCancelled();
+            Metrics.increment("traversal.paths");
             for (Plugin plugin : _plugins) {
                 for (Unit targetUnit : edgePredicate.getTargetUnitsForPlugin(plugin)) {
                     CallPath newCallPath = new CallPath(path, targetUnit);
@@ -76,6 +81,7 @@ public class CallGraphTraversal extends SceneTransformer {
 
             clearPluginTargets();
             boolean isTarget = false;
+            Metrics.add("traversal.unitsScanned", tgtMethod.getActiveBody().getUnits().size());
 
             for (Unit unit : tgtMethod.getActiveBody().getUnits()) {
                 for (Map.Entry<Plugin, List<Unit>> pluginEntry : _pluginTargets.entrySet()) {